@@ -0,0 +1,3 @@
+-- Backs the paged CHAT_HISTORY query: each direction of a conversation is read
+-- backwards from the msg_id cursor along this index, touching only one page of rows.
+CREATE INDEX idx_messages_pair_msg ON messages (sender_id, receiver_id, msg_id);
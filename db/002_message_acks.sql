@@ -0,0 +1,13 @@
+-- Highest msg_id each user has acknowledged per conversation (user_id receives from peer_id).
+-- The login catch-up reads messages past last_msg_id along idx_messages_pair_msg, one range
+-- per row here, so its cost follows the number of missed lines rather than the history size.
+CREATE TABLE message_acks (
+    user_id INT NOT NULL,
+    peer_id INT NOT NULL,
+    last_msg_id BIGINT NOT NULL DEFAULT 0,
+    PRIMARY KEY (user_id, peer_id)
+);
+
+-- Clients so far reloaded whole histories, so everything already stored counts as seen.
+INSERT IGNORE INTO message_acks (user_id, peer_id, last_msg_id)
+SELECT receiver_id, sender_id, MAX(msg_id) FROM messages GROUP BY receiver_id, sender_id;
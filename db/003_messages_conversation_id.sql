@@ -0,0 +1,19 @@
+-- Conversation-keyed storage: history reads become one range of (conversation_id, msg_id)
+-- instead of an OR over both directions of the pair.
+--
+-- Rollout, all online:
+--   1. apply this file (instant column add, in-place index build, no table lock);
+--   2. deploy the server, which writes conversation_id on every new message;
+--   3. run ConversationBackfill until it reports done. It fills old rows in resumable
+--      msg_id chunks and records progress in migration_state; servers switch their
+--      history reads to the new index once that row says done.
+ALTER TABLE messages ADD COLUMN conversation_id BIGINT NULL, ALGORITHM=INSTANT;
+ALTER TABLE messages ADD INDEX idx_messages_conversation (conversation_id, msg_id), ALGORITHM=INPLACE, LOCK=NONE;
+
+CREATE TABLE migration_state (
+    name VARCHAR(64) NOT NULL PRIMARY KEY,
+    last_id BIGINT NOT NULL DEFAULT 0,
+    target_id BIGINT NOT NULL DEFAULT 0,
+    done BOOLEAN NOT NULL DEFAULT FALSE,
+    updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP
+);
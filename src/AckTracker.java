@@ -0,0 +1,90 @@
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Highest msg_id each user has acknowledged per conversation (message_acks). A line
+// handed to a live connection counts as acknowledged, as does an offline batch once
+// the client confirms it. Acks only ever move forward, so they are coalesced in memory
+// per (user, peer) and handed to the store in one batch every FLUSH_MILLIS.
+//
+// An ack covers everything below it, so a line the user's connections could not take
+// (a full queue) leaves a gap: later live deliveries are acknowledged only up to just
+// before it, and the login delta offers it again. The gap closes once the user
+// acknowledges past it.
+final class AckTracker {
+    // (user_id << 32 | peer_id) -> msg_id, waiting for the next flush.
+    private static final ConcurrentHashMap<Long, Long> pending = new ConcurrentHashMap<>();
+    // (user_id << 32 | peer_id) -> oldest msg_id a connection of the user refused.
+    private static final ConcurrentHashMap<Long, Long> gaps = new ConcurrentHashMap<>();
+
+    static {
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ack-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = ServerConfig.ACK_FLUSH_MILLIS;
+        flusher.scheduleWithFixedDelay(AckTracker::flush, period, period, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(AckTracker::flush, "ack-flusher-drain"));
+    }
+
+    private AckTracker() {
+    }
+
+    static int pending() {
+        return pending.size();
+    }
+
+    // The user has seen everything up to msgId: confirmed by the client, or pushed to a
+    // line client in the login delta.
+    static void ack(int userId, int peerId, long msgId) {
+        long key = key(userId, peerId);
+        pending.merge(key, msgId, Math::max);
+        gaps.computeIfPresent(key, (k, gap) -> gap <= msgId ? null : gap);
+    }
+
+    // A line handed to a live connection of the user.
+    static void delivered(int userId, int peerId, long msgId) {
+        long key = key(userId, peerId);
+        Long gap = gaps.get(key);
+        long upTo = gap != null ? Math.min(msgId, gap - 1) : msgId;
+        if (upTo > 0) {
+            pending.merge(key, upTo, Math::max);
+        }
+    }
+
+    // A line the user's live connections had no room for.
+    static void missed(int userId, int peerId, long msgId) {
+        gaps.merge(key(userId, peerId), msgId, Math::min);
+    }
+
+    // An ack not flushed yet, or 0; the delta query can't see those.
+    static long unflushed(int userId, int peerId) {
+        Long msgId = pending.get(key(userId, peerId));
+        return msgId != null ? msgId : 0;
+    }
+
+    private static long key(int userId, int peerId) {
+        return ((long) userId << 32) | (peerId & 0xFFFFFFFFL);
+    }
+
+    private static void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<Long, Long> batch = Map.copyOf(pending);
+        try {
+            Storage.messages.saveAcks(batch);
+        } catch (SQLException e) {
+            // Kept for the next round; until then they only mean a few lines may be offered again.
+            System.out.println("Could not write message acks: " + e.getMessage());
+            return;
+        }
+        // Only forget an ack if no newer one came in meanwhile.
+        batch.forEach(pending::remove);
+        ChatStats.acksFlushed.add(batch.size());
+    }
+}
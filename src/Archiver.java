@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Moves messages older than ARCHIVE_AFTER_DAYS out of the messages table into
+// MessageArchive segments, so the hot table and its indexes only hold recent lines.
+//
+// msg_ids grow with time, so the age cutoff becomes a msg_id found by binary search
+// over the primary key. The table is then walked in msg_id chunks. Each chunk is
+// grouped by conversation into one segment each, the segments are forced to disk,
+// and only then are the rows deleted, in the same transaction that moves the
+// 'messages.archive' watermark in migration_state. A chunk interrupted by a crash is
+// redone from the watermark and rewrites the same segment files.
+final class Archiver {
+    static final String NAME = "messages.archive";
+
+    private static final String CHUNK = """
+            SELECT (LEAST(sender_id, receiver_id) << 32) | GREATEST(sender_id, receiver_id) AS conversation,
+                   msg_id, sender_id, receiver_id, message, timestamp
+            FROM messages
+            WHERE msg_id > ? AND msg_id <= ?
+            ORDER BY conversation, msg_id
+            """;
+
+    private Archiver() {
+    }
+
+    static void start() {
+        if (ServerConfig.ARCHIVE_AFTER_DAYS <= 0) {
+            return;
+        }
+        ScheduledExecutorService archiver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = ServerConfig.ARCHIVE_INTERVAL_MINUTES;
+        archiver.scheduleWithFixedDelay(Archiver::run, 1, period, TimeUnit.MINUTES);
+    }
+
+    static void run() {
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            long cutoffMillis = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(ServerConfig.ARCHIVE_AFTER_DAYS);
+            long cutoff = lastIdBefore(conn, new Timestamp(cutoffMillis));
+            long done = watermark(conn);
+            long moved = 0;
+            while (done < cutoff) {
+                long end = Math.min(done + ServerConfig.ARCHIVE_CHUNK, cutoff);
+                moved += archiveChunk(conn, done, end);
+                done = end;
+            }
+            if (moved > 0) {
+                System.out.println("Archived " + moved + " messages up to msg_id " + cutoff + ".");
+            }
+        } catch (SQLException | IOException e) {
+            // The watermark only moves past chunks that are fully archived; the next run resumes there.
+            e.printStackTrace();
+        }
+    }
+
+    // The highest msg_id written before cutoff, by binary search over the primary key.
+    private static long lastIdBefore(Connection conn, Timestamp cutoff) throws SQLException {
+        try (Statement max = conn.createStatement();
+             PreparedStatement at = conn.prepareStatement(
+                     "SELECT msg_id, timestamp FROM messages WHERE msg_id >= ? ORDER BY msg_id LIMIT 1")) {
+            ResultSet rs = max.executeQuery("SELECT COALESCE(MAX(msg_id), 0) FROM messages");
+            rs.next();
+            long low = 0;
+            long high = rs.getLong(1);
+            while (low < high) {
+                long mid = low + (high - low + 1) / 2;
+                at.setLong(1, mid);
+                ResultSet row = at.executeQuery();
+                if (row.next() && row.getTimestamp(2).before(cutoff)) {
+                    low = row.getLong(1);
+                    if (low >= high) {
+                        break;
+                    }
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static long watermark(Connection conn) throws SQLException {
+        try (PreparedStatement insert = conn.prepareStatement(
+                "INSERT IGNORE INTO migration_state (name, last_id, target_id) VALUES (?, 0, 0)");
+             PreparedStatement select = conn.prepareStatement("SELECT last_id FROM migration_state WHERE name = ?")) {
+            insert.setString(1, NAME);
+            insert.executeUpdate();
+            select.setString(1, NAME);
+            ResultSet rs = select.executeQuery();
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private static int archiveChunk(Connection conn, long from, long to) throws SQLException, IOException {
+        int rows = 0;
+        try (PreparedStatement stmt = conn.prepareStatement(CHUNK)) {
+            stmt.setLong(1, from);
+            stmt.setLong(2, to);
+            ResultSet rs = stmt.executeQuery();
+            long conversation = 0;
+            List<StoredMessage> run = new ArrayList<>();
+            while (rs.next()) {
+                long id = rs.getLong("conversation");
+                if (!run.isEmpty() && id != conversation) {
+                    MessageArchive.write(conversation, run);
+                    run.clear();
+                }
+                conversation = id;
+                run.add(new StoredMessage(rs.getLong("msg_id"), rs.getInt("sender_id"), rs.getInt("receiver_id"),
+                        null, rs.getString("message"), rs.getTimestamp("timestamp").getTime()));
+                rows++;
+            }
+            if (!run.isEmpty()) {
+                MessageArchive.write(conversation, run);
+            }
+        }
+
+        conn.setAutoCommit(false);
+        try (PreparedStatement delete = conn.prepareStatement("DELETE FROM messages WHERE msg_id > ? AND msg_id <= ?");
+             PreparedStatement progress = conn.prepareStatement("UPDATE migration_state SET last_id = ? WHERE name = ?")) {
+            delete.setLong(1, from);
+            delete.setLong(2, to);
+            delete.executeUpdate();
+            progress.setLong(1, to);
+            progress.setString(2, NAME);
+            progress.executeUpdate();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        ChatStats.archivedMessages.add(rows);
+        return rows;
+    }
+}
@@ -0,0 +1,260 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Length-prefixed binary framing, version 2. Every frame is
+//
+//   int32 length | byte type | int32 requestId | payload
+//
+// big-endian, where length counts everything after itself. Text is UTF-8 and is
+// either the last field of a frame (it runs to the end, so it may hold newlines,
+// colons or anything else) or a name prefixed with its uint16 byte length. Readers
+// never scan for delimiters; they jump from field to field.
+//
+// A client asks for it by sending the hello line instead of its username and waits
+// for the acknowledgement line before sending frames. An old server answers the hello
+// like any unknown username, which tells the client to reconnect and speak lines.
+//
+// Version 2 adds heartbeats: the server sends HEARTBEAT on a silent connection and closes
+// it if no frame, HEARTBEAT_ACK or any other, follows in time. Version 1 clients never
+// get one.
+class BinaryWireFormat implements WireFormat {
+    static final int VERSION = 2;
+    static final int HEARTBEAT_VERSION = 2;
+    // "\u0001CHAT-BINARY <highest version the client speaks>", answered with the chosen version.
+    static final String HELLO = "\u0001CHAT-BINARY ";
+
+    // Client to server.
+    static final byte LOGIN = 1;        // username
+    static final byte SEND = 2;         // int recipientId, text
+    static final byte HISTORY = 3;      // int peerId, int pageSize (0: whole conversation), long beforeMsgId
+    static final byte LOGOUT = 4;
+    static final byte ROOM_JOIN = 5;    // room
+    static final byte ROOM_LEAVE = 6;   // room
+    static final byte ROOM_SEND = 7;    // name16 room, text
+    static final byte ACK = 8;          // int peerId, long msgId: everything from peerId up to msgId was seen
+    static final byte SEARCH = 9;       // int pageSize, long beforeMsgId (Long.MAX_VALUE: newest), query
+    static final byte PING = 10;        // answered with PONG
+    static final byte HEARTBEAT_ACK = 11; // answers HEARTBEAT
+
+    // Server to client; responses carry the requestId of the request they answer.
+    static final byte LOGIN_OK = 65;    // int userId, username
+    static final byte FRIENDS = 66;     // int count, count * (int id, name16)
+    static final byte MESSAGE = 67;     // int senderId, name16 senderName, text
+    static final byte SENT = 68;        // int recipientId, byte recipientOffline, text
+    static final byte HISTORY_START = 69; // int peerId, byte firstPage
+    static final byte HISTORY_ROW = 70; // long msgId, int senderId, long timestampMillis, name16 senderName, text
+    static final byte HISTORY_END = 71; // long nextCursor (0: nothing older)
+    static final byte ROOM_JOINED = 72; // int members, room
+    static final byte ROOM_LEFT = 73;   // room
+    static final byte ROOM_MESSAGE = 74; // int senderId, name16 room, name16 senderName, text
+    // int count, count * (long msgId, int senderId, long timestampMillis, name16 senderName, int length, text)
+    static final byte OFFLINE_MESSAGES = 75;
+    // long nextCursor, int count, count * (long msgId, int senderId, int receiverId, long timestampMillis,
+    // name16 senderName, int length, text)
+    static final byte SEARCH_RESULTS = 76;
+    static final byte HEARTBEAT = 77;   // answer with HEARTBEAT_ACK
+    static final byte PONG = 78;        // answers PING
+    static final byte ERROR = 127;      // text
+
+    // type and requestId, the part of the header the length field counts.
+    static final int HEADER_BYTES = 5;
+
+    @Override
+    public ByteBuffer loginOk(int requestId, int userId, String username) {
+        byte[] name = utf8(username);
+        return frame(LOGIN_OK, requestId, 4 + name.length).putInt(userId).put(name).flip();
+    }
+
+    @Override
+    public ByteBuffer friends(int requestId, int[] ids, String[] names) {
+        byte[][] encoded = new byte[names.length][];
+        int size = 4;
+        for (int i = 0; i < names.length; i++) {
+            encoded[i] = name16(names[i]);
+            size += 4 + 2 + encoded[i].length;
+        }
+        ByteBuffer frame = frame(FRIENDS, requestId, size).putInt(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            frame.putInt(ids[i]).putShort((short) encoded[i].length).put(encoded[i]);
+        }
+        return frame.flip();
+    }
+
+    @Override
+    public ByteBuffer message(int senderId, String senderName, String text) {
+        byte[] name = name16(senderName);
+        byte[] body = utf8(text);
+        return frame(MESSAGE, 0, 4 + 2 + name.length + body.length)
+                .putInt(senderId).putShort((short) name.length).put(name).put(body).flip();
+    }
+
+    @Override
+    public ByteBuffer sent(int requestId, int recipientId, String text, boolean recipientOffline) {
+        byte[] body = utf8(text);
+        return frame(SENT, requestId, 4 + 1 + body.length)
+                .putInt(recipientId).put((byte) (recipientOffline ? 1 : 0)).put(body).flip();
+    }
+
+    @Override
+    public ByteBuffer historyStart(int requestId, int peerId, boolean firstPage) {
+        return frame(HISTORY_START, requestId, 4 + 1).putInt(peerId).put((byte) (firstPage ? 1 : 0)).flip();
+    }
+
+    @Override
+    public ByteBuffer historyRow(int requestId, StoredMessage row, int viewerId) {
+        byte[] name = name16(row.senderName());
+        byte[] body = utf8(row.text());
+        return frame(HISTORY_ROW, requestId, 8 + 4 + 8 + 2 + name.length + body.length)
+                .putLong(row.msgId()).putInt(row.senderId()).putLong(row.timestampMillis())
+                .putShort((short) name.length).put(name).put(body).flip();
+    }
+
+    @Override
+    public ByteBuffer historyEnd(int requestId, long nextCursor, boolean paged) {
+        return frame(HISTORY_END, requestId, 8).putLong(nextCursor).flip();
+    }
+
+    @Override
+    public ByteBuffer offlineMessages(int requestId, List<StoredMessage> newestFirst, int viewerId) {
+        int count = newestFirst.size();
+        byte[][] names = new byte[count][];
+        byte[][] bodies = new byte[count][];
+        int size = 4;
+        for (int i = 0; i < count; i++) {
+            StoredMessage row = newestFirst.get(i);
+            names[i] = name16(row.senderName());
+            bodies[i] = utf8(row.text());
+            size += 8 + 4 + 8 + 2 + names[i].length + 4 + bodies[i].length;
+        }
+        ByteBuffer frame = frame(OFFLINE_MESSAGES, requestId, size).putInt(count);
+        for (int i = 0; i < count; i++) {
+            StoredMessage row = newestFirst.get(i);
+            frame.putLong(row.msgId()).putInt(row.senderId()).putLong(row.timestampMillis())
+                    .putShort((short) names[i].length).put(names[i])
+                    .putInt(bodies[i].length).put(bodies[i]);
+        }
+        return frame.flip();
+    }
+
+    @Override
+    public ByteBuffer searchResults(int requestId, List<StoredMessage> newestFirst, int viewerId, long nextCursor) {
+        int count = newestFirst.size();
+        byte[][] names = new byte[count][];
+        byte[][] bodies = new byte[count][];
+        int size = 8 + 4;
+        for (int i = 0; i < count; i++) {
+            StoredMessage row = newestFirst.get(i);
+            names[i] = name16(row.senderName());
+            bodies[i] = utf8(row.text());
+            size += 8 + 4 + 4 + 8 + 2 + names[i].length + 4 + bodies[i].length;
+        }
+        ByteBuffer frame = frame(SEARCH_RESULTS, requestId, size).putLong(nextCursor).putInt(count);
+        for (int i = 0; i < count; i++) {
+            StoredMessage row = newestFirst.get(i);
+            frame.putLong(row.msgId()).putInt(row.senderId()).putInt(row.receiverId()).putLong(row.timestampMillis())
+                    .putShort((short) names[i].length).put(names[i])
+                    .putInt(bodies[i].length).put(bodies[i]);
+        }
+        return frame.flip();
+    }
+
+    @Override
+    public ByteBuffer roomJoined(int requestId, String room, int members) {
+        byte[] name = utf8(room);
+        return frame(ROOM_JOINED, requestId, 4 + name.length).putInt(members).put(name).flip();
+    }
+
+    @Override
+    public ByteBuffer roomLeft(int requestId, String room) {
+        byte[] name = utf8(room);
+        return frame(ROOM_LEFT, requestId, name.length).put(name).flip();
+    }
+
+    @Override
+    public ByteBuffer roomMessage(String room, int senderId, String senderName, String text) {
+        byte[] roomName = name16(room);
+        byte[] sender = name16(senderName);
+        byte[] body = utf8(text);
+        return frame(ROOM_MESSAGE, 0, 4 + 2 + roomName.length + 2 + sender.length + body.length)
+                .putInt(senderId).putShort((short) roomName.length).put(roomName)
+                .putShort((short) sender.length).put(sender).put(body).flip();
+    }
+
+    @Override
+    public ByteBuffer error(int requestId, String text) {
+        byte[] body = utf8(text);
+        return frame(ERROR, requestId, body.length).put(body).flip();
+    }
+
+    @Override
+    public ByteBuffer ping() {
+        return frame(HEARTBEAT, 0, 0).flip();
+    }
+
+    @Override
+    public ByteBuffer pong(int requestId) {
+        return frame(PONG, requestId, 0).flip();
+    }
+
+    private static ByteBuffer frame(byte type, int requestId, int payloadBytes) {
+        return ByteBuffer.allocate(4 + HEADER_BYTES + payloadBytes)
+                .putInt(HEADER_BYTES + payloadBytes).put(type).putInt(requestId);
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] name16(String name) {
+        byte[] bytes = utf8(name == null ? "" : name);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("name longer than 65535 bytes");
+        }
+        return bytes;
+    }
+
+    // Decoding, on a frame positioned just past its length field. Frames are heap buffers.
+
+    static String readName(ByteBuffer frame) {
+        int length = frame.getShort() & 0xFFFF;
+        return readString(frame, length);
+    }
+
+    static String readRest(ByteBuffer frame) {
+        return readString(frame, frame.remaining());
+    }
+
+    private static String readString(ByteBuffer frame, int length) {
+        String text = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return text;
+    }
+
+    // Highest version offered by a hello line, or 0 if the line is not a hello.
+    static int helloVersion(ByteBuffer line) {
+        int length = HELLO.length();
+        if (line.remaining() <= length) {
+            return 0;
+        }
+        int start = line.position();
+        for (int i = 0; i < length; i++) {
+            if (line.get(start + i) != HELLO.charAt(i)) {
+                return 0;
+            }
+        }
+        int version = 0;
+        for (int i = start + length; i < line.limit(); i++) {
+            int digit = line.get(i) - '0';
+            if (digit < 0 || digit > 9 || version > 1000) {
+                return 0;
+            }
+            version = version * 10 + digit;
+        }
+        return version;
+    }
+
+    static ByteBuffer helloAck(int version) {
+        return ByteBuffer.wrap((HELLO + version + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -7,8 +7,16 @@ import javax.swing.text.Style;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.StyledDocument;
 import java.awt.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ChatClient {
      static final String SERVER_ADDRESS = "localhost";
@@ -58,6 +66,24 @@ class ChatClientWindow extends JFrame {
     private int selectedFriendId = -1;
     private JButton logoutButton;
 
+    // History arrives a page at a time, newest message first.
+    private static final int HISTORY_PAGE_SIZE = 50;
+    // "sender: text yyyy-MM-dd HH:mm:ss.fr", the format of rows inside a history reply.
+    private static final Pattern HISTORY_ROW = Pattern.compile("(.*) (\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}(?:\\.\\d+)?)r", Pattern.DOTALL);
+    private JButton olderButton;
+    private long olderCursor;
+    private boolean inHistoryPage;
+
+    // Binary protocol (see BinaryWireFormat on the server), used when the server accepts the hello.
+    // Version 2 is the one with heartbeats, which this client answers.
+    private static final String BINARY_HELLO = "\u0001CHAT-BINARY ";
+    private static final int BINARY_VERSION = 2;
+    private static final DateTimeFormatter HISTORY_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private boolean binary;
+    private transient DataOutputStream frameOut;
+    private int nextRequestId;
+    private int myUserId;
+
     public ChatClientWindow(String username) {
         setTitle("Chat");
         setSize(600, 600);
@@ -69,6 +95,13 @@ class ChatClientWindow extends JFrame {
         chatArea.setLayout(new BoxLayout(chatArea, BoxLayout.Y_AXIS));
         JScrollPane chatScrollPane = new JScrollPane(chatArea);
 
+        olderButton = new JButton("Load older messages");
+        olderButton.setEnabled(false);
+        olderButton.addActionListener(e -> loadOlderMessages());
+        JPanel chatPanel = new JPanel(new BorderLayout());
+        chatPanel.add(olderButton, BorderLayout.NORTH);
+        chatPanel.add(chatScrollPane, BorderLayout.CENTER);
+
         JLabel welcomeLabel = new JLabel("Welcome, " + username + "!", SwingConstants.CENTER);
         welcomeLabel.setFont(new Font("Arial", Font.BOLD, 18));
         welcomeLabel.setForeground(new Color(0, 102, 204));
@@ -146,7 +179,7 @@ class ChatClientWindow extends JFrame {
         friendsPanel.setBackground(new Color(240, 248, 255));
         JScrollPane friendsScrollPane = new JScrollPane(friendsPanel);
 
-        JSplitPane splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, friendsScrollPane, chatScrollPane);
+        JSplitPane splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, friendsScrollPane, chatPanel);
         splitPane.setDividerLocation(200);
         logoutButton = new JButton("Logout");
         logoutButton.setPreferredSize(new Dimension(100, 30)); // Optional: Set the size of the logout button
@@ -171,33 +204,54 @@ class ChatClientWindow extends JFrame {
 
     private void connectToServer(String username) {
         try {
+            if (connectBinary(username)) {
+                return;
+            }
+            // The server doesn't speak frames: reconnect and use lines.
             socket = new Socket(ChatClient.SERVER_ADDRESS, ChatClient.SERVER_PORT);
             out = new PrintWriter(socket.getOutputStream(), true);
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
             out.println(username);
+            // Tells the server this client answers its pings, so a dead connection gets reaped.
+            out.println("PING");
 
             // Listen for server messages
             new Thread(() -> {
                 try {
                     String serverResponse;
                     while ((serverResponse = in.readLine()) != null) {
-                        if (serverResponse.startsWith("Friends List:")) {
+                        if (serverResponse.equals("PING")) {
+                            out.println("PONG");
+                        } else if (serverResponse.equals("PONG")) {
+                            // Answers our own PING.
+                        } else if (serverResponse.startsWith("Friends List:")) {
                             loadFriendsList();
                         } else if (serverResponse.equals("ChatHistoryStart")) {
                             chatArea.removeAll(); // Clear previous messages
                             chatArea.revalidate();
                             chatArea.repaint();
-                        } else if (serverResponse.equals("ChatHistoryEnd")) {
-                            // End of chat history
+                            inHistoryPage = true;
+                        } else if (serverResponse.equals("OfflineMessagesStart")) {
+                            inHistoryPage = true; // Missed messages, formatted like history rows
+                        } else if (serverResponse.equals("OfflineMessagesEnd")) {
+                            inHistoryPage = false;
+                        } else if (serverResponse.equals("ChatHistoryMore")) {
+                            inHistoryPage = true; // An older page goes above what is shown
+                        } else if (serverResponse.startsWith("ChatHistoryEnd")) {
+                            // End of chat history; the cursor for the next older page follows the colon
+                            inHistoryPage = false;
+                            int colon = serverResponse.indexOf(':');
+                            olderCursor = colon > 0 ? Long.parseLong(serverResponse.substring(colon + 1)) : 0;
+                            olderButton.setEnabled(olderCursor > 0);
                         } else if (serverResponse.startsWith("You")) {
-                            if(serverResponse.endsWith("r"))
+                            if(isHistoryRow(serverResponse))
                                 addMessage(serverResponse, true,true);
                             else
                                 addMessage(serverResponse, true,false);
                             // Add received message
                         } else {
-                            if(serverResponse.endsWith("r"))
+                            if(isHistoryRow(serverResponse))
                                 addMessage(serverResponse, false,true);
                             else
                                 addMessage(serverResponse, false,false); // Fallback for other messages
@@ -214,6 +268,136 @@ class ChatClientWindow extends JFrame {
         }
     }
 
+    // Offers the binary protocol; false if the server answered anything but the acknowledgement.
+    private boolean connectBinary(String username) throws IOException {
+        socket = new Socket(ChatClient.SERVER_ADDRESS, ChatClient.SERVER_PORT);
+        frameOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        frameOut.write((BINARY_HELLO + BINARY_VERSION + "\n").getBytes(StandardCharsets.US_ASCII));
+        frameOut.flush();
+
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        int b;
+        while ((b = frameIn.read()) >= 0 && b != '\n') {
+            reply.write(b);
+        }
+        if (!reply.toString(StandardCharsets.UTF_8).startsWith(BINARY_HELLO)) {
+            socket.close();
+            return false;
+        }
+        binary = true;
+        writeFrame(FrameType.LOGIN, username.getBytes(StandardCharsets.UTF_8));
+        new Thread(() -> readFrames(frameIn)).start();
+        return true;
+    }
+
+    private void readFrames(DataInputStream frameIn) {
+        try {
+            while (true) {
+                ByteBuffer frame = ByteBuffer.allocate(frameIn.readInt());
+                frameIn.readFully(frame.array());
+                byte type = frame.get();
+                frame.getInt(); // requestId; replies arrive in request order, so it isn't needed here
+                switch (type) {
+                    case FrameType.LOGIN_OK -> myUserId = frame.getInt();
+                    case FrameType.FRIENDS -> {
+                        friendsPanel.removeAll();
+                        int count = frame.getInt();
+                        for (int i = 0; i < count; i++) {
+                            int friendId = frame.getInt();
+                            addFriendButton(friendId, readName(frame));
+                        }
+                        friendsPanel.revalidate();
+                        friendsPanel.repaint();
+                    }
+                    case FrameType.MESSAGE -> {
+                        frame.getInt();
+                        String sender = readName(frame);
+                        addMessage(sender + ": " + readRest(frame), false, false);
+                    }
+                    case FrameType.SENT -> {
+                        frame.getInt();
+                        boolean offline = frame.get() != 0;
+                        addMessage("You:" + readRest(frame), true, false);
+                        if (offline) {
+                            addMessage("Message sent (recipient offline).", false, false);
+                        }
+                    }
+                    case FrameType.HISTORY_START -> {
+                        frame.getInt();
+                        if (frame.get() != 0) {
+                            chatArea.removeAll(); // Clear previous messages
+                            chatArea.revalidate();
+                            chatArea.repaint();
+                        }
+                        inHistoryPage = true;
+                    }
+                    case FrameType.HISTORY_ROW -> {
+                        frame.getLong();
+                        int senderId = frame.getInt();
+                        long time = frame.getLong();
+                        String sender = readName(frame);
+                        boolean mine = senderId == myUserId;
+                        String when = HISTORY_TIME.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()));
+                        addBubble((mine ? "You" : sender) + ": " + readRest(frame), when, mine, true);
+                    }
+                    case FrameType.HISTORY_END -> {
+                        inHistoryPage = false;
+                        olderCursor = frame.getLong();
+                        olderButton.setEnabled(olderCursor > 0);
+                    }
+                    case FrameType.OFFLINE_MESSAGES -> showOfflineMessages(frame);
+                    case FrameType.ERROR -> addMessage(readRest(frame), false, false);
+                    case FrameType.HEARTBEAT -> writeFrame(FrameType.HEARTBEAT_ACK, new byte[0]);
+                    case FrameType.PONG -> {
+                    }
+                    default -> System.out.println("Unknown frame type " + type);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Exception:logout");
+        }
+    }
+
+    // Missed messages, newest first; each conversation is acknowledged up to its newest line.
+    private void showOfflineMessages(ByteBuffer frame) throws IOException {
+        Map<Integer, Long> newest = new HashMap<>();
+        int count = frame.getInt();
+        for (int i = 0; i < count; i++) {
+            long msgId = frame.getLong();
+            int senderId = frame.getInt();
+            long time = frame.getLong();
+            String sender = readName(frame);
+            byte[] text = new byte[frame.getInt()];
+            frame.get(text);
+            String when = HISTORY_TIME.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()));
+            addBubble(sender + ": " + new String(text, StandardCharsets.UTF_8), when, false, true);
+            newest.merge(senderId, msgId, Math::max);
+        }
+        for (Map.Entry<Integer, Long> peer : newest.entrySet()) {
+            writeFrame(FrameType.ACK, ByteBuffer.allocate(12).putInt(peer.getKey()).putLong(peer.getValue()).array());
+        }
+    }
+
+    private static String readName(ByteBuffer frame) {
+        int length = frame.getShort() & 0xFFFF;
+        String name = new String(frame.array(), frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return name;
+    }
+
+    private static String readRest(ByteBuffer frame) {
+        return new String(frame.array(), frame.position(), frame.remaining(), StandardCharsets.UTF_8);
+    }
+
+    private synchronized void writeFrame(byte type, byte[] payload) throws IOException {
+        frameOut.writeInt(5 + payload.length);
+        frameOut.writeByte(type);
+        frameOut.writeInt(++nextRequestId);
+        frameOut.write(payload);
+        frameOut.flush();
+    }
+
     private void loadFriendsList() {
         try {
             String line;
@@ -225,61 +409,100 @@ class ChatClientWindow extends JFrame {
 
                 int friendId = Integer.parseInt(parts[0].trim());
                 String friendName = parts[1].trim();
+                addFriendButton(friendId, friendName);
+            }
+            friendsPanel.revalidate();
+            friendsPanel.repaint();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                /*JButton friendButton = new JButton(friendName);
-                Border border=BorderFactory.createLineBorder(Color.WHITE);
-                friendButton.setBorder(border);
-                friendButton.setBackground(Color.BLUE);
-                friendButton.setForeground(Color.WHITE);
-                friendButton.setMargin(new Insets(10,10,10,10));
-                friendButton.addActionListener(e -> selectFriend(friendId));
-                friendsPanel.add(friendButton);*/
-                friendsPanel.setLayout(new BoxLayout(friendsPanel, BoxLayout.Y_AXIS)); // Vertical layout
-
-                JButton friendButton = new JButton(friendName);
-
-// Set the maximum size to ensure the button stretches horizontally
-                friendButton.setMaximumSize(new Dimension(100, 40)); // Full width, with height 40
-
-// Add a border with padding for better aesthetics
-                Border border = BorderFactory.createCompoundBorder(
-                        BorderFactory.createLineBorder(new Color(51, 102, 255,200), 2), // Border color (darker blue)
-                        BorderFactory.createEmptyBorder(5, 10, 5, 10) // Inner padding
-                );
-                friendButton.setBorder(border);
+    private void addFriendButton(int friendId, String friendName) {
+        /*JButton friendButton = new JButton(friendName);
+        Border border=BorderFactory.createLineBorder(Color.WHITE);
+        friendButton.setBorder(border);
+        friendButton.setBackground(Color.BLUE);
+        friendButton.setForeground(Color.WHITE);
+        friendButton.setMargin(new Insets(10,10,10,10));
+        friendButton.addActionListener(e -> selectFriend(friendId));
+        friendsPanel.add(friendButton);*/
+        friendsPanel.setLayout(new BoxLayout(friendsPanel, BoxLayout.Y_AXIS)); // Vertical layout
+
+        JButton friendButton = new JButton(friendName);
+
+        // Set the maximum size to ensure the button stretches horizontally
+        friendButton.setMaximumSize(new Dimension(100, 40)); // Full width, with height 40
+
+        // Add a border with padding for better aesthetics
+        Border border = BorderFactory.createCompoundBorder(
+                BorderFactory.createLineBorder(new Color(51, 102, 255,200), 2), // Border color (darker blue)
+                BorderFactory.createEmptyBorder(5, 10, 5, 10) // Inner padding
+        );
+        friendButton.setBorder(border);
 
-// Background and foreground colors
-                friendButton.setBackground(new Color(0, 153, 255,128)); // Bright cyan for contrast
-                friendButton.setForeground(Color.WHITE);
+        // Background and foreground colors
+        friendButton.setBackground(new Color(0, 153, 255,128)); // Bright cyan for contrast
+        friendButton.setForeground(Color.WHITE);
 
-// Font customization
-                friendButton.setFont(new Font("Arial", Font.BOLD, 16)); // Bold Arial font with size 16
+        // Font customization
+        friendButton.setFont(new Font("Arial", Font.BOLD, 16)); // Bold Arial font with size 16
 
-// Add action listener for friend selection
-                friendButton.addActionListener(e -> selectFriend(friendId));
+        // Add action listener for friend selection
+        friendButton.addActionListener(e -> selectFriend(friendId));
 
-// Add spacing between buttons
-                friendsPanel.add(Box.createRigidArea(new Dimension(0, 10))); // Space between buttons
-                friendsPanel.add(friendButton);
+        // Add spacing between buttons
+        friendsPanel.add(Box.createRigidArea(new Dimension(0, 10))); // Space between buttons
+        friendsPanel.add(friendButton);
+    }
 
+    private void selectFriend(int friendId) {
+        selectedFriendId = friendId;
+        olderCursor = 0;
+        olderButton.setEnabled(false);
+        if (binary) {
+            requestHistory(friendId, Long.MAX_VALUE);
+        } else {
+            out.println("CHAT_HISTORY:" + friendId + ":" + HISTORY_PAGE_SIZE);
+        }
+    }
 
+    private void loadOlderMessages() {
+        if (selectedFriendId != -1 && olderCursor > 0) {
+            olderButton.setEnabled(false);
+            if (binary) {
+                requestHistory(selectedFriendId, olderCursor);
+            } else {
+                out.println("CHAT_HISTORY:" + selectedFriendId + ":" + HISTORY_PAGE_SIZE + ":" + olderCursor);
             }
-            friendsPanel.revalidate();
-            friendsPanel.repaint();
+        }
+    }
+
+    private void requestHistory(int friendId, long before) {
+        try {
+            writeFrame(FrameType.HISTORY, ByteBuffer.allocate(16).putInt(friendId).putInt(HISTORY_PAGE_SIZE).putLong(before).array());
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void selectFriend(int friendId) {
-        selectedFriendId = friendId;
-        out.println("CHAT_HISTORY:" + friendId);
+    private boolean isHistoryRow(String line) {
+        return inHistoryPage && HISTORY_ROW.matcher(line).matches();
     }
 
     private void sendMessage() {
         String message = messageField.getText().trim();
         if (!message.isEmpty() && selectedFriendId != -1) {
-            out.println(selectedFriendId + ":" + message);
+            if (binary) {
+                byte[] text = message.getBytes(StandardCharsets.UTF_8);
+                try {
+                    writeFrame(FrameType.SEND, ByteBuffer.allocate(4 + text.length).putInt(selectedFriendId).put(text).array());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            } else {
+                out.println(selectedFriendId + ":" + message);
+            }
             messageField.setText("");
         }
     }
@@ -323,28 +546,26 @@ class ChatClientWindow extends JFrame {
        }
 
        // Create a JPanel for the message bubble
-       JPanel messagePanel = new JPanel();
-       messagePanel.setLayout(new BorderLayout());
-       messagePanel.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
-       messagePanel.setAlignmentX(Component.LEFT_ALIGNMENT);
-       JLabel messageLabel;
-       if(!isRetrived) {// Ensure proper alignment
-           LocalDateTime currentTime = LocalDateTime.now();
-
+       if(!isRetrived) {
            // Format the date and time
            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-           String formattedDateTime = currentTime.format(formatter);
-
-           // Create a JLabel for the message
-           messageLabel = new JLabel("<html><body style='width: 250px;'>" + message + "<br>"+formattedDateTime+"</body></html>");
-           messageLabel.setOpaque(true);
+           addBubble(message, LocalDateTime.now().format(formatter), isSender, false);
        }
        else{
-           message=message.substring(0,message.length()-1);
-           String[] messages=message.split("2024");
-           messageLabel = new JLabel("<html><body style='width: 250px;'>" + messages[0] +"<br>"+"2024"+messages[1]+"</body></html>");
-           messageLabel.setOpaque(true);
+           Matcher row = HISTORY_ROW.matcher(message);
+           row.matches();
+           addBubble(row.group(1), row.group(2), isSender, true);
        }
+   }
+
+   private void addBubble(String message, String time, boolean isSender, boolean isRetrived) {
+       JPanel messagePanel = new JPanel();
+       messagePanel.setLayout(new BorderLayout());
+       messagePanel.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
+       messagePanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+       // Create a JLabel for the message
+       JLabel messageLabel = new JLabel("<html><body style='width: 250px;'>" + message + "<br>" + time + "</body></html>");
+       messageLabel.setOpaque(true);
 
        // Set alignment and color based on sender or receiver
        if (isSender) {
@@ -357,19 +578,31 @@ class ChatClientWindow extends JFrame {
 
        messageLabel.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
 
-       // Add the message panel to the chat area
-       chatArea.add(messagePanel);
-       chatArea.add(Box.createRigidArea(new Dimension(0, 10))); // Add spacing between messages
+       // History rows arrive newest first, so each one goes above the ones already shown
+       if (isRetrived) {
+           chatArea.add(Box.createRigidArea(new Dimension(0, 10)), 0);
+           chatArea.add(messagePanel, 0);
+       } else {
+           // Add the message panel to the chat area
+           chatArea.add(messagePanel);
+           chatArea.add(Box.createRigidArea(new Dimension(0, 10))); // Add spacing between messages
+       }
        chatArea.revalidate();
        chatArea.repaint();
 
-       // Scroll to the bottom
-       JScrollBar vertical = ((JScrollPane) chatArea.getParent().getParent()).getVerticalScrollBar();
-       vertical.setValue(vertical.getMaximum());
+       // Scroll to the bottom, unless an older page is being put on top
+       if (olderCursor == 0 || !isRetrived) {
+           JScrollBar vertical = ((JScrollPane) chatArea.getParent().getParent()).getVerticalScrollBar();
+           vertical.setValue(vertical.getMaximum());
+       }
    }
     private void logout() {
         try {
-            out.println("LOGOUT"); // Notify the server
+            if (binary) {
+                writeFrame(FrameType.LOGOUT, new byte[0]);
+            } else {
+                out.println("LOGOUT"); // Notify the server
+            }
             socket.close(); // Close the connection
             this.dispose(); // Close the GUI
             System.out.println("Logged out successfully.");
@@ -378,4 +611,12 @@ class ChatClientWindow extends JFrame {
             System.out.println("Error during logout.");
         }
     }
+
+    // Frame types of the binary protocol.
+    private static final class FrameType {
+        static final byte LOGIN = 1, SEND = 2, HISTORY = 3, LOGOUT = 4, ACK = 8, HEARTBEAT_ACK = 11;
+        static final byte LOGIN_OK = 65, FRIENDS = 66, MESSAGE = 67, SENT = 68,
+                HISTORY_START = 69, HISTORY_ROW = 70, HISTORY_END = 71, OFFLINE_MESSAGES = 75,
+                HEARTBEAT = 77, PONG = 78, ERROR = 127;
+    }
 }
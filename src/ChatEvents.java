@@ -0,0 +1,123 @@
+import jdk.jfr.*;
+
+// Java Flight Recorder events for the chat lifecycle, under the "Chat" category, so a
+// recording shows what the server was doing next to GC, locks and socket I/O.
+//
+// Call sites create an event, begin() it, and fill in and commit() it only if
+// shouldCommit(). Without a recording that enables them an event is never registered
+// as active: shouldCommit() is a constant false once compiled and the allocation is
+// removed by escape analysis, so the disabled cost is nothing.
+//
+//   java -XX:StartFlightRecording=filename=chat.jfr,settings=profile ... ChatServer
+//   jfr print --categories Chat chat.jfr
+final class ChatEvents {
+    private ChatEvents() {
+    }
+
+    @Name("chat.Login")
+    @Label("Login")
+    @Category("Chat")
+    @Description("Username lookup and login reply")
+    static final class Login extends Event {
+        @Label("User Id")
+        int userId;
+        @Label("Username")
+        String username;
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("chat.MessageReceived")
+    @Label("Message Received")
+    @Category("Chat")
+    @Description("A 1:1 chat line handled on its sender's connection: queued for the store and, unless durability is sync, routed")
+    static final class MessageReceived extends Event {
+        @Label("Sender Id")
+        int senderId;
+        @Label("Recipient Id")
+        int recipientId;
+        @Label("Text Length")
+        int length;
+    }
+
+    @Name("chat.MessagesPersisted")
+    @Label("Messages Persisted")
+    @Category("Chat")
+    @Description("One group-commit batch written to the message store")
+    static final class MessagesPersisted extends Event {
+        @Label("Lines")
+        int lines;
+        @Label("Text Length")
+        long length;
+        @Label("First Message Id")
+        long firstMsgId;
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("chat.MessageRouted")
+    @Label("Message Routed")
+    @Category("Chat")
+    @Description("A chat line encoded and queued for every connection of its recipient and its sender")
+    static final class MessageRouted extends Event {
+        @Label("Sender Id")
+        int senderId;
+        @Label("Recipient Id")
+        int recipientId;
+        @Label("Recipient Connections")
+        int connections;
+        @Label("Frame Size")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("chat.MessagesDelivered")
+    @Label("Messages Delivered")
+    @Category("Chat")
+    @Description("One outbound flush to a connection")
+    static final class MessagesDelivered extends Event {
+        @Label("User Id")
+        int userId;
+        @Label("Frames")
+        int frames;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+        @Label("Oldest Line Latency")
+        @Description("From reading the oldest chat line in the flush off its sender's connection until now")
+        @Timespan
+        long latency;
+    }
+
+    @Name("chat.HistoryQuery")
+    @Label("History Query")
+    @Category("Chat")
+    @Description("A chat history request, whole conversation or one page")
+    static final class HistoryQuery extends Event {
+        @Label("User Id")
+        int userId;
+        @Label("Peer Id")
+        int peerId;
+        @Label("Page Size")
+        @Description("0 for the whole conversation")
+        int pageSize;
+        @Label("Before Message Id")
+        long before;
+        @Label("Rows")
+        int rows;
+    }
+
+    @Name("chat.SlowConsumer")
+    @Label("Slow Consumer")
+    @Category("Chat")
+    @Description("A connection's outbound queue was full: its own reply waited for room, or a line for it was handled by the slow-consumer policy")
+    static final class SlowConsumer extends Event {
+        @Label("User Id")
+        int userId;
+        @Label("Queued")
+        int queued;
+        @Label("Action")
+        @Description("wait, timeout, drop, spill or disconnect")
+        String action;
+    }
+}
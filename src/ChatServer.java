@@ -1,212 +1,221 @@
 import java.io.*;
 import java.net.*;
-import java.sql.*;
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ChatServer {
-    private static final int PORT = 1234;
-    private static Map<String, ClientHandler> onlineUsers = new ConcurrentHashMap<>();
+    static final RoutingTable onlineUsers = new RoutingTable(ServerConfig.EXPECTED_USERS);
+    // Idle checks for every connection, whatever the transport.
+    static final TimingWheel timers = new TimingWheel("timers", ServerConfig.TIMER_TICK_MILLIS);
+    // Drains the outbound queues of blocking-mode sessions; a writer only exists while a queue has lines.
+    private static ExecutorService writers;
 
     public static void main(String[] args) {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server is running and waiting for connections...");
+        String mode = args.length > 0 ? args[0] : ServerConfig.MODE;
+        ChatStats.startReporter(ServerConfig.STATS_INTERVAL_SECONDS);
+        if (!Storage.start()) {
+            return;
+        }
+        Metrics.start();
+        try {
+            Cluster.start();
+            if (mode.equals("nio")) {
+                new NioChatServer(ServerConfig.PORT).run();
+            } else {
+                serveBlocking(ServerConfig.PORT, mode.equals("virtual"));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void serveBlocking(int port, boolean virtualThreads) throws IOException {
+        // Virtual handlers park instead of holding a carrier while blocked in readLine or JDBC,
+        // so every lock on those paths has to be a j.u.c lock rather than a monitor.
+        Thread.Builder threads = virtualThreads ? Thread.ofVirtual().name("client-", 0) : Thread.ofPlatform().name("client-", 0);
+        writers = virtualThreads
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("writer-", 0).factory())
+                : Executors.newCachedThreadPool(Thread.ofPlatform().name("writer-", 0).daemon().factory());
+
+        try (ServerSocket serverSocket = new ServerSocket(port, ServerConfig.ACCEPT_BACKLOG)) {
+            System.out.println("Server is running and waiting for connections" + (virtualThreads ? " (virtual threads)..." : "..."));
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket);
+                if (ServerConfig.LOG_CONNECTIONS) {
+                    System.out.println("New client connected: " + clientSocket);
+                }
 
-                ClientHandler clientHandler = new ClientHandler(clientSocket);
-                new Thread(clientHandler).start();
+                try {
+                    ClientHandler clientHandler = new ClientHandler(clientSocket);
+                    threads.start(clientHandler);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    clientSocket.close();
+                }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
-    private static class ClientHandler implements Runnable {
-        private Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
-        private String username;
-        private int userId;
+    private static class ClientHandler extends ChatSession implements Runnable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final DataInputStream in;
+        // Reused for every line or frame; sessions only read it while handling the input.
+        private byte[] inputBuffer = new byte[256];
+        // Writer side only.
+        private byte[] copyBuffer;
 
-        public ClientHandler(Socket socket) {
+        public ClientHandler(Socket socket) throws IOException {
             this.socket = socket;
+            socket.setKeepAlive(true);
+
+            // Set up I/O streams
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
         }
 
         @Override
         public void run() {
             try {
-                // Set up I/O streams
-                out = new PrintWriter(socket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-                // User authentication
-                if (!authenticateUser()) {
-                    closeConnection();
+                watchIdle();
+                // The first line is either the username or the binary hello.
+                ByteBuffer first = readLine();
+                if (first == null) {
+                    return;
+                }
+                boolean binary = negotiate(first);
+                if (!binary && !receive(first)) {
                     return;
                 }
-
-                // Add user to online users
-                onlineUsers.put(username, this);
-                System.out.println(username + " is online.");
-
-                // Notify the client of their friends
-                sendFriendsList();
 
                 // Handle messages
-                String input;
-                while ((input = in.readLine()) != null) {
-                    processMessage(input);
+                ByteBuffer input;
+                while ((input = binary ? readFrame() : readLine()) != null) {
+                    if (!receive(input)) {
+                        return;
+                    }
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                // A socket closed under us by abortConnection is expected.
+                if (!closed.get()) {
+                    e.printStackTrace();
+                }
             } finally {
                 closeConnection();
             }
         }
 
-        private boolean authenticateUser() throws IOException {
-
-            username = in.readLine();
-
-            try (Connection conn = DatabaseConnection.getConnection()) {
-                String query = "SELECT id FROM users WHERE username = ?";
-                PreparedStatement stmt = conn.prepareStatement(query);
-                stmt.setString(1, username);
-                ResultSet rs = stmt.executeQuery();
-
-                if (rs.next()) {
-                    userId = rs.getInt("id");
-                    out.println("Login successful! Welcome "+username);
-                    return true;
-                } else {
-                    out.println("Username not found. Connection closed.");
-                    return false;
+        // Bytes up to the next \n (or \r\n), or null at end of stream.
+        private ByteBuffer readLine() throws IOException {
+            int length = 0;
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    return length == 0 ? null : ByteBuffer.wrap(inputBuffer, 0, length);
                 }
-            } catch (SQLException e) {
-                e.printStackTrace();
-                out.println("Database error. Connection closed.");
-                return false;
-            }
-        }
-
-        private void sendFriendsList() {
-            try (Connection conn = DatabaseConnection.getConnection()) {
-                String query = """
-                        SELECT users.id, users.username
-                        FROM user_friends
-                        JOIN users ON user_friends.friend_id = users.id
-                        WHERE user_friends.user_id = ?;
-                        """;
-                PreparedStatement stmt = conn.prepareStatement(query);
-                stmt.setInt(1, userId);
-                ResultSet rs = stmt.executeQuery();
-
-                out.println("Friends List:");
-                while (rs.next()) {
-                    out.println(rs.getInt("id") + ": " + rs.getString("username"));
+                // Room for MAX_LINE_BYTES and the \r of a \r\n, which is cut off below.
+                if (length >= ServerConfig.MAX_LINE_BYTES && (length > ServerConfig.MAX_LINE_BYTES || b != '\r')) {
+                    throw new IOException("Line longer than " + ServerConfig.MAX_LINE_BYTES + " bytes from " + socket.getRemoteSocketAddress());
                 }
-            } catch (SQLException e) {
-                e.printStackTrace();
-                out.println("Error retrieving friends list.");
-            }
-        }
-        private void sendChatHistory(int recipientId) {
-            try (Connection conn = DatabaseConnection.getConnection()) {
-                String query = """
-                                SELECT messages.sender_id, messages.message, messages.msg_id, users.username AS sender_name,messages.timestamp 
-                                FROM messages
-                                JOIN users ON messages.sender_id = users.id
-                                WHERE (messages.sender_id = ? AND messages.receiver_id = ?)
-                                OR (messages.sender_id = ? AND messages.receiver_id = ?)
-                                ORDER BY messages.msg_id ASC;
-                """;
-                PreparedStatement stmt = conn.prepareStatement(query);
-                stmt.setInt(1, userId);
-                stmt.setInt(2, recipientId);
-                stmt.setInt(3, recipientId);
-                stmt.setInt(4, userId);
-                ResultSet rs = stmt.executeQuery();
-
-                out.println("ChatHistoryStart");
-                while (rs.next()) {
-                    String sender = rs.getInt("sender_id") == userId ? "You" : rs.getString("sender_name");;
-                    String message = rs.getString("message");
-                    String timestamp=rs.getTimestamp("timestamp").toString();
-                    out.println(sender + ": " + message+" "+timestamp+"r");
+                if (length == inputBuffer.length) {
+                    inputBuffer = Arrays.copyOf(inputBuffer, length * 2);
                 }
-                out.println("ChatHistoryEnd");
-            } catch (SQLException e) {
-                e.printStackTrace();
-                out.println("Error retrieving chat history.");
+                inputBuffer[length++] = (byte) b;
             }
+            if (length > 0 && inputBuffer[length - 1] == '\r') {
+                length--;
+            }
+            return ByteBuffer.wrap(inputBuffer, 0, length);
         }
 
-        // Handle request for chat history
-        private void processMessage(String input) {
+        // One frame without its length field, or null at end of stream.
+        private ByteBuffer readFrame() throws IOException {
+            int length;
             try {
-                if (input.startsWith("CHAT_HISTORY")) {
-                    int recipientId = Integer.parseInt(input.split(":")[1].trim());
-                    sendChatHistory(recipientId);
-                } else {
-                    String[] parts = input.split(":", 2);
-                    if (parts.length < 2) {
-                        out.println("Invalid message format.");
-                        return;
-                    }
-
-                    int recipientId = Integer.parseInt(parts[0].trim());
-                    String message = parts[1].trim();
+                length = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (length < BinaryWireFormat.HEADER_BYTES || length > ServerConfig.MAX_FRAME_BYTES) {
+                throw new IOException("Bad frame length " + length + " from " + socket.getRemoteSocketAddress());
+            }
+            if (length > inputBuffer.length) {
+                inputBuffer = new byte[Math.max(length, inputBuffer.length * 2)];
+            }
+            in.readFully(inputBuffer, 0, length);
+            return ByteBuffer.wrap(inputBuffer, 0, length);
+        }
 
-                    saveMessage(recipientId, message);
+        @Override
+        void scheduleFlush() {
+            writers.execute(this::drainOutbound);
+        }
 
-                    for (ClientHandler client : onlineUsers.values()) {
-                        if (client.userId == recipientId) {
-                            client.out.println(username + ": " + message);
-                            out.println("You:"+message);
-                            return;
+        // Writer thread: copy everything queued into the socket buffer and flush once per batch.
+        // Once the session is closed the writer that empties the queue also closes the socket.
+        private void drainOutbound() {
+            try {
+                do {
+                    ByteBuffer frame;
+                    while ((frame = pollOutbound()) != null) {
+                        if (frame.hasArray()) {
+                            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                        } else {
+                            writeShared(frame);
                         }
                     }
-                    out.println("You" + ": " + message);
-                    out.println("Message sent (recipient offline).");
+                    out.flush();
+                } while (finishFlush());
+                if (closed.get()) {
+                    closeSocket();
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                out.println("Error processing message.");
+            } catch (IOException e) {
+                abortConnection();
             }
         }
 
+        // Room lines are read-only buffers shared by all members; this copy into the
+        // stream buffer is the only one they get here.
+        private void writeShared(ByteBuffer frame) throws IOException {
+            if (copyBuffer == null) {
+                copyBuffer = new byte[8192];
+            }
+            while (frame.hasRemaining()) {
+                int n = Math.min(copyBuffer.length, frame.remaining());
+                frame.get(copyBuffer, 0, n);
+                out.write(copyBuffer, 0, n);
+            }
+        }
 
+        @Override
+        void closeConnection() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            logout();
+            // Let the writer push out the last replies, e.g. a login failure, before the socket goes.
+            flushSoon();
+        }
 
-
-        private void saveMessage(int recipientId, String message) {
-            try (Connection conn = DatabaseConnection.getConnection()) {
-                String query = "INSERT INTO messages (sender_id, receiver_id, message) VALUES (?, ?, ?)";
-                PreparedStatement stmt = conn.prepareStatement(query);
-                stmt.setInt(1, userId);
-                stmt.setInt(2, recipientId);
-                stmt.setString(3, message);
-                stmt.executeUpdate();
-            } catch (SQLException e) {
-                e.printStackTrace();
-                out.println("Error saving message.");
+        @Override
+        void abortConnection() {
+            if (closed.compareAndSet(false, true)) {
+                logout();
             }
+            // Closing the socket is what unblocks a writer stuck on a peer that stopped reading.
+            closeSocket();
         }
 
-        private void closeConnection() {
+        private void closeSocket() {
             try {
-                if (username != null) {
-                    onlineUsers.remove(username);
-                    System.out.println(username + " is offline.");
-                }
-
-                if (socket != null) socket.close();
-                if (in != null) in.close();
-                if (out != null) out.close();
+                socket.close();
             } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                discardOutbound();
             }
         }
 
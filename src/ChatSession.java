@@ -0,0 +1,924 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Chat protocol shared by every transport. A session only has to know how to
+// drain its outbound queue onto the wire and how to tear its own connection down.
+abstract class ChatSession {
+    protected String username;
+    protected int userId;
+    // Switched to binary by the transport when the client opens with the hello.
+    protected volatile WireFormat wire = WireFormat.TEXT;
+    private volatile boolean loggedIn;
+    // Id of the binary request being handled, echoed in its replies.
+    private int requestId;
+    // Left on logout; closes can come from writer threads, hence the concurrent set.
+    private final Set<Room> rooms = ConcurrentHashMap.newKeySet();
+
+    // Every line for this peer goes through a bounded queue drained by a transport
+    // specific writer, so a stalled peer never blocks the thread that produced the line.
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger outboundDepth = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ReentrantLock spaceLock = new ReentrantLock();
+    private final Condition spaceAvailable = spaceLock.newCondition();
+    private volatile boolean producerWaiting;
+    // "spill" policy: lines the queue had no room for, oldest first. While any are parked,
+    // new lines are parked behind them so the peer still gets everything in order. The
+    // deque is guarded by spillLock; the count is also read without it to skip the lock.
+    private final ReentrantLock spillLock = new ReentrantLock();
+    private ArrayDeque<ByteBuffer> spilled;
+    private volatile int spilledCount;
+    protected final AtomicBoolean closed = new AtomicBoolean();
+    // When the line being handled came off the wire, and when the oldest chat line still
+    // waiting in the outbound queue came off its sender's (0: none), for Metrics.delivery.
+    private long receivedNanos;
+    private final AtomicLong oldestUndelivered = new AtomicLong();
+    // Writer side: what the current flush has taken off the queue so far.
+    private int flushFrames;
+    private long flushBytes;
+    // History rows sent for the request being handled.
+    private int historyRows;
+    // Heartbeat: when input last arrived, whether the client answers pings, and the next
+    // idle check on ChatServer.timers. pingedNanos (0: no ping out) is timer thread only.
+    private volatile long lastHeardNanos = System.nanoTime();
+    private volatile boolean heartbeats;
+    private long pingedNanos;
+    private volatile TimingWheel.Timeout idleCheck;
+
+    // Arrange for drainOutbound-style writing on the transport's own writer.
+    abstract void scheduleFlush();
+
+    abstract void closeConnection();
+
+    // Drop a peer that stopped reading. Transports whose writer can block on the
+    // socket override this to close it outright instead of flushing first.
+    void abortConnection() {
+        closeConnection();
+    }
+
+    // A reply to this session's own command. The command is the producer, so it is
+    // simply held back until the writer has made room.
+    void send(ByteBuffer frame) {
+        if (closed.get()) {
+            return;
+        }
+        if (outboundDepth.get() >= ServerConfig.OUTBOUND_LIMIT) {
+            ChatEvents.SlowConsumer event = new ChatEvents.SlowConsumer();
+            event.begin();
+            boolean space = awaitSpace();
+            slowConsumer(event, space ? "wait" : "timeout");
+            if (!space) {
+                System.out.println((username != null ? username : "client") + " stopped reading; closing connection.");
+                ChatStats.slowConsumerDisconnects.increment();
+                abortConnection();
+                return;
+            }
+        }
+        enqueue(frame);
+    }
+
+    // A line produced by someone else's command. The producer must never wait on us,
+    // so a full queue is handled by the slow-consumer policy instead. Returns whether
+    // the line was queued or parked, i.e. whether this connection will be handed it.
+    boolean deliver(ByteBuffer frame) {
+        if (closed.get()) {
+            return false;
+        }
+        if (spilledCount == 0 && outboundDepth.get() < ServerConfig.OUTBOUND_LIMIT) {
+            enqueue(frame);
+            return true;
+        }
+        ChatEvents.SlowConsumer event = new ChatEvents.SlowConsumer();
+        switch (ServerConfig.SLOW_CONSUMER_POLICY) {
+            case "disconnect" -> {
+                slowConsumer(event, "disconnect");
+                ChatStats.slowConsumerDisconnects.increment();
+                abortConnection();
+                return false;
+            }
+            case "spill" -> {
+                return spill(frame, event);
+            }
+            default -> {
+                slowConsumer(event, "drop");
+                ChatStats.outboundDropped.increment();
+                return false;
+            }
+        }
+    }
+
+    private boolean spill(ByteBuffer frame, ChatEvents.SlowConsumer event) {
+        spillLock.lock();
+        try {
+            // The writer may have caught up and taken every parked line since we looked.
+            if (spilledCount == 0 && outboundDepth.get() < ServerConfig.OUTBOUND_LIMIT) {
+                enqueue(frame);
+                return true;
+            }
+            if (spilledCount >= ServerConfig.SPILL_LIMIT) {
+                slowConsumer(event, "drop");
+                ChatStats.outboundDropped.increment();
+                return false;
+            }
+            if (spilled == null) {
+                spilled = new ArrayDeque<>();
+            }
+            spilled.add(frame);
+            spilledCount++;
+            ChatStats.outboundParked.increment();
+            slowConsumer(event, "spill");
+            ChatStats.outboundSpilled.increment();
+            return true;
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    private void slowConsumer(ChatEvents.SlowConsumer event, String action) {
+        if (event.shouldCommit()) {
+            event.userId = userId;
+            event.queued = outboundDepth.get();
+            event.action = action;
+            event.commit();
+        }
+    }
+
+    // A chat line read off its sender's connection at receivedNanos.
+    boolean deliver(ByteBuffer frame, long receivedNanos) {
+        oldestUndelivered.compareAndSet(0, receivedNanos);
+        return deliver(frame);
+    }
+
+    private void enqueue(ByteBuffer frame) {
+        outbound.add(frame);
+        outboundDepth.incrementAndGet();
+        ChatStats.outboundQueued.increment();
+        flushSoon();
+    }
+
+    void flushSoon() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            scheduleFlush();
+        }
+    }
+
+    private boolean awaitSpace() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ServerConfig.OUTBOUND_WAIT_MILLIS);
+        spaceLock.lock();
+        try {
+            producerWaiting = true;
+            while (outboundDepth.get() >= ServerConfig.OUTBOUND_LIMIT) {
+                long remaining = deadline - System.nanoTime();
+                if (closed.get() || remaining <= 0) {
+                    return false;
+                }
+                spaceAvailable.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            producerWaiting = false;
+            spaceLock.unlock();
+        }
+    }
+
+    // Writer side: next line to put on the wire, or null once the queue is empty.
+    ByteBuffer pollOutbound() {
+        ByteBuffer frame = outbound.poll();
+        if (frame == null && spilledCount > 0) {
+            refillFromSpill();
+            frame = outbound.poll();
+        }
+        if (frame != null) {
+            flushFrames++;
+            flushBytes += frame.remaining();
+            outboundDepth.decrementAndGet();
+            ChatStats.outboundQueued.decrement();
+            if (producerWaiting) {
+                spaceLock.lock();
+                try {
+                    spaceAvailable.signal();
+                } finally {
+                    spaceLock.unlock();
+                }
+            }
+        }
+        return frame;
+    }
+
+    // Writer side: called after a batch has been flushed and pollOutbound returned null.
+    // Returns true when more lines raced in and the caller should keep writing.
+    boolean finishFlush() {
+        long oldest = oldestUndelivered.get();
+        long latency = 0;
+        if (oldest != 0 && oldestUndelivered.compareAndSet(oldest, 0)) {
+            latency = System.nanoTime() - oldest;
+            Metrics.delivery.record(latency);
+        }
+        if (flushFrames > 0) {
+            ChatEvents.MessagesDelivered event = new ChatEvents.MessagesDelivered();
+            if (event.shouldCommit()) {
+                event.userId = userId;
+                event.frames = flushFrames;
+                event.bytes = flushBytes;
+                event.latency = latency;
+                event.commit();
+            }
+            flushFrames = 0;
+            flushBytes = 0;
+        }
+        flushScheduled.set(false);
+        return (!outbound.isEmpty() || spilledCount > 0) && flushScheduled.compareAndSet(false, true);
+    }
+
+    // Writer side, once the queue is empty: moves parked lines back into it. A line only
+    // stops counting as parked once it is queued, so deliver() can't slip a newer line
+    // in ahead of it.
+    private void refillFromSpill() {
+        spillLock.lock();
+        try {
+            ByteBuffer parked;
+            while (outboundDepth.get() < ServerConfig.OUTBOUND_LIMIT / 2 && (parked = spilled.peek()) != null) {
+                outbound.add(parked);
+                outboundDepth.incrementAndGet();
+                ChatStats.outboundQueued.increment();
+                spilled.poll();
+                spilledCount--;
+                ChatStats.outboundParked.decrement();
+            }
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    // Forget whatever the peer will never read, keeping the global gauges honest.
+    void discardOutbound() {
+        while (outbound.poll() != null) {
+            outboundDepth.decrementAndGet();
+            ChatStats.outboundQueued.decrement();
+        }
+        if (spilledCount > 0) {
+            spillLock.lock();
+            try {
+                ChatStats.outboundParked.add(-spilledCount);
+                spilled.clear();
+                spilledCount = 0;
+            } finally {
+                spillLock.unlock();
+            }
+        }
+    }
+
+    // Transport side, for the first line of a connection: if it is the binary hello,
+    // acknowledge it and switch this session's replies to frames. Returns true when the
+    // rest of the input is frames.
+    boolean negotiate(ByteBuffer line) {
+        int offered = BinaryWireFormat.helloVersion(line);
+        if (offered < 1) {
+            return false;
+        }
+        wire = WireFormat.BINARY;
+        int version = Math.min(offered, BinaryWireFormat.VERSION);
+        heartbeats = version >= BinaryWireFormat.HEARTBEAT_VERSION;
+        send(BinaryWireFormat.helloAck(version));
+        return true;
+    }
+
+    // One line (without its terminator) or one frame (without its length field), in
+    // arrival order. The buffer is only read during the call. Returns false once the
+    // connection should be closed.
+    boolean receive(ByteBuffer input) {
+        receivedNanos = System.nanoTime();
+        lastHeardNanos = receivedNanos;
+        if (wire == WireFormat.BINARY) {
+            return processFrame(input);
+        }
+        if (!loggedIn) {
+            return login(TextWireFormat.decode(input));
+        }
+        processMessage(input);
+        return true;
+    }
+
+    // Runs the login handshake for the first line a client sends.
+    private boolean login(String name) {
+        if (!authenticateUser(name)) {
+            return false;
+        }
+        loggedIn = true;
+
+        // Add user to online users
+        if (ChatServer.onlineUsers.register(this)) {
+            Cluster.presenceChanged(userId);
+        }
+        if (ServerConfig.LOG_CONNECTIONS) {
+            System.out.println(username + " is online.");
+        }
+
+        // Notify the client of their friends
+        sendFriendsList();
+
+        // Then whatever was stored for them while they were offline.
+        sendOfflineDelta();
+        return true;
+    }
+
+    // Started by the transport once the connection is up; every check reschedules the next.
+    void watchIdle() {
+        if (ServerConfig.HEARTBEAT_IDLE_MILLIS > 0) {
+            idleCheck = ChatServer.timers.schedule(this::checkIdle, ServerConfig.HEARTBEAT_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Timer thread. Input since the last check pushes the deadline out; a silent deadline
+    // sends a ping, and one with the ping still unanswered closes the connection.
+    private void checkIdle() {
+        if (closed.get()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long heard = lastHeardNanos;
+        if (pingedNanos != 0 && heard - pingedNanos > 0) {
+            pingedNanos = 0;
+        }
+        long silentMillis = TimeUnit.NANOSECONDS.toMillis(now - heard);
+        long next;
+        if (silentMillis < ServerConfig.HEARTBEAT_IDLE_MILLIS) {
+            next = ServerConfig.HEARTBEAT_IDLE_MILLIS - silentMillis;
+        } else if (loggedIn && !heartbeats) {
+            next = ServerConfig.HEARTBEAT_IDLE_MILLIS;
+        } else if (loggedIn && pingedNanos == 0) {
+            pingedNanos = now;
+            // A full queue means the peer isn't reading; the ping would change nothing.
+            if (outboundDepth.get() < ServerConfig.OUTBOUND_LIMIT) {
+                enqueue(wire.ping());
+                ChatStats.heartbeatsSent.increment();
+            }
+            next = ServerConfig.HEARTBEAT_TIMEOUT_MILLIS;
+        } else {
+            if (ServerConfig.LOG_CONNECTIONS) {
+                System.out.println((username != null ? username : "client") + " went silent; closing connection.");
+            }
+            ChatStats.idleDisconnects.increment();
+            abortConnection();
+            return;
+        }
+        idleCheck = ChatServer.timers.schedule(this::checkIdle, next, TimeUnit.MILLISECONDS);
+    }
+
+    void logout() {
+        TimingWheel.Timeout check = idleCheck;
+        if (check != null) {
+            check.cancel();
+        }
+        for (Room room : rooms) {
+            RoomRegistry.leave(room, this);
+        }
+        rooms.clear();
+        if (username != null) {
+            if (ChatServer.onlineUsers.unregister(this)) {
+                Cluster.presenceChanged(userId);
+                RateLimiter.release(userId);
+            }
+            if (ServerConfig.LOG_CONNECTIONS) {
+                System.out.println(username + " is offline.");
+            }
+        }
+    }
+
+    private boolean authenticateUser(String name) {
+        username = name;
+        if (username == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        ChatEvents.Login event = new ChatEvents.Login();
+        event.begin();
+        try {
+            int id = Storage.users.userId(username);
+            if (id != UserDirectory.MISSING) {
+                userId = id;
+                send(wire.loginOk(requestId, userId, username));
+                event.userId = id;
+                event.succeeded = true;
+                return true;
+            }
+            send(wire.error(requestId, "Username not found. Connection closed."));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            send(wire.error(requestId, "Database error. Connection closed."));
+        } finally {
+            Metrics.login.recordSince(start);
+            if (event.shouldCommit()) {
+                event.username = name;
+                event.commit();
+            }
+        }
+        username = null;
+        return false;
+    }
+
+    private void sendFriendsList() {
+        long start = System.nanoTime();
+        try {
+            UserDirectory.Friends friends = Storage.users.friends(userId);
+            send(wire.friends(requestId, friends.ids(), friends.names()));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            send(wire.error(requestId, "Error retrieving friends list."));
+        } finally {
+            Metrics.friends.recordSince(start);
+        }
+    }
+
+    // Whatever arrived past the user's acks, newest first as one batch, capped at
+    // SYNC_MAX_MESSAGES; older misses stay reachable through history.
+    private void sendOfflineDelta() {
+        List<StoredMessage> missed = new ArrayList<>();
+        try {
+            for (StoredMessage row : Storage.messages.unacked(userId, ServerConfig.SYNC_MAX_MESSAGES)) {
+                // Delivered live, but the ack is still on its way to the store.
+                if (row.msgId() > AckTracker.unflushed(userId, row.senderId())) {
+                    missed.add(row);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            send(wire.error(requestId, "Error retrieving offline messages."));
+            return;
+        }
+        if (missed.isEmpty()) {
+            return;
+        }
+        send(wire.offlineMessages(requestId, missed, userId));
+        ChatStats.offlineSynced.add(missed.size());
+        if (wire == WireFormat.TEXT) {
+            // Line clients have no way to confirm, so handing the batch over has to count.
+            for (StoredMessage row : missed) {
+                AckTracker.ack(userId, row.senderId(), row.msgId());
+            }
+        }
+    }
+
+    // pageSize 0 asks for the whole conversation.
+    private void history(int peerId, int pageSize, long before) {
+        if (limited(RateLimiter.Command.HISTORY)) {
+            return;
+        }
+        long start = System.nanoTime();
+        ChatEvents.HistoryQuery event = new ChatEvents.HistoryQuery();
+        event.begin();
+        historyRows = 0;
+        if (pageSize == 0) {
+            sendChatHistory(peerId);
+        } else {
+            sendChatHistoryPage(peerId, pageSize, before);
+        }
+        Metrics.history.recordSince(start);
+        if (event.shouldCommit()) {
+            event.userId = userId;
+            event.peerId = peerId;
+            event.pageSize = pageSize;
+            event.before = before;
+            event.rows = historyRows;
+            event.commit();
+        }
+    }
+
+    // Legacy form (CHAT_HISTORY:<id>): the whole conversation, oldest first, as old clients expect.
+    private void sendChatHistory(int recipientId) {
+        List<StoredMessage> cached = ConversationCache.everything(userId, recipientId);
+        if (cached != null) {
+            send(wire.historyStart(requestId, recipientId, true));
+            for (StoredMessage row : cached) {
+                sendHistoryRow(row);
+            }
+            send(wire.historyEnd(requestId, 0, false));
+            return;
+        }
+
+        try {
+            send(wire.historyStart(requestId, recipientId, true));
+            Storage.messages.conversation(userId, recipientId, this::sendHistoryRow);
+            send(wire.historyEnd(requestId, 0, false));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            send(wire.error(requestId, "Error retrieving chat history."));
+        }
+    }
+
+    // Paged form (CHAT_HISTORY:<id>:<pageSize>[:<beforeMsgId>]): the newest pageSize messages
+    // older than the cursor, newest first.
+    // The reply ends with ChatHistoryEnd:<cursor for the next page>, 0 once nothing is left.
+    private void sendChatHistoryPage(int recipientId, int pageSize, long beforeMsgId) {
+        boolean firstPage = beforeMsgId == Long.MAX_VALUE;
+        ConversationCache.Page cached = ConversationCache.page(userId, recipientId, pageSize, beforeMsgId);
+        if (cached != null) {
+            send(wire.historyStart(requestId, recipientId, firstPage));
+            for (StoredMessage row : cached.rows()) {
+                sendHistoryRow(row);
+            }
+            send(wire.historyEnd(requestId, cached.exhausted() ? 0 : cached.rows().get(pageSize - 1).msgId(), true));
+            return;
+        }
+
+        // A first-page miss reads a whole cache window so the following pages can hit.
+        boolean fillCache = firstPage && ConversationCache.enabled();
+        int limit = fillCache ? Math.max(pageSize, ServerConfig.CACHE_MESSAGES_PER_CONVERSATION) : pageSize;
+        try {
+            List<StoredMessage> rows = Storage.messages.page(userId, recipientId, beforeMsgId, limit);
+            send(wire.historyStart(requestId, recipientId, firstPage));
+            for (int i = 0; i < rows.size() && i < pageSize; i++) {
+                sendHistoryRow(rows.get(i));
+            }
+            // Reading past the page tells us for sure whether anything older exists.
+            boolean more = rows.size() > pageSize || (rows.size() == pageSize && limit == pageSize);
+            send(wire.historyEnd(requestId, more ? rows.get(pageSize - 1).msgId() : 0, true));
+            if (fillCache) {
+                ConversationCache.fill(userId, recipientId, rows, rows.size() < limit);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            send(wire.error(requestId, "Error retrieving chat history."));
+        }
+    }
+
+    // Lines of the user's conversations holding every word of the query, newest first,
+    // one page at a time. The index gives msg_ids and peers; the lines themselves come
+    // from the conversation cache or the store, archive included.
+    private void search(String query, int pageSize, long beforeMsgId) {
+        if (limited(RateLimiter.Command.SEARCH)) {
+            return;
+        }
+        if (!SearchIndex.enabled()) {
+            send(wire.error(requestId, "Search is not available."));
+            return;
+        }
+        if (!SearchIndex.ready()) {
+            send(wire.error(requestId, "Search index warming up; try again shortly."));
+            return;
+        }
+        String[] terms = SearchIndex.terms(query);
+        if (terms.length == 0) {
+            send(wire.error(requestId, "Search for at least one word of two or more letters."));
+            return;
+        }
+        long start = System.nanoTime();
+        List<SearchIndex.Hit> hits = SearchIndex.search(userId, terms, beforeMsgId, pageSize + 1);
+        List<StoredMessage> rows = new ArrayList<>(Math.min(pageSize, hits.size()));
+        try {
+            for (int i = 0; i < hits.size() && i < pageSize; i++) {
+                StoredMessage row = searchHit(hits.get(i));
+                if (row != null) {
+                    rows.add(row);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            send(wire.error(requestId, "Error searching chat history."));
+            return;
+        }
+        long next = hits.size() > pageSize ? hits.get(pageSize - 1).msgId() : 0;
+        send(wire.searchResults(requestId, rows, userId, next));
+        Metrics.search.recordSince(start);
+    }
+
+    private StoredMessage searchHit(SearchIndex.Hit hit) throws SQLException {
+        ConversationCache.Page cached = ConversationCache.page(userId, hit.peerId(), 1, hit.msgId() + 1);
+        List<StoredMessage> rows = cached != null ? cached.rows()
+                : Storage.messages.page(userId, hit.peerId(), hit.msgId() + 1, 1);
+        return !rows.isEmpty() && rows.get(0).msgId() == hit.msgId() ? rows.get(0) : null;
+    }
+
+    private void sendHistoryRow(StoredMessage row) {
+        historyRows++;
+        send(wire.historyRow(requestId, row, userId));
+    }
+
+    // Line protocol: CHAT_HISTORY:<id>[:<pageSize>[:<beforeMsgId>]], SEARCH:<query>,
+    // SEARCH_MORE:<beforeMsgId>:<query>, ROOM_JOIN:<room>, ROOM_LEAVE:<room>,
+    // ROOM:<room>:<text> or <recipientId>:<text>.
+    private void processMessage(ByteBuffer line) {
+        try {
+            // The two commands nearly every line is are parsed off the bytes, so only the
+            // text of a chat line becomes a String. Anything they don't fit, malformed
+            // lines included, takes the general path below and gets the same replies as ever.
+            int colon = TextWireFormat.indexOf(line, line.position(), ':');
+            if (colon >= 0) {
+                long recipientId = TextWireFormat.parseNumber(line, line.position(), colon);
+                if (recipientId >= 0 && recipientId <= Integer.MAX_VALUE) {
+                    sendChatMessage((int) recipientId, TextWireFormat.decodeTrimmed(line, colon + 1));
+                    return;
+                }
+                if (TextWireFormat.startsWith(line, CHAT_HISTORY) && historyCommand(line, colon)) {
+                    return;
+                }
+            }
+            processMessage(TextWireFormat.decode(line));
+        } catch (Exception e) {
+            e.printStackTrace();
+            send(wire.error(requestId, "Error processing message."));
+        }
+    }
+
+    private static final byte[] CHAT_HISTORY = "CHAT_HISTORY".getBytes(StandardCharsets.US_ASCII);
+
+    // CHAT_HISTORY:<id>[:<pageSize>[:<beforeMsgId>]] with every field in range, else false.
+    private boolean historyCommand(ByteBuffer line, int colon) {
+        long[] fields = {0, 0, Long.MAX_VALUE};
+        int count = 0;
+        int from = colon + 1;
+        while (count < fields.length && from <= line.limit()) {
+            int to = TextWireFormat.indexOf(line, from, ':');
+            long value = TextWireFormat.parseNumber(line, from, to < 0 ? line.limit() : to);
+            if (value < 0) {
+                return false;
+            }
+            fields[count++] = value;
+            from = to < 0 ? line.limit() + 1 : to + 1;
+        }
+        if (fields[0] > Integer.MAX_VALUE || fields[1] > Integer.MAX_VALUE) {
+            return false;
+        }
+        history((int) fields[0], count < 2 ? 0 : clampPageSize((int) fields[1]), fields[2]);
+        return true;
+    }
+
+    private void processMessage(String input) {
+        try {
+            if (input.equals("PING")) {
+                // A text client that pings understands pings.
+                heartbeats = true;
+                send(wire.pong(requestId));
+            } else if (input.equals("PONG")) {
+                // Arriving was the point.
+            } else if (input.startsWith("ROOM_JOIN:")) {
+                joinRoom(input.substring("ROOM_JOIN:".length()).trim());
+            } else if (input.startsWith("ROOM_LEAVE:")) {
+                leaveRoom(input.substring("ROOM_LEAVE:".length()).trim());
+            } else if (input.startsWith("ROOM:")) {
+                String[] parts = input.split(":", 3);
+                if (parts.length < 3) {
+                    send(wire.error(requestId, "Invalid message format."));
+                    return;
+                }
+                sendRoomMessage(parts[1].trim(), parts[2].trim());
+            } else if (input.startsWith("SEARCH:")) {
+                search(input.substring("SEARCH:".length()), ServerConfig.SEARCH_PAGE_SIZE, Long.MAX_VALUE);
+            } else if (input.startsWith("SEARCH_MORE:")) {
+                String[] parts = input.split(":", 3);
+                if (parts.length < 3) {
+                    send(wire.error(requestId, "Invalid message format."));
+                    return;
+                }
+                search(parts[2], ServerConfig.SEARCH_PAGE_SIZE, Long.parseLong(parts[1].trim()));
+            } else if (input.startsWith("CHAT_HISTORY")) {
+                String[] args = input.split(":");
+                int recipientId = Integer.parseInt(args[1].trim());
+                int pageSize = args.length < 3 ? 0 : clampPageSize(Integer.parseInt(args[2].trim()));
+                long before = args.length > 3 ? Long.parseLong(args[3].trim()) : Long.MAX_VALUE;
+                history(recipientId, pageSize, before);
+            } else {
+                String[] parts = input.split(":", 2);
+                if (parts.length < 2) {
+                    send(wire.error(requestId, "Invalid message format."));
+                    return;
+                }
+                sendChatMessage(Integer.parseInt(parts[0].trim()), parts[1].trim());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            send(wire.error(requestId, "Error processing message."));
+        }
+    }
+
+    // Binary protocol: fields are read at fixed offsets, text is never searched.
+    private boolean processFrame(ByteBuffer frame) {
+        byte type = frame.get();
+        requestId = frame.getInt();
+        if (!loggedIn) {
+            if (type != BinaryWireFormat.LOGIN) {
+                send(wire.error(requestId, "Log in first. Connection closed."));
+                return false;
+            }
+            return login(BinaryWireFormat.readRest(frame));
+        }
+        try {
+            switch (type) {
+                case BinaryWireFormat.SEND -> {
+                    int recipientId = frame.getInt();
+                    sendChatMessage(recipientId, BinaryWireFormat.readRest(frame).trim());
+                }
+                case BinaryWireFormat.HISTORY -> {
+                    int peerId = frame.getInt();
+                    int pageSize = frame.getInt();
+                    long before = frame.getLong();
+                    history(peerId, pageSize == 0 ? 0 : clampPageSize(pageSize), before);
+                }
+                case BinaryWireFormat.SEARCH -> {
+                    int pageSize = frame.getInt();
+                    long before = frame.getLong();
+                    search(BinaryWireFormat.readRest(frame), clampPageSize(pageSize), before);
+                }
+                case BinaryWireFormat.ROOM_JOIN -> joinRoom(BinaryWireFormat.readRest(frame));
+                case BinaryWireFormat.ROOM_LEAVE -> leaveRoom(BinaryWireFormat.readRest(frame));
+                case BinaryWireFormat.ROOM_SEND -> {
+                    String room = BinaryWireFormat.readName(frame);
+                    sendRoomMessage(room, BinaryWireFormat.readRest(frame).trim());
+                }
+                case BinaryWireFormat.ACK -> {
+                    int peerId = frame.getInt();
+                    AckTracker.ack(userId, peerId, frame.getLong());
+                }
+                case BinaryWireFormat.PING -> send(wire.pong(requestId));
+                case BinaryWireFormat.HEARTBEAT_ACK -> {
+                    // Arriving was the point.
+                }
+                case BinaryWireFormat.LOGOUT -> {
+                    return false;
+                }
+                default -> send(wire.error(requestId, "Unknown request type " + type + "."));
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            send(wire.error(requestId, "Error processing message."));
+        }
+        return true;
+    }
+
+    private static int clampPageSize(int pageSize) {
+        return Math.max(1, Math.min(ServerConfig.HISTORY_MAX_PAGE_SIZE, pageSize));
+    }
+
+    // Refuses the command if the user's bucket for it is empty.
+    private boolean limited(RateLimiter.Command command) {
+        if (RateLimiter.tryAcquire(userId, command)) {
+            return false;
+        }
+        send(wire.error(requestId, "Too many " + command.label + " requests; slow down."));
+        return true;
+    }
+
+    private void sendChatMessage(int recipientId, String message) {
+        if (limited(RateLimiter.Command.MESSAGE)) {
+            return;
+        }
+        ChatEvents.MessageReceived event = new ChatEvents.MessageReceived();
+        event.begin();
+        int request = requestId;
+        long received = receivedNanos;
+        if (ServerConfig.SYNC_DURABILITY) {
+            // Nobody, including the sender, sees the line before it is committed.
+            saveMessage(recipientId, message, () -> routeMessage(recipientId, message, request, received, false));
+        } else {
+            boolean accepted = routeMessage(recipientId, message, request, received, true);
+            saveMessage(recipientId, message, () -> accepted);
+        }
+        if (event.shouldCommit()) {
+            event.senderId = userId;
+            event.recipientId = recipientId;
+            event.length = message.length();
+            event.commit();
+        }
+    }
+
+    private void joinRoom(String name) {
+        if (limited(RateLimiter.Command.ROOM)) {
+            return;
+        }
+        if (!Room.validName(name)) {
+            send(wire.error(requestId, "Invalid room name."));
+            return;
+        }
+        Room room = RoomRegistry.join(name, this);
+        if (room == null) {
+            send(wire.error(requestId, "Already in room " + name + "."));
+            return;
+        }
+        rooms.add(room);
+        if (closed.get() && rooms.remove(room)) {
+            // Logged out while joining; logout has already walked the set.
+            RoomRegistry.leave(room, this);
+            return;
+        }
+        send(wire.roomJoined(requestId, name, room.size()));
+    }
+
+    private void leaveRoom(String name) {
+        if (limited(RateLimiter.Command.ROOM)) {
+            return;
+        }
+        Room room = RoomRegistry.get(name);
+        if (room == null || !rooms.remove(room)) {
+            send(wire.error(requestId, "Not in room " + name + "."));
+            return;
+        }
+        RoomRegistry.leave(room, this);
+        send(wire.roomLeft(requestId, name));
+    }
+
+    // Room lines are not persisted; they go to whoever is in the room right now.
+    private void sendRoomMessage(String name, String message) {
+        if (limited(RateLimiter.Command.MESSAGE)) {
+            return;
+        }
+        Room room = RoomRegistry.get(name);
+        if (room == null || !rooms.contains(room)) {
+            send(wire.error(requestId, "Join room " + name + " first."));
+            return;
+        }
+        int delivered = room.broadcast(userId, username, message);
+        ChatStats.roomMessages.increment();
+        ChatStats.roomDeliveries.add(delivered);
+    }
+
+    // onHandlerThread: the sender's own command is running, so its echo may wait for queue space.
+    // Otherwise we are on the persistence thread, which must never block on a peer.
+    // Returns true if a connection of the recipient on this node took the line; being
+    // online is not enough, since a full queue may have dropped it. Connections on other
+    // nodes get it from saveMessage once it has a msg_id.
+    private boolean routeMessage(int recipientId, String message, int request, long receivedNanos, boolean onHandlerThread) {
+        ChatEvents.MessageRouted event = new ChatEvents.MessageRouted();
+        event.begin();
+        // The sender's other clients see the line as their own.
+        for (ChatSession own : ChatServer.onlineUsers.sessions(userId)) {
+            if (own != this) {
+                own.deliver(own.wire.sent(0, recipientId, message, false));
+            }
+        }
+        Cluster.echo(userId, recipientId, message);
+
+        ChatSession[] recipients = ChatServer.onlineUsers.sessions(recipientId);
+        int bytes = 0;
+        boolean accepted = false;
+        for (ChatSession client : recipients) {
+            ByteBuffer frame = client.wire.message(userId, username, message);
+            bytes += frame.remaining();
+            accepted |= client.deliver(frame, receivedNanos);
+        }
+        boolean delivered = recipients.length > 0 || Cluster.isOnline(recipientId);
+        ByteBuffer echo = wire.sent(request, recipientId, message, !delivered);
+        if (onHandlerThread) {
+            send(echo);
+        } else {
+            deliver(echo);
+        }
+        if (event.shouldCommit()) {
+            event.senderId = userId;
+            event.recipientId = recipientId;
+            event.connections = recipients.length;
+            event.bytes = bytes;
+            event.commit();
+        }
+        return accepted;
+    }
+
+    // Hands the line to the group-commit pipeline; onCommitted runs once its batch is durable
+    // and says whether a connection of the recipient on this node took the line, which
+    // acknowledges it for them. Lines it did not take stay past the ack and come back in
+    // the login delta. Then the line goes to the recipient's other nodes, which acknowledge
+    // it the same way for their connections. HotPathBenchmark overrides this so a chat
+    // line can be timed without the store.
+    void saveMessage(int recipientId, String message, BooleanSupplier onCommitted) {
+        int request = requestId;
+        long submitted = System.nanoTime();
+        MessagePersister.submit(userId, recipientId, message, new MessagePersister.Callback() {
+            @Override
+            public void persisted(long msgId) {
+                Metrics.save.recordSince(submitted);
+                // Second precision, like the messages.timestamp column the database fills in.
+                long now = System.currentTimeMillis() / 1000 * 1000;
+                ConversationCache.append(new StoredMessage(msgId, userId, recipientId, username, message, now));
+                SearchIndex.add(msgId, userId, recipientId, message);
+                if (onCommitted.getAsBoolean()) {
+                    AckTracker.delivered(recipientId, userId, msgId);
+                } else if (ChatServer.onlineUsers.isOnline(recipientId)) {
+                    AckTracker.missed(recipientId, userId, msgId);
+                }
+                Cluster.forward(userId, username, recipientId, msgId, message);
+            }
+
+            @Override
+            public void failed(SQLException e) {
+                deliver(wire.error(request, "Error saving message."));
+            }
+        });
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-wide counters. LongAdders keep the hot paths free of contended CAS loops.
+final class ChatStats {
+    static final LongAdder outboundQueued = new LongAdder();
+    static final LongAdder outboundDropped = new LongAdder();
+    static final LongAdder outboundSpilled = new LongAdder();
+    // Gauge: lines parked by the "spill" policy and not yet queued again.
+    static final LongAdder outboundParked = new LongAdder();
+    static final LongAdder slowConsumerDisconnects = new LongAdder();
+    static final LongAdder heartbeatsSent = new LongAdder();
+    static final LongAdder idleDisconnects = new LongAdder();
+    static final LongAdder persistBatches = new LongAdder();
+    static final LongAdder persistedMessages = new LongAdder();
+    static final LongAdder persistFailures = new LongAdder();
+    static final LongAdder historyCacheHits = new LongAdder();
+    static final LongAdder historyCacheMisses = new LongAdder();
+    static final LongAdder historyCacheEvictions = new LongAdder();
+    static final LongAdder userCacheHits = new LongAdder();
+    static final LongAdder userCacheMisses = new LongAdder();
+    static final LongAdder offlineSynced = new LongAdder();
+    static final LongAdder acksFlushed = new LongAdder();
+    static final LongAdder logShipped = new LongAdder();
+    static final LongAdder archivedMessages = new LongAdder();
+    static final LongAdder archiveReads = new LongAdder();
+    static final LongAdder searchIndexed = new LongAdder();
+    static final LongAdder searchQueries = new LongAdder();
+    static final LongAdder roomMessages = new LongAdder();
+    static final LongAdder roomDeliveries = new LongAdder();
+
+    private ChatStats() {
+    }
+
+    static String snapshot() {
+        return "online=" + ChatServer.onlineUsers.onlineUsers()
+                + " outboundQueued=" + outboundQueued.sum()
+                + " outboundDropped=" + outboundDropped.sum()
+                + " outboundSpilled=" + outboundSpilled.sum()
+                + " outboundParked=" + outboundParked.sum()
+                + " slowConsumerDisconnects=" + slowConsumerDisconnects.sum()
+                + " heartbeatsSent=" + heartbeatsSent.sum()
+                + " idleDisconnects=" + idleDisconnects.sum()
+                + " timersPending=" + ChatServer.timers.pending()
+                + " persistBatches=" + persistBatches.sum()
+                + " persistedMessages=" + persistedMessages.sum()
+                + " persistFailures=" + persistFailures.sum()
+                + " historyCacheHits=" + historyCacheHits.sum()
+                + " historyCacheMisses=" + historyCacheMisses.sum()
+                + " historyCacheEvictions=" + historyCacheEvictions.sum()
+                + " userCacheHits=" + userCacheHits.sum()
+                + " userCacheMisses=" + userCacheMisses.sum()
+                + " offlineSynced=" + offlineSynced.sum()
+                + " acksFlushed=" + acksFlushed.sum()
+                + " logShipped=" + logShipped.sum()
+                + " archivedMessages=" + archivedMessages.sum()
+                + " archiveReads=" + archiveReads.sum()
+                + " searchIndexed=" + searchIndexed.sum()
+                + " searchQueries=" + searchQueries.sum()
+                + " " + RateLimiter.snapshot()
+                + " " + Cluster.snapshot()
+                + " " + SearchIndex.snapshot()
+                + " " + UserCache.snapshot()
+                + " " + RoomRegistry.snapshot()
+                + " roomMessages=" + roomMessages.sum()
+                + " roomDeliveries=" + roomDeliveries.sum()
+                + " " + ConversationCache.snapshot()
+                + " " + Storage.snapshot();
+    }
+
+    static void startReporter(int intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stats-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.println("[stats] " + snapshot()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+}
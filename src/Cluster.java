@@ -0,0 +1,437 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+// Cluster mode: users spread over several ChatServer nodes, each a whole server for its
+// own connections, with lines for a user on another node forwarded to that node.
+//
+// Every node lists every other in chat.cluster.nodes and keeps one persistent TCP link
+// to each for what it sends; the peer's link back carries the other direction. A link
+// carries presence, i.e. which users have a connection on the sending node, and the
+// chat lines for them. Presence is replicated rather than looked up: each node holds,
+// per peer, the set of users online there, so routing a line is a set lookup per peer
+// and never a round trip. A link opens with HELLO, then RESET and the sender's whole
+// presence, then changes as they happen. When a link drops, the receiving node forgets
+// that peer's users until it is back.
+//
+// Each link has one writer that takes everything queued since its last write and sends
+// it with a single flush, so a busy link batches by itself. Presence changes only
+// queue the userId; the writer reads the user's state from the routing table when it
+// writes, so a burst of logins and logouts of one user settles on where they ended up.
+//
+// A line is stored by the node its sender is on, so nodes have to share the message
+// store (chat.store=jdbc) for history to be whole; rooms stay per node. It is forwarded
+// once committed, with its msg_id, and the node that hands it to the recipient's
+// connections acknowledges it, just as the sender's node does for its own.
+//
+// Links are neither authenticated nor encrypted. Each node listens only on its own
+// address from chat.cluster.nodes and connects from it, and hangs up on anything that
+// doesn't come from a listed address, but that is all: the inter-node addresses must be
+// on a private network. Three nodes on one machine with the memory store:
+//
+//   java -Dchat.store=memory -Dchat.memory.seedUsers=1000 -Dchat.port=1234 -Dchat.cluster.node=1 \
+//        -Dchat.cluster.nodes=1=localhost:7101,2=localhost:7102,3=localhost:7103 ChatServer virtual
+//   ... the same with -Dchat.port=1235 -Dchat.cluster.node=2, and -Dchat.port=1236 -Dchat.cluster.node=3
+final class Cluster {
+    private static final byte KEEPALIVE = 0;
+    private static final byte HELLO = 1;      // int nodeId
+    private static final byte RESET = 2;      // forget every user of the sending node
+    private static final byte PRESENCE = 3;   // int count, count * (int userId, byte online)
+    private static final byte MESSAGE = 4;    // long msgId, int senderId, int recipientId, name16 senderName, text
+    private static final byte ECHO = 5;       // int senderId, int recipientId, text: for the sender's other clients
+
+    private static final int PRESENCE_PER_FRAME = 8192;
+    private static final int MAX_FRAME_BYTES = 1 << 20;
+    private static final int BATCH_ITEMS = 4096;
+
+    private static final LongAdder forwarded = new LongAdder();
+    private static final LongAdder received = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+
+    // Every node but this one; fixed before start().
+    private static Peer[] peers = new Peer[0];
+    private static InetSocketAddress self;
+
+    private Cluster() {
+    }
+
+    static boolean enabled() {
+        return ServerConfig.CLUSTER_NODE > 0;
+    }
+
+    static void start() throws IOException {
+        if (!enabled()) {
+            return;
+        }
+        List<Peer> others = new ArrayList<>();
+        for (String entry : ServerConfig.CLUSTER_NODES.split(",")) {
+            String[] idAndAddress = entry.trim().split("=", 2);
+            int colon = idAndAddress.length == 2 ? idAndAddress[1].lastIndexOf(':') : -1;
+            if (colon < 0) {
+                throw new IllegalArgumentException("Bad chat.cluster.nodes entry: " + entry);
+            }
+            int id = Integer.parseInt(idAndAddress[0].trim());
+            InetSocketAddress address = new InetSocketAddress(idAndAddress[1].substring(0, colon),
+                    Integer.parseInt(idAndAddress[1].substring(colon + 1)));
+            if (id == ServerConfig.CLUSTER_NODE) {
+                self = address;
+            } else {
+                others.add(new Peer(id, address));
+            }
+        }
+        if (self == null) {
+            throw new IllegalArgumentException("chat.cluster.nodes has no entry for node " + ServerConfig.CLUSTER_NODE);
+        }
+        peers = others.toArray(new Peer[0]);
+
+        ServerSocket server = new ServerSocket(self.getPort(), 64, self.getAddress());
+        Thread.ofPlatform().daemon().name("cluster-accept").start(() -> accept(server));
+        for (Peer peer : peers) {
+            Thread.ofPlatform().daemon().name("cluster-link-" + peer.id).start(peer::writeLoop);
+        }
+        System.out.println("Cluster node " + ServerConfig.CLUSTER_NODE + " listening on " + self
+                + " for " + peers.length + " peers.");
+    }
+
+    // The user's first connection on this node opened or its last one closed.
+    static void presenceChanged(int userId) {
+        for (Peer peer : peers) {
+            if (!peer.queue.offer(userId)) {
+                // The change is lost, so the peer gets the whole presence again.
+                peer.resync.set(true);
+            }
+        }
+    }
+
+    // Online on some other node that we can currently reach.
+    static boolean isOnline(int userId) {
+        for (Peer peer : peers) {
+            if (peer.reachable(userId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Sends the committed line to every node the recipient is on.
+    static void forward(int senderId, String senderName, int recipientId, long msgId, String text) {
+        byte[] frame = null;
+        for (Peer peer : peers) {
+            if (peer.reachable(recipientId)) {
+                if (frame == null) {
+                    byte[] name = senderName.getBytes(StandardCharsets.UTF_8);
+                    byte[] body = text.getBytes(StandardCharsets.UTF_8);
+                    frame = frame(MESSAGE, 8 + 4 + 4 + 2 + name.length + body.length).putLong(msgId)
+                            .putInt(senderId).putInt(recipientId).putShort((short) name.length).put(name).put(body).array();
+                }
+                peer.send(frame);
+            }
+        }
+    }
+
+    // The sender's clients on other nodes see the line as their own.
+    static void echo(int senderId, int recipientId, String text) {
+        byte[] frame = null;
+        for (Peer peer : peers) {
+            if (peer.reachable(senderId)) {
+                if (frame == null) {
+                    byte[] body = text.getBytes(StandardCharsets.UTF_8);
+                    frame = frame(ECHO, 4 + 4 + body.length).putInt(senderId).putInt(recipientId).put(body).array();
+                }
+                peer.send(frame);
+            }
+        }
+    }
+
+    static String snapshot() {
+        if (!enabled()) {
+            return "cluster=off";
+        }
+        StringBuilder text = new StringBuilder("cluster=").append(ServerConfig.CLUSTER_NODE);
+        for (Peer peer : peers) {
+            text.append(" node").append(peer.id).append('=').append(peer.connected ? "up" : "down")
+                    .append('/').append(peer.users.size());
+        }
+        return text.append(" clusterForwarded=").append(forwarded.sum())
+                .append(" clusterReceived=").append(received.sum())
+                .append(" clusterDropped=").append(dropped.sum()).toString();
+    }
+
+    private static ByteBuffer frame(byte type, int payloadBytes) {
+        return ByteBuffer.allocate(4 + 1 + payloadBytes).putInt(1 + payloadBytes).put(type);
+    }
+
+    private static void accept(ServerSocket server) {
+        while (true) {
+            try {
+                Socket socket = server.accept();
+                if (!listed(socket.getInetAddress())) {
+                    System.out.println("Cluster link from unlisted address " + socket.getRemoteSocketAddress() + " refused.");
+                    socket.close();
+                    continue;
+                }
+                Thread.ofPlatform().daemon().name("cluster-in").start(() -> readLoop(socket));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // One inbound link: a peer's presence and the lines it forwards to our users.
+    private static void readLoop(Socket socket) {
+        Peer peer = null;
+        try (socket) {
+            socket.setSoTimeout(ServerConfig.CLUSTER_LINK_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            byte[] buffer = new byte[4096];
+            while (true) {
+                int length = in.readInt();
+                if (length < 1 || length > MAX_FRAME_BYTES) {
+                    throw new IOException("Bad cluster frame length " + length);
+                }
+                if (length > buffer.length) {
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                }
+                in.readFully(buffer, 0, length);
+                ByteBuffer frame = ByteBuffer.wrap(buffer, 0, length);
+                byte type = frame.get();
+                if (peer == null) {
+                    peer = type == HELLO ? peer(frame.getInt()) : null;
+                    if (peer == null) {
+                        throw new IOException("Cluster link did not introduce a known node");
+                    }
+                    // Another listed host can't speak for this node.
+                    if (!peer.address.getAddress().equals(socket.getInetAddress())) {
+                        throw new IOException("Cluster link from " + socket.getRemoteSocketAddress()
+                                + " claims node " + peer.id + " at " + peer.address);
+                    }
+                    peer.attachInbound(socket);
+                    continue;
+                }
+                switch (type) {
+                    case KEEPALIVE -> {
+                    }
+                    case RESET -> peer.users.clear();
+                    case PRESENCE -> {
+                        int count = frame.getInt();
+                        for (int i = 0; i < count; i++) {
+                            int userId = frame.getInt();
+                            if (frame.get() != 0) {
+                                peer.users.add(userId);
+                            } else {
+                                peer.users.remove(userId);
+                            }
+                        }
+                    }
+                    case MESSAGE -> {
+                        long msgId = frame.getLong();
+                        int senderId = frame.getInt();
+                        int recipientId = frame.getInt();
+                        String senderName = BinaryWireFormat.readName(frame);
+                        String text = BinaryWireFormat.readRest(frame);
+                        long now = System.nanoTime();
+                        ChatSession[] recipients = ChatServer.onlineUsers.sessions(recipientId);
+                        boolean accepted = false;
+                        for (ChatSession client : recipients) {
+                            accepted |= client.deliver(client.wire.message(senderId, senderName, text), now);
+                        }
+                        if (accepted) {
+                            AckTracker.delivered(recipientId, senderId, msgId);
+                        } else if (recipients.length > 0) {
+                            AckTracker.missed(recipientId, senderId, msgId);
+                        }
+                        received.increment();
+                    }
+                    case ECHO -> {
+                        int senderId = frame.getInt();
+                        int recipientId = frame.getInt();
+                        String text = BinaryWireFormat.readRest(frame);
+                        for (ChatSession own : ChatServer.onlineUsers.sessions(senderId)) {
+                            own.deliver(own.wire.sent(0, recipientId, text, false));
+                        }
+                    }
+                    default -> throw new IOException("Unknown cluster frame type " + type);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            System.out.println("Cluster link from node " + (peer != null ? peer.id : "?") + " went silent.");
+        } catch (EOFException e) {
+            // The peer closed its end.
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                System.out.println("Cluster link from node " + (peer != null ? peer.id : "?") + " failed: " + e.getMessage());
+            }
+        } finally {
+            if (peer != null) {
+                peer.detachInbound(socket);
+            }
+        }
+    }
+
+    private static boolean listed(InetAddress address) {
+        for (Peer peer : peers) {
+            if (peer.address.getAddress().equals(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Peer peer(int id) {
+        for (Peer peer : peers) {
+            if (peer.id == id) {
+                return peer;
+            }
+        }
+        return null;
+    }
+
+    private static final class Peer {
+        private final int id;
+        private final InetSocketAddress address;
+        // Users with a connection on this peer, as its inbound link last told us.
+        private final Set<Integer> users = ConcurrentHashMap.newKeySet();
+        private final AtomicReference<Socket> inbound = new AtomicReference<>();
+        // Outbound: userIds whose presence changed (Integer) and encoded frames (byte[]).
+        private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>(ServerConfig.CLUSTER_LINK_QUEUE);
+        private final AtomicBoolean resync = new AtomicBoolean();
+        private volatile boolean connected;
+
+        Peer(int id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+
+        // Both directions have to be up: we learn presence on one and send lines on the other.
+        boolean reachable(int userId) {
+            return connected && users.contains(userId);
+        }
+
+        boolean send(byte[] frame) {
+            if (queue.offer(frame)) {
+                forwarded.increment();
+                return true;
+            }
+            dropped.increment();
+            return false;
+        }
+
+        // A reconnecting peer replaces its old inbound link, which may not have noticed yet.
+        void attachInbound(Socket socket) {
+            Socket previous = inbound.getAndSet(socket);
+            users.clear();
+            if (previous != null) {
+                try {
+                    previous.close();
+                } catch (IOException ignored) {
+                }
+            }
+            System.out.println("Cluster link from node " + id + " up.");
+        }
+
+        void detachInbound(Socket socket) {
+            if (inbound.compareAndSet(socket, null)) {
+                users.clear();
+                System.out.println("Cluster link from node " + id + " down.");
+            }
+        }
+
+        // Connects, announces this node and its presence, then writes whatever is queued,
+        // one flush per batch. Reconnects with backoff for as long as the server runs.
+        void writeLoop() {
+            long backoffMillis = 100;
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    // From our listed address, which is the one the peer lets in.
+                    socket.bind(new InetSocketAddress(self.getAddress(), 0));
+                    socket.connect(address, ServerConfig.CLUSTER_LINK_TIMEOUT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    socket.setKeepAlive(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                    out.write(frame(HELLO, 4).putInt(ServerConfig.CLUSTER_NODE).array());
+                    resync.set(false);
+                    writePresenceSnapshot(out);
+                    out.flush();
+                    connected = true;
+                    backoffMillis = 100;
+                    System.out.println("Cluster link to node " + id + " up.");
+
+                    List<Object> batch = new ArrayList<>();
+                    List<Integer> changed = new ArrayList<>();
+                    while (true) {
+                        Object first = queue.poll(ServerConfig.CLUSTER_LINK_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                        if (first == null) {
+                            out.write(frame(KEEPALIVE, 0).array());
+                        } else {
+                            batch.add(first);
+                            queue.drainTo(batch, BATCH_ITEMS - 1);
+                            for (Object item : batch) {
+                                if (item instanceof Integer userId) {
+                                    changed.add(userId);
+                                } else {
+                                    writePresence(out, changed);
+                                    out.write((byte[]) item);
+                                }
+                            }
+                            writePresence(out, changed);
+                            batch.clear();
+                        }
+                        if (resync.getAndSet(false)) {
+                            writePresenceSnapshot(out);
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    if (connected) {
+                        System.out.println("Cluster link to node " + id + " down: " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                }
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, 5000);
+            }
+        }
+
+        private void writePresenceSnapshot(DataOutputStream out) throws IOException {
+            out.write(frame(RESET, 0).array());
+            List<Integer> online = new ArrayList<>();
+            ChatServer.onlineUsers.forEachUser(online::add);
+            writePresence(out, online);
+        }
+
+        // Each user's state as of now, whatever it was when the change was queued.
+        private void writePresence(DataOutputStream out, List<Integer> userIds) throws IOException {
+            for (int from = 0; from < userIds.size(); from += PRESENCE_PER_FRAME) {
+                int count = Math.min(PRESENCE_PER_FRAME, userIds.size() - from);
+                ByteBuffer frame = frame(PRESENCE, 4 + count * 5).putInt(count);
+                for (int i = from; i < from + count; i++) {
+                    int userId = userIds.get(i);
+                    frame.putInt(userId).put((byte) (ChatServer.onlineUsers.isOnline(userId) ? 1 : 0));
+                }
+                out.write(frame.array());
+            }
+            userIds.clear();
+        }
+    }
+}
@@ -0,0 +1,275 @@
+import com.mysql.cj.jdbc.JdbcConnection;
+import com.mysql.cj.jdbc.MysqlDataSource;
+import com.mysql.cj.jdbc.MysqlPooledConnection;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Fixed-bound pool of physical MySQL connections. Callers get the connector's
+// logical handle (ConnectionWrapper); closing it fires connectionClosed and the
+// physical connection goes back on the idle stack with its statement cache intact.
+class ConnectionPool {
+    private final MysqlDataSource dataSource;
+    private final int minSize;
+    private final int maxSize;
+    private final long maxWaitNanos;
+    private final long idleTimeoutNanos;
+    private final long validateAfterNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // LIFO, so the warmest connection is reused first and the cold ones age out.
+    private final ArrayDeque<Entry> idle = new ArrayDeque<>();
+    private int total;
+
+    final LongAdder borrows = new LongAdder();
+    final LongAdder waits = new LongAdder();
+    final LongAdder waitNanos = new LongAdder();
+    final AtomicLong maxWaitSeenNanos = new AtomicLong();
+    final LongAdder timeouts = new LongAdder();
+    final LongAdder created = new LongAdder();
+    final LongAdder evicted = new LongAdder();
+    final LongAdder validationFailures = new LongAdder();
+
+    ConnectionPool(MysqlDataSource dataSource, int minSize, int maxSize, long maxWaitMillis,
+                   long idleTimeoutMillis, long validateAfterMillis) {
+        this.dataSource = dataSource;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.validateAfterNanos = TimeUnit.MILLISECONDS.toNanos(validateAfterMillis);
+
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "db-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 4);
+        evictor.scheduleWithFixedDelay(this::maintain, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    Connection borrow() throws SQLException {
+        long start = System.nanoTime();
+        borrows.increment();
+        while (true) {
+            Entry entry = takeIdleOrReserve(start);
+            if (entry == null) {
+                // A slot was reserved for us; open the connection outside the lock.
+                entry = open();
+            } else if (start - entry.idleSince > validateAfterNanos && !entry.physical.isValid(2)) {
+                validationFailures.increment();
+                destroy(entry);
+                continue;
+            }
+            recordWait(start);
+            try {
+                return entry.pooled.borrow();
+            } catch (SQLException e) {
+                destroy(entry);
+                throw e;
+            }
+        }
+    }
+
+    // Returns an idle entry, or null after reserving room for a new connection.
+    private Entry takeIdleOrReserve(long start) throws SQLException {
+        lock.lock();
+        try {
+            boolean waited = false;
+            while (idle.isEmpty() && total >= maxSize) {
+                if (!waited) {
+                    waits.increment();
+                    waited = true;
+                }
+                long remaining = maxWaitNanos - (System.nanoTime() - start);
+                if (remaining <= 0) {
+                    timeouts.increment();
+                    throw new SQLException("Timed out after " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos)
+                            + " ms waiting for a database connection (" + total + " in use)");
+                }
+                available.awaitNanos(remaining);
+            }
+            if (!idle.isEmpty()) {
+                return idle.pop();
+            }
+            total++;
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Entry open() throws SQLException {
+        try {
+            Entry entry = new Entry((JdbcConnection) dataSource.getConnection());
+            created.increment();
+            return entry;
+        } catch (SQLException | RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private void giveBack(Entry entry) {
+        try {
+            // Pooled handles roll back on close, but autocommit stays as the borrower left it.
+            if (!entry.physical.getAutoCommit()) {
+                entry.physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            destroy(entry);
+            return;
+        }
+        entry.idleSince = System.nanoTime();
+        lock.lock();
+        try {
+            idle.push(entry);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void destroy(Entry entry) {
+        try {
+            entry.pooled.close();
+        } catch (SQLException ignored) {
+            // already broken
+        }
+        release();
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            total--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordWait(long start) {
+        long waited = System.nanoTime() - start;
+        waitNanos.add(waited);
+        maxWaitSeenNanos.accumulateAndGet(waited, Math::max);
+    }
+
+    // Evictor thread: close connections idle past the timeout, then top back up to minSize.
+    private void maintain() {
+        long now = System.nanoTime();
+        while (true) {
+            Entry stale = null;
+            lock.lock();
+            try {
+                Entry oldest = idle.peekLast();
+                if (oldest != null && total > minSize && now - oldest.idleSince > idleTimeoutNanos) {
+                    stale = idle.pollLast();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (stale == null) {
+                break;
+            }
+            evicted.increment();
+            destroy(stale);
+        }
+
+        while (true) {
+            lock.lock();
+            try {
+                if (total >= minSize) {
+                    return;
+                }
+                total++;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                giveBack(open());
+            } catch (SQLException e) {
+                System.out.println("Could not open pooled database connection: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    String snapshot() {
+        int idleCount;
+        int totalCount;
+        lock.lock();
+        try {
+            idleCount = idle.size();
+            totalCount = total;
+        } finally {
+            lock.unlock();
+        }
+        long borrowCount = borrows.sum();
+        return "dbActive=" + (totalCount - idleCount)
+                + " dbIdle=" + idleCount
+                + " dbBorrows=" + borrowCount
+                + " dbWaits=" + waits.sum()
+                + " dbAvgWaitMicros=" + (borrowCount == 0 ? 0 : waitNanos.sum() / borrowCount / 1000)
+                + " dbMaxWaitMicros=" + maxWaitSeenNanos.get() / 1000
+                + " dbTimeouts=" + timeouts.sum()
+                + " dbCreated=" + created.sum()
+                + " dbEvicted=" + evicted.sum()
+                + " dbValidationFailures=" + validationFailures.sum();
+    }
+
+    // MysqlPooledConnection.getConnection() resets the server session (COM_RESET_CONNECTION)
+    // on every checkout, which would also drop the server-side prepared statements we want
+    // to keep warm. The pool restores the little state our callers change itself.
+    private static class WarmPooledConnection extends MysqlPooledConnection {
+        WarmPooledConnection(JdbcConnection physical) {
+            super(physical);
+        }
+
+        Connection borrow() throws SQLException {
+            return getConnection(false, false);
+        }
+    }
+
+    private class Entry implements ConnectionEventListener {
+        final JdbcConnection physical;
+        final WarmPooledConnection pooled;
+        long idleSince = System.nanoTime();
+        // Set by a communications failure on the borrowed handle; the physical connection is dropped on close.
+        volatile boolean broken;
+
+        Entry(JdbcConnection physical) {
+            this.physical = physical;
+            this.pooled = new WarmPooledConnection(physical);
+            pooled.addConnectionEventListener(this);
+        }
+
+        @Override
+        public void connectionClosed(ConnectionEvent event) {
+            if (broken) {
+                destroy(this);
+            } else {
+                giveBack(this);
+            }
+        }
+
+        @Override
+        public void connectionErrorOccurred(ConnectionEvent event) {
+            broken = true;
+        }
+    }
+}
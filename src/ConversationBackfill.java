@@ -0,0 +1,138 @@
+import java.sql.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Online backfill of messages.conversation_id (see db/003) for rows written before
+// servers started filling it in.
+//
+//   java -cp out:<connector jar> ConversationBackfill [chunkSize] [pauseMillis]
+//
+// Walks the primary key in ranges of chunkSize msg_ids. Each range is one short
+// transaction that also moves the progress row in migration_state forward, so the tool
+// can be stopped at any time and rerun to continue where it left off. The pause between
+// chunks keeps it from crowding out live traffic and replication.
+public class ConversationBackfill {
+    static final String NAME = "messages.conversation_id";
+
+    private static final String FILL = """
+            UPDATE messages
+            SET conversation_id = (LEAST(sender_id, receiver_id) << 32) | GREATEST(sender_id, receiver_id)
+            WHERE msg_id > ? AND msg_id <= ? AND conversation_id IS NULL
+            """;
+
+    private static final long RECHECK_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static volatile boolean complete;
+    private static final AtomicLong nextCheck = new AtomicLong(System.nanoTime());
+
+    public static void main(String[] args) throws Exception {
+        int chunkSize = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        long pauseMillis = args.length > 1 ? Long.parseLong(args[1]) : 50;
+
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            long[] progress = begin(conn);
+            long last = progress[0];
+            long target = progress[1];
+            long started = System.nanoTime();
+            long filled = 0;
+            while (true) {
+                while (last < target) {
+                    long end = Math.min(last + chunkSize, target);
+                    filled += fillChunk(conn, last, end);
+                    last = end;
+                    if ((last / chunkSize) % 100 == 0 || last == target) {
+                        System.out.printf("msg_id %d / %d, %d rows filled, %d s%n",
+                                last, target, filled, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started));
+                    }
+                    Thread.sleep(pauseMillis);
+                }
+                // Rows from servers that were still on the old version during the run.
+                long straggler = maxUnfilled(conn);
+                if (straggler <= last) {
+                    break;
+                }
+                target = straggler;
+                updateState(conn, "UPDATE migration_state SET target_id = ? WHERE name = ?", target);
+            }
+            updateState(conn, "UPDATE migration_state SET done = TRUE, last_id = ? WHERE name = ?", last);
+            System.out.println("Backfill done: " + filled + " rows filled this run.");
+        }
+    }
+
+    // Resumes from the stored progress, or starts a new run up to the newest unfilled row.
+    private static long[] begin(Connection conn) throws SQLException {
+        try (PreparedStatement insert = conn.prepareStatement(
+                "INSERT IGNORE INTO migration_state (name, last_id, target_id) VALUES (?, 0, ?)")) {
+            insert.setString(1, NAME);
+            insert.setLong(2, maxUnfilled(conn));
+            insert.executeUpdate();
+        }
+        try (PreparedStatement select = conn.prepareStatement("SELECT last_id, target_id FROM migration_state WHERE name = ?")) {
+            select.setString(1, NAME);
+            ResultSet rs = select.executeQuery();
+            rs.next();
+            System.out.println("Backfilling " + NAME + " from msg_id " + rs.getLong(1) + " to " + rs.getLong(2) + ".");
+            return new long[]{rs.getLong(1), rs.getLong(2)};
+        }
+    }
+
+    // Read off idx_messages_conversation, whose NULL prefix holds exactly the unfilled rows.
+    private static long maxUnfilled(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(msg_id), 0) FROM messages WHERE conversation_id IS NULL");
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private static int fillChunk(Connection conn, long from, long to) throws SQLException {
+        conn.setAutoCommit(false);
+        try (PreparedStatement fill = conn.prepareStatement(FILL);
+             PreparedStatement progress = conn.prepareStatement("UPDATE migration_state SET last_id = ? WHERE name = ?")) {
+            fill.setLong(1, from);
+            fill.setLong(2, to);
+            int rows = fill.executeUpdate();
+            progress.setLong(1, to);
+            progress.setString(2, NAME);
+            progress.executeUpdate();
+            conn.commit();
+            return rows;
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private static void updateState(Connection conn, String sql, long value) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setLong(1, value);
+            stmt.setString(2, NAME);
+            stmt.executeUpdate();
+        }
+    }
+
+    // Server side: whether history may be read through conversation_id yet. Until the
+    // backfill reports done this is looked up again at most every 30 seconds.
+    static boolean complete() {
+        if (complete) {
+            return true;
+        }
+        long due = nextCheck.get();
+        if (System.nanoTime() - due < 0 || !nextCheck.compareAndSet(due, System.nanoTime() + RECHECK_NANOS)) {
+            return false;
+        }
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT done FROM migration_state WHERE name = ?")) {
+            stmt.setString(1, NAME);
+            ResultSet rs = stmt.executeQuery();
+            complete = rs.next() && rs.getBoolean(1);
+            if (complete) {
+                System.out.println("Conversation backfill is done; reading history by conversation_id.");
+            }
+        } catch (SQLException e) {
+            System.out.println("Could not read migration state: " + e.getMessage());
+        }
+        return complete;
+    }
+}
@@ -0,0 +1,288 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The newest messages of recently active 1:1 conversations, keyed by the unordered
+// user pair. Each conversation is a fixed-size ring of parallel primitive arrays;
+// conversations live in lock-striped access-ordered maps, and each stripe evicts its
+// least recently used conversations once it is over its share of the byte budget.
+//
+// A window always holds the newest messages of its conversation without gaps: it is
+// either filled from the database with the newest rows or started by a fresh send,
+// and every later send is appended in msg_id order by the persister.
+final class ConversationCache {
+    record Page(List<StoredMessage> rows, boolean exhausted) {
+    }
+
+    private static final int CAPACITY = ServerConfig.CACHE_MESSAGES_PER_CONVERSATION;
+    private static final Stripe[] stripes = new Stripe[16];
+
+    static {
+        long budget = ServerConfig.CACHE_MAX_BYTES / stripes.length;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(budget);
+        }
+    }
+
+    private ConversationCache() {
+    }
+
+    static boolean enabled() {
+        return CAPACITY > 0 && ServerConfig.CACHE_MAX_BYTES > 0;
+    }
+
+    // The conversation id, so (a, b) and (b, a) share one key.
+    static long key(int a, int b) {
+        return ConversationId.direct(a, b);
+    }
+
+    private static Stripe stripe(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h >>> 60)];
+    }
+
+    // Persister callback: the line is committed and has its msg_id.
+    static void append(StoredMessage message) {
+        if (!enabled()) {
+            return;
+        }
+        long key = key(message.senderId(), message.receiverId());
+        Stripe stripe = stripe(key);
+        stripe.lock.lock();
+        try {
+            Window window = stripe.windows.get(key);
+            if (window == null) {
+                // Nothing older is known yet, so the window is incomplete from the start.
+                window = new Window(key);
+                stripe.windows.put(key, window);
+                stripe.bytes += window.bytes;
+            } else if (window.size > 0 && message.msgId() <= window.newest()) {
+                // The batch was committed before its callbacks ran, and a history miss in
+                // between filled the window with this line already.
+                return;
+            }
+            stripe.bytes += window.add(message);
+            stripe.evict();
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    // Newest-first page of up to pageSize messages older than before, or null when the
+    // window can't answer it without the database.
+    static Page page(int userId, int peerId, int pageSize, long before) {
+        if (!enabled()) {
+            return null;
+        }
+        long key = key(userId, peerId);
+        Stripe stripe = stripe(key);
+        stripe.lock.lock();
+        try {
+            Window window = stripe.windows.get(key);
+            if (window == null) {
+                ChatStats.historyCacheMisses.increment();
+                return null;
+            }
+            List<StoredMessage> rows = new ArrayList<>(Math.min(pageSize, window.size));
+            for (int i = window.size - 1; i >= 0 && rows.size() < pageSize; i--) {
+                int slot = window.slot(i);
+                if (window.msgIds[slot] < before) {
+                    StoredMessage row = window.toMessage(slot);
+                    if (row.senderName() == null) {
+                        // Only seen through the sender's own lines so far; the database knows the name.
+                        ChatStats.historyCacheMisses.increment();
+                        return null;
+                    }
+                    rows.add(row);
+                }
+            }
+            if (rows.size() < pageSize && !window.complete) {
+                ChatStats.historyCacheMisses.increment();
+                return null;
+            }
+            ChatStats.historyCacheHits.increment();
+            return new Page(rows, rows.size() < pageSize);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    // The whole conversation, oldest first, if the window is known to hold all of it.
+    static List<StoredMessage> everything(int userId, int peerId) {
+        if (!enabled()) {
+            return null;
+        }
+        long key = key(userId, peerId);
+        Stripe stripe = stripe(key);
+        stripe.lock.lock();
+        try {
+            Window window = stripe.windows.get(key);
+            if (window == null || !window.complete) {
+                ChatStats.historyCacheMisses.increment();
+                return null;
+            }
+            List<StoredMessage> rows = new ArrayList<>(window.size);
+            for (int i = 0; i < window.size; i++) {
+                StoredMessage row = window.toMessage(window.slot(i));
+                if (row.senderName() == null) {
+                    ChatStats.historyCacheMisses.increment();
+                    return null;
+                }
+                rows.add(row);
+            }
+            ChatStats.historyCacheHits.increment();
+            return rows;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    // Seeds a window from a database read of the newest messages (newest first).
+    // complete means the read reached the start of the conversation.
+    static void fill(int userId, int peerId, List<StoredMessage> newestFirst, boolean complete) {
+        if (!enabled()) {
+            return;
+        }
+        long key = key(userId, peerId);
+        Stripe stripe = stripe(key);
+        stripe.lock.lock();
+        try {
+            Window old = stripe.windows.get(key);
+            Window window = new Window(key);
+            // Ring overwrites below clear this again if the window can't hold everything.
+            window.complete = complete && newestFirst.size() <= CAPACITY;
+            long newestLoaded = newestFirst.isEmpty() ? 0 : newestFirst.get(0).msgId();
+            for (int i = Math.min(newestFirst.size(), CAPACITY) - 1; i >= 0; i--) {
+                window.add(newestFirst.get(i));
+            }
+            // Lines committed while the query ran were appended to the old window; keep them.
+            if (old != null) {
+                for (int i = 0; i < old.size; i++) {
+                    int slot = old.slot(i);
+                    if (old.msgIds[slot] > newestLoaded) {
+                        window.add(old.toMessage(slot));
+                    }
+                }
+                window.learnNames(old);
+                stripe.bytes -= old.bytes;
+            }
+            stripe.windows.put(key, window);
+            stripe.bytes += window.bytes;
+            stripe.evict();
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    static String snapshot() {
+        long bytes = 0;
+        int conversations = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                bytes += stripe.bytes;
+                conversations += stripe.windows.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return "cachedConversations=" + conversations + " cacheBytes=" + bytes;
+    }
+
+    private static class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap<Long, Window> windows = new LinkedHashMap<>(64, 0.75f, true);
+        final long budget;
+        long bytes;
+
+        Stripe(long budget) {
+            this.budget = budget;
+        }
+
+        void evict() {
+            var eldest = windows.values().iterator();
+            while (bytes > budget && eldest.hasNext()) {
+                bytes -= eldest.next().bytes;
+                eldest.remove();
+                ChatStats.historyCacheEvictions.increment();
+            }
+        }
+    }
+
+    private static class Window {
+        // Rough heap cost: object headers, the arrays, and per String header plus chars.
+        private static final int FIXED_BYTES = 96 + CAPACITY * (8 + 4 + 8 + 4);
+        private static final int PER_MESSAGE_BYTES = 48;
+
+        final int low;
+        final int high;
+        String lowName;
+        String highName;
+        final long[] msgIds = new long[CAPACITY];
+        final boolean[] fromLow = new boolean[CAPACITY];
+        final long[] timestamps = new long[CAPACITY];
+        final String[] texts = new String[CAPACITY];
+        int head;
+        int size;
+        long bytes = FIXED_BYTES;
+        boolean complete;
+
+        Window(long key) {
+            low = (int) (key >>> 32);
+            high = (int) key;
+        }
+
+        int slot(int index) {
+            return (head + index) % CAPACITY;
+        }
+
+        long newest() {
+            return msgIds[slot(size - 1)];
+        }
+
+        // Returns the change in estimated bytes.
+        long add(StoredMessage message) {
+            long before = bytes;
+            int slot;
+            if (size == CAPACITY) {
+                slot = head;
+                bytes -= PER_MESSAGE_BYTES + 2L * texts[slot].length();
+                head = (head + 1) % CAPACITY;
+                // The oldest line is gone, so older pages need the database again.
+                complete = false;
+            } else {
+                slot = slot(size);
+                size++;
+            }
+            msgIds[slot] = message.msgId();
+            fromLow[slot] = message.senderId() == low;
+            timestamps[slot] = message.timestampMillis();
+            texts[slot] = message.text();
+            bytes += PER_MESSAGE_BYTES + 2L * message.text().length();
+            if (message.senderName() != null) {
+                if (message.senderId() == low) {
+                    lowName = message.senderName();
+                } else {
+                    highName = message.senderName();
+                }
+            }
+            return bytes - before;
+        }
+
+        void learnNames(Window other) {
+            if (lowName == null) {
+                lowName = other.lowName;
+            }
+            if (highName == null) {
+                highName = other.highName;
+            }
+        }
+
+        StoredMessage toMessage(int slot) {
+            boolean lowSent = fromLow[slot];
+            return new StoredMessage(msgIds[slot], lowSent ? low : high, lowSent ? high : low,
+                    lowSent ? lowName : highName, texts[slot], timestamps[slot]);
+        }
+    }
+}
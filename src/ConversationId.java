@@ -0,0 +1,19 @@
+// Canonical conversation ids, as stored in messages.conversation_id. A 1:1 conversation
+// is the ordered user pair, low id in the high half, so (a, b) and (b, a) share one id
+// and it is always positive. Room ids live in the negative half.
+final class ConversationId {
+    private ConversationId() {
+    }
+
+    static long direct(int a, int b) {
+        return a < b ? ((long) a << 32) | (b & 0xFFFFFFFFL) : ((long) b << 32) | (a & 0xFFFFFFFFL);
+    }
+
+    static long room(int roomId) {
+        return -1L - roomId;
+    }
+
+    static boolean isRoom(long conversationId) {
+        return conversationId < 0;
+    }
+}
@@ -1,11 +1,38 @@
+import com.mysql.cj.jdbc.MysqlDataSource;
+
 import java.sql.*;
 
 public class DatabaseConnection {
-    private static final String URL = "jdbc:mysql://localhost:3306/chatapp";
+    // rewriteBatchedStatements turns the persister's batches into one multi-row INSERT.
+    // Server-side prepared statements are cached per physical connection, and the pool
+    // keeps physical connections open, so a statement is parsed once per connection.
+    private static final String URL = "jdbc:mysql://localhost:3306/chatapp?rewriteBatchedStatements=true"
+            + "&useServerPrepStmts=true&cachePrepStmts=true&prepStmtCacheSize=256&prepStmtCacheSqlLimit=2048"
+            + "&useLocalSessionState=true";
     private static final String USER = "root";
     private static final String PASSWORD = "root";
 
+    private static final ConnectionPool pool = createPool();
+
+    private static ConnectionPool createPool() {
+        MysqlDataSource dataSource = new MysqlDataSource();
+        dataSource.setURL(URL);
+        dataSource.setUser(USER);
+        dataSource.setPassword(PASSWORD);
+        return new ConnectionPool(dataSource,
+                Integer.getInteger("chat.db.pool.min", 2),
+                Integer.getInteger("chat.db.pool.max", 32),
+                Long.getLong("chat.db.pool.maxWaitMillis", 5_000),
+                Long.getLong("chat.db.pool.idleTimeoutMillis", 300_000),
+                Long.getLong("chat.db.pool.validateAfterMillis", 1_000));
+    }
+
+    // Borrowed from the pool; close() hands the connection back instead of closing it.
     public static Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(URL, USER, PASSWORD);
+        return pool.borrow();
+    }
+
+    static String poolStats() {
+        return pool.snapshot();
     }
 }
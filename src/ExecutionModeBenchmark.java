@@ -0,0 +1,269 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Compares ChatServer's platform-thread and virtual-thread handler modes.
+//
+//   java -cp out:<connector jar> ExecutionModeBenchmark [connections] [activeSeconds] [sendIntervalMs]
+//
+// Each mode gets a fresh server JVM so their footprints don't mix; this JVM only
+// hosts the simulated clients (one virtual thread each), which cost the same in both
+// runs. For every mode it reports the server's RSS and thread count with all
+// connections idle, then runs paired clients that message each other and reports
+// delivery latency percentiles. Needs the users created by --seed and a file
+// descriptor limit above twice the connection count.
+public class ExecutionModeBenchmark {
+    private static final String USER_PREFIX = "bench_";
+    private static final String[] MODES = {"thread", "virtual"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--seed")) {
+            seedUsers(args.length > 1 ? Integer.parseInt(args[1]) : 10_000);
+            return;
+        }
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int activeSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int sendIntervalMs = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        Map<String, Integer> users = loadUsers(connections);
+        System.out.printf("%-8s %8s %12s %9s %12s %9s %10s %10s %10s%n",
+                "mode", "conns", "idle RSS MB", "threads", "active RSS", "threads", "p50 us", "p99 us", "msgs");
+        for (String mode : MODES) {
+            runMode(mode, users, activeSeconds, sendIntervalMs);
+        }
+    }
+
+    private static void runMode(String mode, Map<String, Integer> users, int activeSeconds, int sendIntervalMs) throws Exception {
+        int port = 20_000 + ThreadLocalRandom.current().nextInt(10_000);
+        Process server = startServer(mode, port);
+        try {
+            waitForPort(port);
+
+            List<BenchClient> clients = connectAll(users, port);
+            Thread.sleep(2000);
+            long idleRss = readStatus(server.pid(), "VmRSS:") / 1024;
+            long idleThreads = readStatus(server.pid(), "Threads:");
+
+            LatencyRecorder latencies = new LatencyRecorder(clients.size() * (activeSeconds * 1000L / sendIntervalMs + 1));
+            for (BenchClient client : clients) {
+                client.latencies = latencies;
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(activeSeconds);
+            List<Thread> senders = new ArrayList<>();
+            for (int i = 0; i + 1 < clients.size(); i += 2) {
+                BenchClient a = clients.get(i);
+                BenchClient b = clients.get(i + 1);
+                senders.add(Thread.ofVirtual().start(() -> a.sendUntil(b.userId, deadline, sendIntervalMs)));
+                senders.add(Thread.ofVirtual().start(() -> b.sendUntil(a.userId, deadline, sendIntervalMs)));
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(activeSeconds) / 2);
+            long activeRss = readStatus(server.pid(), "VmRSS:") / 1024;
+            long activeThreads = readStatus(server.pid(), "Threads:");
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            Thread.sleep(1000);
+
+            System.out.printf("%-8s %8d %12d %9d %12d %9d %10d %10d %10d%n",
+                    mode, clients.size(), idleRss, idleThreads, activeRss, activeThreads,
+                    latencies.percentile(0.50) / 1000, latencies.percentile(0.99) / 1000, latencies.count());
+
+            for (BenchClient client : clients) {
+                client.close();
+            }
+        } finally {
+            server.destroy();
+            server.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static Process startServer(String mode, int port) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        return new ProcessBuilder(java, "-Dchat.port=" + port, "-Dchat.quiet=true",
+                "-cp", System.getProperty("java.class.path"), "ChatServer", mode)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("server did not start on port " + port);
+    }
+
+    private static List<BenchClient> connectAll(Map<String, Integer> users, int port) throws InterruptedException {
+        List<BenchClient> clients = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch ready = new CountDownLatch(users.size());
+        // Keep the connect burst below the accept backlog.
+        Semaphore connecting = new Semaphore(256);
+        for (Map.Entry<String, Integer> user : users.entrySet()) {
+            Thread.ofVirtual().start(() -> {
+                try {
+                    connecting.acquire();
+                    try {
+                        clients.add(new BenchClient(user.getKey(), user.getValue(), port));
+                    } finally {
+                        connecting.release();
+                    }
+                } catch (Exception e) {
+                    System.err.println(user.getKey() + ": " + e);
+                } finally {
+                    ready.countDown();
+                }
+            });
+        }
+        ready.await();
+        // Pair neighbours in id order so both ends of a pair are always connected.
+        clients.sort(Comparator.comparingInt(c -> c.userId));
+        return clients;
+    }
+
+    // Proc status fields are in kB (VmRSS) or plain counts (Threads); -1 where /proc is unavailable.
+    private static long readStatus(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"))) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.substring(field.length()).replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+
+    private static Map<String, Integer> loadUsers(int count) throws SQLException {
+        Map<String, Integer> users = new LinkedHashMap<>();
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT id, username FROM users WHERE username LIKE ? ORDER BY id LIMIT ?")) {
+            stmt.setString(1, USER_PREFIX + "%");
+            stmt.setInt(2, count);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                users.put(rs.getString("username"), rs.getInt("id"));
+            }
+        }
+        if (users.size() < count) {
+            System.out.println("Only " + users.size() + " benchmark users found; run with --seed " + count + " first.");
+        }
+        return users;
+    }
+
+    private static void seedUsers(int count) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("INSERT IGNORE INTO users (username) VALUES (?)")) {
+            conn.setAutoCommit(false);
+            for (int i = 0; i < count; i++) {
+                stmt.setString(1, String.format("%s%05d", USER_PREFIX, i));
+                stmt.addBatch();
+                if (i % 1000 == 999) {
+                    stmt.executeBatch();
+                }
+            }
+            stmt.executeBatch();
+            conn.commit();
+        }
+        System.out.println("Seeded " + count + " benchmark users.");
+    }
+
+    private static class BenchClient {
+        final int userId;
+        final Socket socket;
+        final PrintWriter out;
+        final BufferedReader in;
+        volatile LatencyRecorder latencies;
+
+        BenchClient(String username, int userId, int port) throws IOException {
+            this.userId = userId;
+            socket = new Socket("localhost", port);
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.println(username);
+            String reply = in.readLine();
+            if (reply == null || !reply.startsWith("Login successful")) {
+                socket.close();
+                throw new IOException("login failed: " + reply);
+            }
+            Thread.ofVirtual().start(this::readLoop);
+        }
+
+        // Delivered lines look like "bench_00042: <send nanoTime>".
+        private void readLoop() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int colon = line.indexOf(": ");
+                    LatencyRecorder recorder = latencies;
+                    if (recorder != null && line.startsWith(USER_PREFIX) && colon > 0) {
+                        try {
+                            recorder.record(System.nanoTime() - Long.parseLong(line.substring(colon + 2)));
+                        } catch (NumberFormatException ignored) {
+                            // a friends-list line, not a timed message
+                        }
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        void sendUntil(int peerId, long deadline, int intervalMs) {
+            try {
+                // Spread the first sends so the pairs don't fire in lockstep.
+                Thread.sleep(ThreadLocalRandom.current().nextInt(Math.max(1, intervalMs)));
+                while (System.nanoTime() < deadline) {
+                    out.println(peerId + ":" + System.nanoTime());
+                    Thread.sleep(intervalMs);
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static class LatencyRecorder {
+        private final long[] samples;
+        private final AtomicInteger size = new AtomicInteger();
+
+        LatencyRecorder(long capacity) {
+            samples = new long[(int) Math.min(capacity, 20_000_000)];
+        }
+
+        void record(long nanos) {
+            int index = size.getAndIncrement();
+            if (index < samples.length) {
+                samples[index] = nanos;
+            }
+        }
+
+        int count() {
+            return Math.min(size.get(), samples.length);
+        }
+
+        long percentile(double p) {
+            int n = count();
+            if (n == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(samples, n);
+            Arrays.sort(sorted);
+            return sorted[Math.min(n - 1, (int) Math.ceil(p * n) - 1)];
+        }
+    }
+}
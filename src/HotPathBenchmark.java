@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+// Microbenchmarks for the server's per-request hot paths, run in-process against the
+// in-memory store and sessions whose writer only counts bytes, so no socket or
+// database is involved:
+//
+//   parse.*        a line through ChatSession.receive: decode, processMessage dispatch, handling.
+//                  chatLine skips the persister and routes to one logged-in session;
+//                  history asks for a page of a conversation that has no lines
+//   lookup.*       onlineUsers (RoutingTable) recipient lookup among 10k users
+//   encode.*       one chat line encoded by each wire format
+//   fanout.room100 one room line to 100 members
+//   history.*      CHAT_HISTORY of 200 lines: whole conversation from the store, and a
+//                  50-line page from the conversation cache
+//
+//   java -cp out HotPathBenchmark [--write <file>] [--compare <file>] [only <prefix>]
+//
+// Every case is warmed up for WARMUP_SECONDS, then timed over ITERATIONS runs of
+// ITERATION_SECONDS in one JVM; the result is the mean ops/s and the spread of the runs.
+// --write saves the results as a baseline, --compare runs against a saved one and exits
+// with status 1 if a case fell more than REGRESSION below it. The checked-in baseline
+// is benchmarks/hotpath-baseline.txt; numbers only compare on the same machine and JDK.
+public class HotPathBenchmark {
+    private static final int WARMUP_SECONDS = 2;
+    private static final int ITERATIONS = 5;
+    private static final int ITERATION_SECONDS = 1;
+    private static final double REGRESSION = 0.10;
+    private static final String TEXT = "The quick brown fox jumps over the lazy dog, again and again.";
+
+    private interface Op {
+        void run();
+    }
+
+    // Keeps results observable so the JIT can't drop the work.
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        String write = null;
+        String compare = null;
+        String only = "";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--write" -> write = args[++i];
+                case "--compare" -> compare = args[++i];
+                case "only" -> only = args[++i];
+                default -> {
+                    System.out.println("Usage: HotPathBenchmark [--write <file>] [--compare <file>] [only <prefix>]");
+                    return;
+                }
+            }
+        }
+        // Before any server class reads its configuration.
+        System.setProperty("chat.store", "memory");
+        System.setProperty("chat.quiet", "true");
+        System.setProperty("chat.search", "false");
+        System.setProperty("chat.metrics.jmx", "false");
+        // One user sends every line here; the limits would have the cases measure refusals.
+        for (String command : new String[]{"message", "history", "search", "room"}) {
+            System.setProperty("chat.rate." + command + ".perSecond", "0");
+        }
+
+        Map<String, Op> cases = cases();
+        Map<String, double[]> results = new LinkedHashMap<>();
+        System.out.printf("%-24s %16s %8s%n", "case", "ops/s", "+-%");
+        for (Map.Entry<String, Op> entry : cases.entrySet()) {
+            if (!entry.getKey().startsWith(only)) {
+                continue;
+            }
+            double[] result = measure(entry.getValue());
+            results.put(entry.getKey(), result);
+            System.out.printf(Locale.ROOT, "%-24s %16.0f %8.1f%n", entry.getKey(), result[0], result[1]);
+        }
+        if (write != null) {
+            writeBaseline(Paths.get(write), results);
+        }
+        if (compare != null && !compareBaseline(Paths.get(compare), results)) {
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, Op> cases() {
+        MemoryStorage store = Storage.memory();
+        int alice = store.addUser("alice");
+        int bob = store.addUser("bob");
+        int carol = store.addUser("carol");
+        store.addFriendship(alice, bob);
+
+        Map<String, Op> cases = new LinkedHashMap<>();
+
+        BenchSession parser = BenchSession.login("alice", WireFormat.TEXT);
+        parser.receive(line("ROOM_JOIN:bench"));
+        ByteBuffer roomLine = line("ROOM:bench:" + TEXT);
+        ByteBuffer badLine = line("no colon here");
+        BenchSession.login("carol", WireFormat.TEXT);
+        ByteBuffer chatLine = line(carol + ":" + TEXT);
+        ByteBuffer historyLine = line("CHAT_HISTORY:" + carol + ":50");
+        cases.put("parse.chatLine", () -> parser.receive(chatLine.duplicate()));
+        cases.put("parse.roomLine", () -> parser.receive(roomLine.duplicate()));
+        cases.put("parse.history", () -> parser.receive(historyLine.duplicate()));
+        cases.put("parse.invalid", () -> parser.receive(badLine.duplicate()));
+
+        RoutingTable routes = new RoutingTable(10_000);
+        for (int i = 1; i <= 10_000; i += 2) {
+            routes.register(new BenchSession(i, WireFormat.TEXT));
+        }
+        cases.put("lookup.sessions", () -> sink += routes.sessions(ThreadLocalRandom.current().nextInt(1, 10_001)).length);
+        cases.put("lookup.isOnline", () -> sink += routes.isOnline(ThreadLocalRandom.current().nextInt(1, 10_001)) ? 1 : 0);
+
+        cases.put("encode.text", () -> sink += WireFormat.TEXT.message(alice, "alice", TEXT).remaining());
+        cases.put("encode.binary", () -> sink += WireFormat.BINARY.message(alice, "alice", TEXT).remaining());
+
+        Room room = new Room("fanout");
+        for (int i = 0; i < 100; i++) {
+            room.add(new BenchSession(100_000 + i, i % 2 == 0 ? WireFormat.TEXT : WireFormat.BINARY));
+        }
+        cases.put("fanout.room100", () -> sink += room.broadcast(alice, "alice", TEXT));
+
+        List<MessageStore.Line> lines = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            lines.add(new MessageStore.Line(i % 2 == 0 ? alice : bob, i % 2 == 0 ? bob : alice, TEXT + " #" + i));
+        }
+        try {
+            store.append(lines);
+        } catch (java.sql.SQLException e) {
+            throw new IllegalStateException(e);
+        }
+        BenchSession reader = BenchSession.login("bob", WireFormat.TEXT);
+        BenchSession binaryReader = BenchSession.login("bob", WireFormat.BINARY);
+        ByteBuffer whole = line("CHAT_HISTORY:" + alice);
+        ByteBuffer page = line("CHAT_HISTORY:" + alice + ":50");
+        cases.put("history.whole.text", () -> reader.receive(whole.duplicate()));
+        cases.put("history.page.text", () -> reader.receive(page.duplicate()));
+        cases.put("history.page.binary", () -> binaryReader.receive(binaryHistory(alice, 50)));
+        return cases;
+    }
+
+    private static ByteBuffer line(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // A HISTORY frame as the transport hands it over: without its length field.
+    private static ByteBuffer binaryHistory(int peerId, int pageSize) {
+        return ByteBuffer.allocate(1 + 4 + 16).put(BinaryWireFormat.HISTORY).putInt(1)
+                .putInt(peerId).putInt(pageSize).putLong(Long.MAX_VALUE).flip();
+    }
+
+    // {mean ops/s, spread of the iterations as +-% of the mean}
+    private static double[] measure(Op op) {
+        run(op, TimeUnit.SECONDS.toNanos(WARMUP_SECONDS));
+        double[] rates = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long begin = System.nanoTime();
+            long ops = run(op, TimeUnit.SECONDS.toNanos(ITERATION_SECONDS));
+            rates[i] = ops / ((System.nanoTime() - begin) / 1e9);
+        }
+        double mean = 0;
+        for (double rate : rates) {
+            mean += rate / ITERATIONS;
+        }
+        double variance = 0;
+        for (double rate : rates) {
+            variance += (rate - mean) * (rate - mean) / ITERATIONS;
+        }
+        return new double[]{mean, 100 * Math.sqrt(variance) / mean};
+    }
+
+    // Checks the clock once per batch so timing stays out of cheap cases.
+    private static long run(Op op, long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long ops = 0;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 256; i++) {
+                op.run();
+            }
+            ops += 256;
+        }
+        return ops;
+    }
+
+    private static void writeBaseline(Path file, Map<String, double[]> results) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append("# HotPathBenchmark baseline: ").append(System.getProperty("java.vm.name")).append(' ')
+                .append(System.getProperty("java.version")).append(", ").append(System.getProperty("os.name"))
+                .append(' ').append(System.getProperty("os.arch")).append(", ")
+                .append(Runtime.getRuntime().availableProcessors()).append(" cpus\n");
+        for (Map.Entry<String, double[]> entry : results.entrySet()) {
+            text.append(String.format(Locale.ROOT, "%-24s %16.0f %8.1f%n", entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+        }
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Files.writeString(file, text);
+        System.out.println("Baseline written to " + file);
+    }
+
+    private static boolean compareBaseline(Path file, Map<String, double[]> results) throws IOException {
+        boolean ok = true;
+        System.out.printf("%n%-24s %16s %16s %8s%n", "case", "baseline", "now", "change");
+        for (String line : Files.readAllLines(file)) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.trim().split("\\s+");
+            double[] now = results.get(fields[0]);
+            if (now == null) {
+                continue;
+            }
+            double baseline = Double.parseDouble(fields[1]);
+            double change = (now[0] - baseline) / baseline;
+            boolean regressed = change < -REGRESSION;
+            ok &= !regressed;
+            System.out.printf(Locale.ROOT, "%-24s %16.0f %16.0f %7.1f%%%s%n", fields[0], baseline, now[0], 100 * change,
+                    regressed ? "  REGRESSION" : "");
+        }
+        return ok;
+    }
+
+    // A logged-in session whose writer runs inline on the producing thread and only counts
+    // bytes, and whose chat lines are never stored.
+    private static final class BenchSession extends ChatSession {
+        BenchSession(int userId, WireFormat wire) {
+            this.userId = userId;
+            this.wire = wire;
+        }
+
+        static BenchSession login(String username, WireFormat wire) {
+            BenchSession session = new BenchSession(0, wire);
+            if (wire == WireFormat.BINARY) {
+                byte[] name = username.getBytes(StandardCharsets.UTF_8);
+                session.receive(ByteBuffer.allocate(5 + name.length).put(BinaryWireFormat.LOGIN).putInt(0).put(name).flip());
+            } else {
+                session.receive(line(username));
+            }
+            return session;
+        }
+
+        @Override
+        void scheduleFlush() {
+            do {
+                ByteBuffer frame;
+                while ((frame = pollOutbound()) != null) {
+                    sink += frame.remaining();
+                }
+            } while (finishFlush());
+        }
+
+        @Override
+        void closeConnection() {
+            closed.set(true);
+        }
+
+        @Override
+        void saveMessage(int recipientId, String message, BooleanSupplier onCommitted) {
+            sink += onCommitted.getAsBoolean() ? 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.Arrays;
+
+// Open-addressing hash map from int keys to objects: no boxed keys and no entry
+// objects, just two parallel arrays. Not thread-safe; owners guard it themselves.
+class IntObjectMap<V> {
+    private static final int FREE = 0;
+
+    private int[] keys;
+    private Object[] values;
+    // Key 0 is the free-slot marker, so its value lives outside the table.
+    private boolean hasZeroKey;
+    private Object zeroValue;
+    private int size;
+    private int mask;
+
+    IntObjectMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        if (key == FREE) {
+            return hasZeroKey ? (V) zeroValue : null;
+        }
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            int k = keys[i];
+            if (k == key) {
+                return (V) values[i];
+            }
+            if (k == FREE) {
+                return null;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(int key, V value) {
+        if (key == FREE) {
+            Object previous = zeroValue;
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue = value;
+            return (V) previous;
+        }
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            int k = keys[i];
+            if (k == key) {
+                Object previous = values[i];
+                values[i] = value;
+                return (V) previous;
+            }
+            if (k == FREE) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size * 2 > keys.length) {
+                    rehash(keys.length * 2);
+                }
+                return null;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(int key) {
+        if (key == FREE) {
+            Object previous = zeroValue;
+            if (hasZeroKey) {
+                hasZeroKey = false;
+                zeroValue = null;
+                size--;
+            }
+            return (V) previous;
+        }
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            int k = keys[i];
+            if (k == FREE) {
+                return null;
+            }
+            if (k == key) {
+                Object previous = values[i];
+                shiftBack(i);
+                size--;
+                return (V) previous;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(keys, FREE);
+        Arrays.fill(values, null);
+        hasZeroKey = false;
+        zeroValue = null;
+        size = 0;
+    }
+
+    interface Visitor<V> {
+        void visit(int key, V value);
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(Visitor<V> visitor) {
+        if (hasZeroKey) {
+            visitor.visit(FREE, (V) zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                visitor.visit(keys[i], (V) values[i]);
+            }
+        }
+    }
+
+    // Linear-probing deletion without tombstones: pull later entries of the cluster
+    // back into the hole when their home slot allows it.
+    private void shiftBack(int hole) {
+        for (int i = (hole + 1) & mask; keys[i] != FREE; i = (i + 1) & mask) {
+            int home = mix(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        keys[hole] = FREE;
+        values[hole] = null;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            int key = oldKeys[j];
+            if (key != FREE) {
+                int i = mix(key) & mask;
+                while (keys[i] != FREE) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,427 @@
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// The MySQL engine. Users and friend lists are served from UserCache when it has them;
+// everything else is a query over a pooled connection. Statements are closed
+// explicitly: pooled connections outlive every method here.
+final class JdbcStorage implements UserDirectory, MessageStore {
+    private static final String INSERT = "INSERT INTO messages (sender_id, receiver_id, message, conversation_id) VALUES (?, ?, ?, ?)";
+    // Every conversation needs an ack row for the unacked query to find it.
+    private static final String SEED_ACK = "INSERT IGNORE INTO message_acks (user_id, peer_id, last_msg_id) VALUES (?, ?, 0)";
+    // Lines copied from the message log keep the msg_id the log gave them, so a replay is a no-op.
+    private static final String INSERT_LOGGED = """
+            INSERT IGNORE INTO messages (msg_id, sender_id, receiver_id, message, conversation_id, timestamp)
+            VALUES (?, ?, ?, ?, ?, ?)
+            """;
+    private static final String UPSERT_ACK = """
+            INSERT INTO message_acks (user_id, peer_id, last_msg_id) VALUES (?, ?, ?)
+            ON DUPLICATE KEY UPDATE last_msg_id = GREATEST(last_msg_id, VALUES(last_msg_id))
+            """;
+
+    @Override
+    public int userId(String username) throws SQLException {
+        int cachedId = UserCache.enabled() ? UserCache.userId(username) : UserCache.MISSING;
+        if (cachedId != UserCache.MISSING) {
+            return cachedId;
+        }
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT id FROM users WHERE username = ?")) {
+            stmt.setString(1, username);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next()) {
+                return MISSING;
+            }
+            int id = rs.getInt("id");
+            // Registered after the cache was loaded.
+            UserCache.putUser(id, username);
+            return id;
+        }
+    }
+
+    @Override
+    public String username(int userId) throws SQLException {
+        String cached = UserCache.enabled() ? UserCache.username(userId) : null;
+        if (cached != null) {
+            return cached;
+        }
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT username FROM users WHERE id = ?")) {
+            stmt.setInt(1, userId);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+            String username = rs.getString(1);
+            UserCache.putUser(userId, username);
+            return username;
+        }
+    }
+
+    @Override
+    public Friends friends(int userId) throws SQLException {
+        Friends cached = cachedFriends(userId);
+        if (cached != null) {
+            return cached;
+        }
+        String query = """
+                SELECT users.id, users.username
+                FROM user_friends
+                JOIN users ON user_friends.friend_id = users.id
+                WHERE user_friends.user_id = ?;
+                """;
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
+            stmt.setInt(1, userId);
+            ResultSet rs = stmt.executeQuery();
+
+            List<Integer> ids = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            while (rs.next()) {
+                ids.add(rs.getInt("id"));
+                names.add(rs.getString("username"));
+            }
+            int[] friendIds = ids.stream().mapToInt(Integer::intValue).toArray();
+            String[] friendNames = names.toArray(new String[0]);
+            UserCache.putFriends(userId, friendIds, friendNames);
+            return new Friends(friendIds, friendNames);
+        }
+    }
+
+    // Null if the list or one of the names isn't cached.
+    private static Friends cachedFriends(int userId) {
+        if (!UserCache.enabled()) {
+            return null;
+        }
+        int[] friendIds = UserCache.friends(userId);
+        if (friendIds == null) {
+            return null;
+        }
+        String[] names = new String[friendIds.length];
+        for (int i = 0; i < friendIds.length; i++) {
+            names[i] = UserCache.username(friendIds[i]);
+            if (names[i] == null) {
+                return null;
+            }
+        }
+        return new Friends(friendIds, names);
+    }
+
+    // One multi-row INSERT (rewriteBatchedStatements) and one commit for the whole batch.
+    @Override
+    public long[] append(List<Line> lines) throws SQLException {
+        long[] ids = new long[lines.size()];
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(INSERT, Statement.RETURN_GENERATED_KEYS)) {
+                for (Line line : lines) {
+                    bindInsert(stmt, line);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                seedAcks(conn, lines);
+                conn.commit();
+                ResultSet keys = stmt.getGeneratedKeys();
+                for (int i = 0; i < ids.length && keys.next(); i++) {
+                    ids[i] = keys.getLong(1);
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public long append(Line line) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(INSERT, Statement.RETURN_GENERATED_KEYS)) {
+            seedAcks(conn, List.of(line));
+            bindInsert(stmt, line);
+            stmt.executeUpdate();
+            ResultSet keys = stmt.getGeneratedKeys();
+            return keys.next() ? keys.getLong(1) : 0;
+        }
+    }
+
+    private static void bindInsert(PreparedStatement stmt, Line line) throws SQLException {
+        stmt.setInt(1, line.senderId());
+        stmt.setInt(2, line.receiverId());
+        stmt.setString(3, line.text());
+        stmt.setLong(4, ConversationId.direct(line.senderId(), line.receiverId()));
+    }
+
+    private static void seedAcks(Connection conn, List<Line> lines) throws SQLException {
+        Set<Long> seen = new HashSet<>();
+        try (PreparedStatement stmt = conn.prepareStatement(SEED_ACK)) {
+            for (Line line : lines) {
+                if (seen.add(((long) line.receiverId() << 32) | (line.senderId() & 0xFFFFFFFFL))) {
+                    stmt.setInt(1, line.receiverId());
+                    stmt.setInt(2, line.senderId());
+                    stmt.addBatch();
+                }
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    // Reads the (conversation_id, msg_id) index once the backfill is done, and both
+    // directions of the pair over (sender_id, receiver_id, msg_id) until then.
+    @Override
+    public void conversation(int userId, int peerId, RowVisitor visitor) throws SQLException {
+        boolean keyed = ConversationBackfill.complete();
+        String query = keyed ? """
+                SELECT messages.sender_id, messages.message, messages.msg_id, users.username AS sender_name, messages.timestamp
+                FROM messages
+                JOIN users ON messages.sender_id = users.id
+                WHERE messages.conversation_id = ?
+                ORDER BY messages.msg_id ASC;
+                """ : """
+                SELECT messages.sender_id, messages.message, messages.msg_id, users.username AS sender_name, messages.timestamp
+                FROM messages
+                JOIN users ON messages.sender_id = users.id
+                WHERE (messages.sender_id = ? AND messages.receiver_id = ?)
+                OR (messages.sender_id = ? AND messages.receiver_id = ?)
+                ORDER BY messages.msg_id ASC;
+                """;
+        // Before borrowing a connection: on a user cache miss each lookup needs one too.
+        String userName = username(userId);
+        String peerName = username(peerId);
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = streamingStatement(conn, query)) {
+            if (keyed) {
+                stmt.setLong(1, ConversationId.direct(userId, peerId));
+            } else {
+                stmt.setInt(1, userId);
+                stmt.setInt(2, peerId);
+                stmt.setInt(3, peerId);
+                stmt.setInt(4, userId);
+            }
+            // The query's snapshot is taken before the archive is listed. Archiver writes a
+            // chunk's segments before deleting its rows, so lines deleted before the snapshot
+            // are in the listing, and lines in both are skipped below.
+            ResultSet rs = stmt.executeQuery();
+            // Archived lines are all older than the table's, unless a chunk was cut short
+            // between writing its segments and deleting its rows.
+            long[] archivedThrough = {0};
+            MessageArchive.forEach(ConversationId.direct(userId, peerId), row -> {
+                archivedThrough[0] = row.msgId();
+                visitor.row(named(row, userId, userName, peerName));
+            });
+            while (rs.next()) {
+                StoredMessage row = readRow(rs, userId, peerId);
+                if (row.msgId() > archivedThrough[0]) {
+                    visitor.row(row);
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("Could not read message archive", e);
+        }
+    }
+
+    // Walks the index backwards from the cursor and stops after limit rows, so a page
+    // costs the same however long the conversation is.
+    @Override
+    public List<StoredMessage> page(int userId, int peerId, long before, int limit) throws SQLException {
+        boolean keyed = ConversationBackfill.complete();
+        String query = keyed ? """
+                SELECT page.sender_id, page.message, page.msg_id, users.username AS sender_name, page.timestamp
+                FROM (SELECT sender_id, message, msg_id, timestamp FROM messages
+                      WHERE conversation_id = ? AND msg_id < ?
+                      ORDER BY msg_id DESC LIMIT ?) AS page
+                JOIN users ON page.sender_id = users.id
+                ORDER BY page.msg_id DESC;
+                """ : """
+                SELECT page.sender_id, page.message, page.msg_id, users.username AS sender_name, page.timestamp
+                FROM (
+                    (SELECT sender_id, message, msg_id, timestamp FROM messages
+                     WHERE sender_id = ? AND receiver_id = ? AND msg_id < ?
+                     ORDER BY msg_id DESC LIMIT ?)
+                    UNION
+                    (SELECT sender_id, message, msg_id, timestamp FROM messages
+                     WHERE sender_id = ? AND receiver_id = ? AND msg_id < ?
+                     ORDER BY msg_id DESC LIMIT ?)
+                ) AS page
+                JOIN users ON page.sender_id = users.id
+                ORDER BY page.msg_id DESC
+                LIMIT ?;
+                """;
+        List<StoredMessage> rows = new ArrayList<>(limit);
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = streamingStatement(conn, query)) {
+            if (keyed) {
+                stmt.setLong(1, ConversationId.direct(userId, peerId));
+                stmt.setLong(2, before);
+                stmt.setInt(3, limit);
+            } else {
+                stmt.setInt(1, userId);
+                stmt.setInt(2, peerId);
+                stmt.setLong(3, before);
+                stmt.setInt(4, limit);
+                stmt.setInt(5, peerId);
+                stmt.setInt(6, userId);
+                stmt.setLong(7, before);
+                stmt.setInt(8, limit);
+                stmt.setInt(9, limit);
+            }
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                rows.add(readRow(rs, userId, peerId));
+            }
+        }
+        // Scrolled past the table: the rest of the page comes from the archive, with the
+        // connection back in the pool before the names are looked up.
+        if (rows.size() < limit) {
+            long archiveBefore = rows.isEmpty() ? before : rows.get(rows.size() - 1).msgId();
+            List<StoredMessage> archived;
+            try {
+                archived = MessageArchive.page(ConversationId.direct(userId, peerId), archiveBefore, limit - rows.size());
+            } catch (IOException e) {
+                throw new SQLException("Could not read message archive", e);
+            }
+            if (!archived.isEmpty()) {
+                String userName = username(userId);
+                String peerName = username(peerId);
+                for (StoredMessage row : archived) {
+                    rows.add(named(row, userId, userName, peerName));
+                }
+            }
+        }
+        return rows;
+    }
+
+    // Archived rows are stored without sender names.
+    private static StoredMessage named(StoredMessage row, int userId, String userName, String peerName) {
+        return new StoredMessage(row.msgId(), row.senderId(), row.receiverId(),
+                row.senderId() == userId ? userName : peerName, row.text(), row.timestampMillis());
+    }
+
+    // For every conversation the user has an ack row for, the lines received past the
+    // ack, read along the (sender_id, receiver_id, msg_id) index: the cost follows the
+    // number of peers and missed lines, not the size of the history.
+    @Override
+    public List<StoredMessage> unacked(int userId, int limit) throws SQLException {
+        String query = """
+                SELECT m.sender_id, m.message, m.msg_id, users.username AS sender_name, m.timestamp
+                FROM message_acks a
+                JOIN messages m ON m.sender_id = a.peer_id AND m.receiver_id = a.user_id AND m.msg_id > a.last_msg_id
+                JOIN users ON m.sender_id = users.id
+                WHERE a.user_id = ?
+                ORDER BY m.msg_id DESC
+                LIMIT ?;
+                """;
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
+            stmt.setInt(1, userId);
+            stmt.setInt(2, limit);
+            ResultSet rs = stmt.executeQuery();
+            List<StoredMessage> rows = new ArrayList<>();
+            while (rs.next()) {
+                rows.add(readRow(rs, userId, userId));
+            }
+            return rows;
+        }
+    }
+
+    @Override
+    public void saveAcks(Map<Long, Long> acks) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(UPSERT_ACK)) {
+            for (Map.Entry<Long, Long> entry : acks.entrySet()) {
+                long key = entry.getKey();
+                stmt.setInt(1, (int) (key >>> 32));
+                stmt.setInt(2, (int) key);
+                stmt.setLong(3, entry.getValue());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    // Archived lines are gone from the table and are not visited.
+    @Override
+    public void since(long afterMsgId, RowVisitor visitor) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = streamingStatement(conn,
+                     "SELECT msg_id, sender_id, receiver_id, message, timestamp FROM messages WHERE msg_id > ? ORDER BY msg_id")) {
+            stmt.setLong(1, afterMsgId);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                visitor.row(new StoredMessage(rs.getLong(1), rs.getInt(2), rs.getInt(3), null, rs.getString(4),
+                        rs.getTimestamp(5).getTime()));
+            }
+        }
+    }
+
+    // Message log sink: one transaction per batch of logged lines.
+    void insertLogged(List<MessageLog.Entry> entries) throws SQLException {
+        List<Line> lines = new ArrayList<>(entries.size());
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(INSERT_LOGGED)) {
+                for (MessageLog.Entry entry : entries) {
+                    stmt.setLong(1, entry.msgId());
+                    stmt.setInt(2, entry.senderId());
+                    stmt.setInt(3, entry.receiverId());
+                    stmt.setString(4, entry.text());
+                    stmt.setLong(5, ConversationId.direct(entry.senderId(), entry.receiverId()));
+                    stmt.setTimestamp(6, new Timestamp(entry.timestampMillis()));
+                    stmt.addBatch();
+                    lines.add(new Line(entry.senderId(), entry.receiverId(), entry.text()));
+                }
+                stmt.executeBatch();
+                seedAcks(conn, lines);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    long maxMsgId() throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection();
+             Statement stmt = conn.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(msg_id), 0) FROM messages");
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    interface AckVisitor {
+        void ack(int userId, int peerId, long msgId);
+    }
+
+    void forEachAck(AckVisitor visitor) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = streamingStatement(conn, "SELECT user_id, peer_id, last_msg_id FROM message_acks")) {
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                visitor.ack(rs.getInt(1), rs.getInt(2), rs.getLong(3));
+            }
+        }
+    }
+
+    // Rows are streamed from the server one at a time instead of being buffered by the
+    // driver, so memory stays flat whatever the size of the result.
+    private static PreparedStatement streamingStatement(Connection conn, String query) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        stmt.setFetchSize(Integer.MIN_VALUE);
+        return stmt;
+    }
+
+    private static StoredMessage readRow(ResultSet rs, int userId, int peerId) throws SQLException {
+        int senderId = rs.getInt("sender_id");
+        return new StoredMessage(rs.getLong("msg_id"), senderId, senderId == userId ? peerId : userId,
+                rs.getString("sender_name"), rs.getString("message"), rs.getTimestamp("timestamp").getTime());
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// HDR-style latency histogram in nanoseconds: linear buckets below 2 * SUB_BUCKETS,
+// then SUB_BUCKETS buckets per power of two, so every recorded value lands in a bucket
+// within about 3% of it, from a nanosecond up to MAX_NANOS. Recording is a few
+// arithmetic ops and atomic adds on preallocated counters, with no allocation and no
+// lock, so it can sit on the message path. Counts are cumulative since startup.
+final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // About 18 minutes; anything slower is counted as this.
+    private static final long MAX_NANOS = 1L << 40;
+    private static final int BUCKETS = index(MAX_NANOS) + 1;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    String name() {
+        return name;
+    }
+
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, MAX_NANOS));
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long seen;
+        while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {
+            // Lost to another thread; retry against its value.
+        }
+    }
+
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    // The highest value that lands in the bucket.
+    private static long highestIn(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long top = SUB_BUCKETS + index % SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long sumNanos() {
+        return sum.sum();
+    }
+
+    long maxNanos() {
+        return max.get();
+    }
+
+    // The value below which the given fraction of recordings fall. Reads the counters
+    // one by one while recording goes on, so it is approximate under load.
+    long percentileNanos(double fraction) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,447 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Headless load for a running ChatServer: thousands of simulated users, each a blocking
+// socket driven by two virtual threads (one acting, one reading), speaking the line or
+// the binary protocol like ChatClient does.
+//
+//   java -cp out LoadGenerator [key=value ...]
+//
+//   host, port        server address (localhost, 1234)
+//   users             simulated users, logged in as <prefix>00000 ... (1000)
+//   prefix            username prefix (bench_)
+//   wire              text or binary (binary)
+//   loginRate         logins per second while ramping up (500)
+//   messageRate       chat lines per second across all users (1000)
+//   historyRate       friend clicks (one history page) per second across all users (50)
+//   pageSize          history page size (50)
+//   payload           chat line size in bytes (64)
+//   seconds           run time after the last login (60)
+//   reportSeconds     interval of the progress lines (5)
+//
+// Each user logs in at its slot of the ramp, then acts at exponentially distributed
+// intervals, sending to or opening the history of a random friend. Lines start with the
+// sender's System.nanoTime(), so the recipient, in this same JVM, measures end-to-end
+// delivery. Login latency includes the TCP connect; history latency runs up to the end
+// of the page. The users need to exist and have friends, e.g. a server started with
+//
+//   -Dchat.store=memory -Dchat.memory.seedUsers=10000 -Dchat.memory.seedFriends=5
+//
+// or MySQL users from ExecutionModeBenchmark --seed. Needs a file descriptor limit
+// above the user count.
+public class LoadGenerator {
+    private static final Map<String, String> options = new LinkedHashMap<>();
+
+    private static String host;
+    private static int port;
+    private static int users;
+    private static String prefix;
+    private static boolean binary;
+    private static double loginRate;
+    private static double messageRate;
+    private static double historyRate;
+    private static int pageSize;
+    private static int payload;
+
+    private static final LongAdder logins = new LongAdder();
+    private static final LongAdder loginFailures = new LongAdder();
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder delivered = new LongAdder();
+    private static final LongAdder histories = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+    private static final LongAdder disconnects = new LongAdder();
+    private static final LatencyHistogram loginLatency = new LatencyHistogram("login");
+    private static final LatencyHistogram deliveryLatency = new LatencyHistogram("delivery");
+    private static final LatencyHistogram historyLatency = new LatencyHistogram("history");
+
+    // User ids learnt from binary logins, by user index; 0 until that user is in. Peers
+    // for users without friends.
+    private static AtomicIntegerArray knownIds;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.out.println("Arguments are key=value; see the header of LoadGenerator.java.");
+                return;
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        host = option("host", "localhost");
+        port = Integer.parseInt(option("port", "1234"));
+        users = Integer.parseInt(option("users", "1000"));
+        prefix = option("prefix", "bench_");
+        binary = option("wire", "binary").equals("binary");
+        loginRate = Double.parseDouble(option("loginRate", "500"));
+        messageRate = Double.parseDouble(option("messageRate", "1000"));
+        historyRate = Double.parseDouble(option("historyRate", "50"));
+        pageSize = Integer.parseInt(option("pageSize", "50"));
+        payload = Integer.parseInt(option("payload", "64"));
+        int seconds = Integer.parseInt(option("seconds", "60"));
+        int reportSeconds = Integer.parseInt(option("reportSeconds", "5"));
+        System.out.println("LoadGenerator " + options);
+        knownIds = new AtomicIntegerArray(users);
+
+        long start = System.nanoTime();
+        long rampNanos = (long) (users / loginRate * 1e9);
+        long deadline = start + rampNanos + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] threads = new Thread[users];
+        for (int i = 0; i < users; i++) {
+            SimulatedUser user = new SimulatedUser(i, start + (long) (i / loginRate * 1e9), deadline);
+            threads[i] = Thread.ofVirtual().name("user-" + i).start(user::run);
+        }
+
+        System.out.printf("%8s %9s %8s %10s %12s %10s %8s %10s %10s%n",
+                "seconds", "logins", "failed", "sent/s", "delivered/s", "history/s", "errors", "p50 us", "p99 us");
+        long lastSent = 0;
+        long lastDelivered = 0;
+        long lastHistories = 0;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(reportSeconds),
+                    Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))));
+            long nowSent = sent.sum();
+            long nowDelivered = delivered.sum();
+            long nowHistories = histories.sum();
+            System.out.printf("%8d %9d %8d %10.0f %12.0f %10.0f %8d %10d %10d%n",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), logins.sum(), loginFailures.sum(),
+                    (nowSent - lastSent) / (double) reportSeconds, (nowDelivered - lastDelivered) / (double) reportSeconds,
+                    (nowHistories - lastHistories) / (double) reportSeconds, errors.sum(),
+                    deliveryLatency.percentileNanos(0.5) / 1000, deliveryLatency.percentileNanos(0.99) / 1000);
+            lastSent = nowSent;
+            lastDelivered = nowDelivered;
+            lastHistories = nowHistories;
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.println();
+        System.out.printf("%d logins (%d failed, %d disconnected), %d sent, %d delivered, %d history pages, %d errors in %.0f s%n",
+                logins.sum(), loginFailures.sum(), disconnects.sum(), sent.sum(), delivered.sum(), histories.sum(), errors.sum(), elapsed);
+        System.out.printf("throughput: %.0f sent/s, %.0f delivered/s%n", sent.sum() / elapsed, delivered.sum() / elapsed);
+        System.out.printf("%-10s %10s %10s %10s %10s %10s %10s%n", "latency", "count", "p50 us", "p90 us", "p99 us", "p999 us", "max us");
+        for (LatencyHistogram histogram : new LatencyHistogram[]{loginLatency, deliveryLatency, historyLatency}) {
+            System.out.printf("%-10s %10d %10d %10d %10d %10d %10d%n", histogram.name(), histogram.count(),
+                    histogram.percentileNanos(0.5) / 1000, histogram.percentileNanos(0.9) / 1000,
+                    histogram.percentileNanos(0.99) / 1000, histogram.percentileNanos(0.999) / 1000,
+                    histogram.maxNanos() / 1000);
+        }
+    }
+
+    private static String option(String key, String fallback) {
+        return options.getOrDefault(key, fallback);
+    }
+
+    private static final class SimulatedUser {
+        private final int index;
+        private final String username;
+        private final long loginAt;
+        private final long deadline;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private Socket socket;
+        private DataOutputStream out;
+        private DataInputStream in;
+        // Filled in by the reader as the friends list arrives.
+        private volatile int[] friends = new int[0];
+        // Send time of the outstanding history request, 0 when none.
+        private volatile long historySentAt;
+        private int requestId;
+
+        SimulatedUser(int index, long loginAt, long deadline) {
+            this.index = index;
+            this.username = String.format("%s%05d", prefix, index);
+            this.loginAt = loginAt;
+            this.deadline = deadline;
+        }
+
+        void run() {
+            try {
+                sleepUntil(loginAt);
+                if (!login()) {
+                    loginFailures.increment();
+                    close();
+                    return;
+                }
+                logins.increment();
+                Thread.ofVirtual().name("reader-" + index).start(this::read);
+                act();
+            } catch (IOException e) {
+                disconnects.increment();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        private boolean login() throws IOException {
+            long begin = System.nanoTime();
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (binary) {
+                out.write((BinaryWireFormat.HELLO + BinaryWireFormat.VERSION + "\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                if (!readLine().startsWith(BinaryWireFormat.HELLO)) {
+                    return false;
+                }
+                writeFrame(BinaryWireFormat.LOGIN, username.getBytes(StandardCharsets.UTF_8));
+                ByteBuffer reply = readFrame();
+                if (reply == null || reply.get() != BinaryWireFormat.LOGIN_OK) {
+                    return false;
+                }
+                reply.getInt();
+                knownIds.set(index, reply.getInt());
+            } else {
+                out.write((username + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                if (!readLine().startsWith("Login successful")) {
+                    return false;
+                }
+            }
+            loginLatency.recordSince(begin);
+            return true;
+        }
+
+        // A Poisson process of sends and friend clicks at this user's share of the rates.
+        private void act() throws IOException, InterruptedException {
+            double rate = (messageRate + historyRate) / users;
+            if (rate <= 0) {
+                sleepUntil(deadline);
+                return;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long next = System.nanoTime();
+            while (true) {
+                next += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+                if (next >= deadline) {
+                    sleepUntil(deadline);
+                    return;
+                }
+                sleepUntil(next);
+                int peer = peer(random);
+                if (peer == 0) {
+                    continue;
+                }
+                if (random.nextDouble() * (messageRate + historyRate) < messageRate) {
+                    send(peer);
+                } else if (historySentAt == 0) {
+                    history(peer);
+                }
+            }
+        }
+
+        private int peer(ThreadLocalRandom random) {
+            int[] known = friends;
+            if (known.length > 0) {
+                return known[random.nextInt(known.length)];
+            }
+            for (int attempt = 0; attempt < 4; attempt++) {
+                int id = knownIds.get(random.nextInt(users));
+                if (id != 0 && id != knownIds.get(index)) {
+                    return id;
+                }
+            }
+            return 0;
+        }
+
+        private void send(int peer) throws IOException {
+            StringBuilder text = new StringBuilder(payload).append(System.nanoTime()).append(' ');
+            while (text.length() < payload) {
+                text.append('x');
+            }
+            if (binary) {
+                byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer frame = ByteBuffer.allocate(4 + body.length).putInt(peer).put(body);
+                writeFrame(BinaryWireFormat.SEND, frame.array());
+            } else {
+                out.write((peer + ":" + text + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+            sent.increment();
+        }
+
+        private void history(int peer) throws IOException {
+            historySentAt = System.nanoTime();
+            if (binary) {
+                ByteBuffer request = ByteBuffer.allocate(16).putInt(peer).putInt(pageSize).putLong(Long.MAX_VALUE);
+                writeFrame(BinaryWireFormat.HISTORY, request.array());
+            } else {
+                out.write(("CHAT_HISTORY:" + peer + ":" + pageSize + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        }
+
+        private void read() {
+            try {
+                if (binary) {
+                    readFrames();
+                } else {
+                    readLines();
+                }
+            } catch (IOException ignored) {
+                // Closed at the end of the run, or by the server.
+            }
+        }
+
+        private void readFrames() throws IOException {
+            ByteBuffer frame;
+            while ((frame = readFrame()) != null) {
+                byte type = frame.get();
+                frame.getInt();
+                switch (type) {
+                    case BinaryWireFormat.MESSAGE -> {
+                        frame.getInt();
+                        BinaryWireFormat.readName(frame);
+                        received(BinaryWireFormat.readRest(frame));
+                    }
+                    case BinaryWireFormat.FRIENDS -> {
+                        int[] ids = new int[frame.getInt()];
+                        for (int i = 0; i < ids.length; i++) {
+                            ids[i] = frame.getInt();
+                            BinaryWireFormat.readName(frame);
+                        }
+                        friends = ids;
+                    }
+                    case BinaryWireFormat.HISTORY_END -> historyDone();
+                    case BinaryWireFormat.ERROR -> errors.increment();
+                    case BinaryWireFormat.HEARTBEAT -> writeFrame(BinaryWireFormat.HEARTBEAT_ACK, new byte[0]);
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        // Line replies carry no request ids; blocks of history and offline rows are skipped
+        // so their lines aren't taken for live ones.
+        private void readLines() throws IOException {
+            boolean inBlock = false;
+            String line;
+            while ((line = readLineOrNull()) != null) {
+                if (line.equals("ChatHistoryStart") || line.equals("ChatHistoryMore") || line.equals("OfflineMessagesStart")) {
+                    inBlock = true;
+                } else if (line.startsWith("ChatHistoryEnd")) {
+                    inBlock = false;
+                    historyDone();
+                } else if (line.equals("OfflineMessagesEnd")) {
+                    inBlock = false;
+                } else if (inBlock || line.startsWith("You") || line.equals("Friends List:")) {
+                    continue;
+                } else if (line.startsWith("Error")) {
+                    errors.increment();
+                } else if (!line.isEmpty() && Character.isDigit(line.charAt(0))) {
+                    // "<id>: <name>" from the friends list.
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        int[] grown = Arrays.copyOf(friends, friends.length + 1);
+                        grown[grown.length - 1] = Integer.parseInt(line.substring(0, colon));
+                        friends = grown;
+                    }
+                } else {
+                    int colon = line.indexOf(": ");
+                    if (colon > 0) {
+                        received(line.substring(colon + 2));
+                    }
+                }
+            }
+        }
+
+        private void received(String text) {
+            int space = text.indexOf(' ');
+            try {
+                long sentAt = Long.parseLong(space > 0 ? text.substring(0, space) : text);
+                deliveryLatency.recordSince(sentAt);
+                delivered.increment();
+            } catch (NumberFormatException ignored) {
+                // Not one of ours.
+            }
+        }
+
+        private void historyDone() {
+            long sentAt = historySentAt;
+            if (sentAt != 0) {
+                historyLatency.recordSince(sentAt);
+                histories.increment();
+                historySentAt = 0;
+            }
+        }
+
+        // The act thread writes requests and the reader answers heartbeats.
+        private void writeFrame(byte type, byte[] payload) throws IOException {
+            writeLock.lock();
+            try {
+                out.writeInt(BinaryWireFormat.HEADER_BYTES + payload.length);
+                out.writeByte(type);
+                out.writeInt(++requestId);
+                out.write(payload);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private ByteBuffer readFrame() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            byte[] frame = new byte[length];
+            in.readFully(frame);
+            return ByteBuffer.wrap(frame);
+        }
+
+        private String readLine() throws IOException {
+            String line = readLineOrNull();
+            if (line == null) {
+                throw new EOFException("connection closed");
+            }
+            return line;
+        }
+
+        // UTF-8 line without its terminator, read byte by byte off the buffered stream so
+        // the same stream can switch to frames after the hello.
+        private String readLineOrNull() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    return line.size() > 0 ? line.toString(StandardCharsets.UTF_8) : null;
+                }
+                line.write(b);
+            }
+            return line.toString(StandardCharsets.UTF_8);
+        }
+
+        private void close() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long remaining = nanoTime - System.nanoTime();
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+}
@@ -0,0 +1,459 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Message store with the local MessageLog as its hot path and MySQL as a secondary
+// sink. A persister batch is one write and one fsync to the log; a shipper thread then
+// copies the log into MySQL in msg_id order and records how far it got in a cursor
+// file. After a crash the shipper starts from the cursor, so the unshipped tail is
+// replayed; the copies keep their msg_ids and INSERT IGNORE makes the replay harmless.
+//
+// Every conversation with lines in the log has an in-memory offset index, rebuilt by
+// scanning the log at startup, so a history page is a binary search plus one positional
+// read per line. Shipped segments beyond RETAIN_SEGMENTS are deleted; anything older
+// than the log is read from MySQL. Acks live on the index too, loaded from
+// message_acks at startup and written through to it.
+final class LogStorage implements MessageStore {
+    private final JdbcStorage sink;
+    private final UserDirectory users;
+    private final MessageLog log;
+    private final Path cursorFile;
+    private final Thread shipper = new Thread(this::ship, "log-shipper");
+
+    // Appends come from the persister thread; the lock keeps msg_ids in log order regardless.
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private volatile long nextMsgId;
+    // The log holds every line from this msg_id on; older ones are only in MySQL.
+    private volatile long firstLoggedMsgId;
+    // Log position up to which lines are in MySQL.
+    private volatile long shipped;
+
+    private final ReentrantReadWriteLock conversationsLock = new ReentrantReadWriteLock();
+    private final IntObjectMap<IntObjectMap<Conversation>> byUser = new IntObjectMap<>(ServerConfig.EXPECTED_USERS);
+
+    LogStorage(JdbcStorage sink, UserDirectory users) {
+        this.sink = sink;
+        this.users = users;
+        Path dir = Paths.get(ServerConfig.LOG_DIR);
+        log = new MessageLog(dir, ServerConfig.LOG_SEGMENT_BYTES, ServerConfig.LOG_FSYNC);
+        cursorFile = dir.resolve("shipped");
+        shipper.setDaemon(true);
+    }
+
+    void start() throws IOException, SQLException {
+        long begin = System.nanoTime();
+        long[] logged = {0, 0};
+        log.recover(entry -> {
+            if (logged[0] == 0) {
+                logged[0] = entry.msgId();
+            }
+            logged[1] = entry.msgId();
+            index(entry.msgId(), entry.senderId(), entry.receiverId(), entry.position());
+        });
+        nextMsgId = Math.max(logged[1], sink.maxMsgId()) + 1;
+        firstLoggedMsgId = logged[0] != 0 ? logged[0] : nextMsgId;
+        sink.forEachAck((userId, peerId, msgId) -> ack(conversation(userId, peerId, true), userId, msgId));
+        shipped = Math.max(log.start(), Math.min(readCursor(), log.end()));
+        System.out.println("Message log: " + log.segmentCount() + " segments up to msg_id " + logged[1]
+                + " indexed in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + " ms"
+                + (shipped < log.end() ? ", replaying " + (log.end() - shipped) + " unshipped bytes into MySQL." : "."));
+        shipper.start();
+    }
+
+    @Override
+    public long[] append(List<Line> lines) throws SQLException {
+        for (Line line : lines) {
+            if (users.username(line.receiverId()) == null) {
+                // Refused before the log, as the foreign key would refuse it in MySQL.
+                throw new BatchUpdateException("Unknown receiver " + line.receiverId(), new int[0]);
+            }
+        }
+        return write(lines);
+    }
+
+    @Override
+    public long append(Line line) throws SQLException {
+        if (users.username(line.receiverId()) == null) {
+            throw new SQLException("Unknown receiver " + line.receiverId());
+        }
+        return write(List.of(line))[0];
+    }
+
+    private long[] write(List<Line> lines) throws SQLException {
+        appendLock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            List<MessageLog.Entry> entries = new ArrayList<>(lines.size());
+            long[] msgIds = new long[lines.size()];
+            for (int i = 0; i < msgIds.length; i++) {
+                Line line = lines.get(i);
+                msgIds[i] = nextMsgId++;
+                entries.add(new MessageLog.Entry(0, msgIds[i], line.senderId(), line.receiverId(), now, line.text()));
+            }
+            long[] positions = log.append(entries);
+            for (int i = 0; i < msgIds.length; i++) {
+                index(msgIds[i], lines.get(i).senderId(), lines.get(i).receiverId(), positions[i]);
+            }
+            LockSupport.unpark(shipper);
+            return msgIds;
+        } catch (IOException e) {
+            throw new SQLException("Could not write message log", e);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void index(long msgId, int senderId, int receiverId, long position) {
+        Conversation conversation = conversation(senderId, receiverId, true);
+        conversation.lock.lock();
+        try {
+            conversation.add(msgId, senderId == conversation.low, position, firstLoggedMsgId);
+        } finally {
+            conversation.lock.unlock();
+        }
+    }
+
+    // The log part first, newest first; MySQL fills the rest of the page from below the
+    // log, unless it is already known to hold nothing older for this conversation.
+    @Override
+    public List<StoredMessage> page(int userId, int peerId, long before, int limit) throws SQLException {
+        long firstLogged = firstLoggedMsgId;
+        List<StoredMessage> rows = new ArrayList<>(limit);
+        long sinkBefore = Math.min(before, firstLogged);
+        Conversation conversation = conversation(userId, peerId, false);
+        if (conversation != null) {
+            long[] positions;
+            conversation.lock.lock();
+            try {
+                int end = conversation.indexBefore(before);
+                int start = Math.max(conversation.indexBefore(firstLogged), end - limit);
+                positions = Arrays.copyOfRange(conversation.positions, start, Math.max(start, end));
+            } finally {
+                conversation.lock.unlock();
+            }
+            String[] names = names(conversation);
+            for (int i = positions.length - 1; i >= 0; i--) {
+                MessageLog.Entry entry = read(positions[i]);
+                if (entry == null) {
+                    // The segment was shipped and deleted meanwhile; MySQL has the rest.
+                    sinkBefore = rows.isEmpty() ? before : rows.get(rows.size() - 1).msgId();
+                    break;
+                }
+                rows.add(toMessage(entry, conversation, names));
+            }
+            if (rows.size() < limit && sinkBefore <= conversation.sinkEmptyBelow) {
+                return rows;
+            }
+        }
+        if (rows.size() < limit) {
+            List<StoredMessage> older = sink.page(userId, peerId, sinkBefore, limit - rows.size());
+            if (older.isEmpty() && conversation != null) {
+                conversation.lock.lock();
+                try {
+                    conversation.sinkEmptyBelow = Math.max(conversation.sinkEmptyBelow, sinkBefore);
+                } finally {
+                    conversation.lock.unlock();
+                }
+            }
+            rows.addAll(older);
+        }
+        return rows;
+    }
+
+    @Override
+    public void conversation(int userId, int peerId, RowVisitor visitor) throws SQLException {
+        long firstLogged = firstLoggedMsgId;
+        Conversation conversation = conversation(userId, peerId, false);
+        if (conversation == null || firstLogged > conversation.sinkEmptyBelow) {
+            sink.conversation(userId, peerId, row -> {
+                if (row.msgId() < firstLogged) {
+                    visitor.row(row);
+                }
+            });
+        }
+        if (conversation == null) {
+            return;
+        }
+        long[] positions;
+        conversation.lock.lock();
+        try {
+            int start = conversation.indexBefore(firstLogged);
+            positions = Arrays.copyOfRange(conversation.positions, start, conversation.size);
+        } finally {
+            conversation.lock.unlock();
+        }
+        String[] names = names(conversation);
+        for (long position : positions) {
+            MessageLog.Entry entry = read(position);
+            if (entry != null) {
+                visitor.row(toMessage(entry, conversation, names));
+            }
+        }
+    }
+
+    // The log's unacked lines merged with MySQL's from below the log.
+    @Override
+    public List<StoredMessage> unacked(int userId, int limit) throws SQLException {
+        long firstLogged = firstLoggedMsgId;
+        List<Conversation> mine = new ArrayList<>();
+        conversationsLock.readLock().lock();
+        try {
+            IntObjectMap<Conversation> peers = byUser.get(userId);
+            if (peers != null) {
+                peers.forEach((peerId, conversation) -> mine.add(conversation));
+            }
+        } finally {
+            conversationsLock.readLock().unlock();
+        }
+        List<StoredMessage> missed = new ArrayList<>();
+        for (Conversation conversation : mine) {
+            boolean userIsLow = userId == conversation.low;
+            List<Long> positions = new ArrayList<>();
+            conversation.lock.lock();
+            try {
+                long acked = Math.max(userIsLow ? conversation.lowAck : conversation.highAck, firstLogged - 1);
+                for (int i = conversation.size - 1; i >= 0 && conversation.msgIds[i] > acked && positions.size() < limit; i--) {
+                    if (conversation.fromLow[i] != userIsLow) {
+                        positions.add(conversation.positions[i]);
+                    }
+                }
+            } finally {
+                conversation.lock.unlock();
+            }
+            if (positions.isEmpty()) {
+                continue;
+            }
+            String[] names = names(conversation);
+            for (long position : positions) {
+                MessageLog.Entry entry = read(position);
+                if (entry != null) {
+                    missed.add(toMessage(entry, conversation, names));
+                }
+            }
+        }
+        for (StoredMessage row : sink.unacked(userId, limit)) {
+            if (row.msgId() < firstLogged) {
+                missed.add(row);
+            }
+        }
+        missed.sort(Comparator.comparingLong(StoredMessage::msgId).reversed());
+        return missed.size() > limit ? new ArrayList<>(missed.subList(0, limit)) : missed;
+    }
+
+    // MySQL up to the log, then the log itself.
+    @Override
+    public void since(long afterMsgId, RowVisitor visitor) throws SQLException {
+        long firstLogged = firstLoggedMsgId;
+        if (afterMsgId < firstLogged - 1) {
+            sink.since(afterMsgId, row -> {
+                if (row.msgId() < firstLogged) {
+                    visitor.row(row);
+                }
+            });
+        }
+        try {
+            log.scan(log.start(), Integer.MAX_VALUE, entry -> {
+                if (entry.msgId() > afterMsgId) {
+                    visitor.row(new StoredMessage(entry.msgId(), entry.senderId(), entry.receiverId(), null,
+                            entry.text(), entry.timestampMillis()));
+                }
+            });
+        } catch (IOException e) {
+            throw new SQLException("Could not read message log", e);
+        }
+    }
+
+    @Override
+    public void saveAcks(Map<Long, Long> acks) throws SQLException {
+        for (Map.Entry<Long, Long> entry : acks.entrySet()) {
+            long key = entry.getKey();
+            int userId = (int) (key >>> 32);
+            Conversation conversation = conversation(userId, (int) key, false);
+            if (conversation != null) {
+                ack(conversation, userId, entry.getValue());
+            }
+        }
+        sink.saveAcks(acks);
+    }
+
+    private static void ack(Conversation conversation, int userId, long msgId) {
+        conversation.lock.lock();
+        try {
+            if (userId == conversation.low) {
+                conversation.lowAck = Math.max(conversation.lowAck, msgId);
+            } else {
+                conversation.highAck = Math.max(conversation.highAck, msgId);
+            }
+        } finally {
+            conversation.lock.unlock();
+        }
+    }
+
+    private MessageLog.Entry read(long position) throws SQLException {
+        try {
+            return log.read(position);
+        } catch (IOException e) {
+            throw new SQLException("Could not read message log", e);
+        }
+    }
+
+    private Conversation conversation(int a, int b, boolean create) {
+        int low = Math.min(a, b);
+        int high = Math.max(a, b);
+        conversationsLock.readLock().lock();
+        try {
+            IntObjectMap<Conversation> peers = byUser.get(low);
+            Conversation conversation = peers != null ? peers.get(high) : null;
+            if (conversation != null || !create) {
+                return conversation;
+            }
+        } finally {
+            conversationsLock.readLock().unlock();
+        }
+        conversationsLock.writeLock().lock();
+        try {
+            IntObjectMap<Conversation> peers = peers(low);
+            Conversation conversation = peers.get(high);
+            if (conversation == null) {
+                conversation = new Conversation(low, high);
+                peers.put(high, conversation);
+                peers(high).put(low, conversation);
+            }
+            return conversation;
+        } finally {
+            conversationsLock.writeLock().unlock();
+        }
+    }
+
+    private IntObjectMap<Conversation> peers(int userId) {
+        IntObjectMap<Conversation> peers = byUser.get(userId);
+        if (peers == null) {
+            peers = new IntObjectMap<>(8);
+            byUser.put(userId, peers);
+        }
+        return peers;
+    }
+
+    // Index 0 is the low user's name.
+    private String[] names(Conversation conversation) throws SQLException {
+        return new String[]{users.username(conversation.low), users.username(conversation.high)};
+    }
+
+    private static StoredMessage toMessage(MessageLog.Entry entry, Conversation conversation, String[] names) {
+        String name = entry.senderId() == conversation.low ? names[0] : names[1];
+        return new StoredMessage(entry.msgId(), entry.senderId(), entry.receiverId(), name, entry.text(), entry.timestampMillis());
+    }
+
+    // Copies the log into MySQL, a batch at a time, and parks while it is caught up.
+    private void ship() {
+        List<MessageLog.Entry> batch = new ArrayList<>(ServerConfig.LOG_SHIP_BATCH);
+        while (true) {
+            try {
+                if (shipped >= log.end()) {
+                    LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+                    continue;
+                }
+                batch.clear();
+                long next = log.scan(shipped, ServerConfig.LOG_SHIP_BATCH, batch::add);
+                if (!batch.isEmpty()) {
+                    sink.insertLogged(batch);
+                    ChatStats.logShipped.add(batch.size());
+                }
+                shipped = next;
+                writeCursor(next);
+                deleteShippedSegments();
+            } catch (IOException | SQLException e) {
+                // The cursor stays put and the batch is tried again; the log keeps every line meanwhile.
+                System.out.println("Could not ship message log: " + e.getMessage());
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    private void deleteShippedSegments() throws IOException {
+        while (log.segmentCount() > ServerConfig.LOG_RETAIN_SEGMENTS) {
+            long start = log.deleteOldest(shipped);
+            if (start < 0) {
+                return;
+            }
+            MessageLog.Entry first = start < log.end() ? log.read(start) : null;
+            firstLoggedMsgId = first != null ? first.msgId() : nextMsgId;
+        }
+    }
+
+    private long readCursor() throws IOException {
+        if (!Files.exists(cursorFile)) {
+            return 0;
+        }
+        return ByteBuffer.wrap(Files.readAllBytes(cursorFile)).getLong();
+    }
+
+    // Not forced: a cursor lost in a crash only means some lines are shipped twice.
+    private void writeCursor(long position) throws IOException {
+        Path temp = cursorFile.resolveSibling("shipped.tmp");
+        Files.write(temp, ByteBuffer.allocate(8).putLong(position).array());
+        Files.move(temp, cursorFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    String snapshot() {
+        return "logSegments=" + log.segmentCount() + " logBytes=" + (log.end() - log.start())
+                + " logUnshippedBytes=" + (log.end() - shipped);
+    }
+
+    private static final class Conversation {
+        final ReentrantLock lock = new ReentrantLock();
+        final int low;
+        final int high;
+        long[] msgIds = new long[8];
+        boolean[] fromLow = new boolean[8];
+        long[] positions = new long[8];
+        int size;
+        long lowAck;
+        long highAck;
+        // MySQL is known to hold no line of this conversation below this msg_id.
+        volatile long sinkEmptyBelow;
+
+        Conversation(int low, int high) {
+            this.low = low;
+            this.high = high;
+        }
+
+        void add(long msgId, boolean lowSent, long position, long firstLogged) {
+            if (size == msgIds.length) {
+                // Entries of deleted segments go first; only grow if that frees nothing.
+                int stale = indexBefore(firstLogged);
+                if (stale > 0) {
+                    System.arraycopy(msgIds, stale, msgIds, 0, size - stale);
+                    System.arraycopy(fromLow, stale, fromLow, 0, size - stale);
+                    System.arraycopy(positions, stale, positions, 0, size - stale);
+                    size -= stale;
+                } else {
+                    msgIds = Arrays.copyOf(msgIds, size * 2);
+                    fromLow = Arrays.copyOf(fromLow, size * 2);
+                    positions = Arrays.copyOf(positions, size * 2);
+                }
+            }
+            msgIds[size] = msgId;
+            fromLow[size] = lowSent;
+            positions[size] = position;
+            size++;
+        }
+
+        // Index of the first entry at or past msgId.
+        int indexBefore(long msgId) {
+            int found = Arrays.binarySearch(msgIds, 0, size, msgId);
+            return found >= 0 ? found : -found - 1;
+        }
+    }
+}
@@ -0,0 +1,403 @@
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// The database-free engine, so load tests and benchmarks can run a whole server on one
+// machine. Nothing survives a restart.
+//
+// Users and friend lists sit in the same primitive-keyed maps as UserCache. Every 1:1
+// conversation is an append-only log of parallel arrays in msg_id order, reachable from
+// both participants' peer maps, and carries both participants' acks, so the unacked
+// scan only visits the user's own conversations and only their unacked tail.
+final class MemoryStorage implements UserDirectory, MessageStore {
+    private static final int[] NO_FRIENDS = new int[0];
+
+    private final ReentrantReadWriteLock usersLock = new ReentrantReadWriteLock();
+    private final StringIntMap ids;
+    private final IntObjectMap<String> names;
+    private final IntObjectMap<int[]> friends;
+    private int nextUserId = 1;
+
+    // Guards the peer maps only; each conversation has its own lock.
+    private final ReentrantReadWriteLock conversationsLock = new ReentrantReadWriteLock();
+    private final IntObjectMap<IntObjectMap<Conversation>> byUser;
+    private final AtomicLong nextMsgId = new AtomicLong();
+
+    MemoryStorage(int expectedUsers) {
+        ids = new StringIntMap(expectedUsers);
+        names = new IntObjectMap<>(expectedUsers);
+        friends = new IntObjectMap<>(expectedUsers);
+        byUser = new IntObjectMap<>(expectedUsers);
+    }
+
+    // The user's id, creating the user first if the name is new.
+    int addUser(String username) {
+        usersLock.writeLock().lock();
+        try {
+            int id = ids.get(username, MISSING);
+            if (id == MISSING) {
+                id = nextUserId++;
+                ids.put(username, id);
+                names.put(id, username);
+            }
+            return id;
+        } finally {
+            usersLock.writeLock().unlock();
+        }
+    }
+
+    void addFriendship(int a, int b) {
+        usersLock.writeLock().lock();
+        try {
+            link(a, b);
+            link(b, a);
+        } finally {
+            usersLock.writeLock().unlock();
+        }
+    }
+
+    private void link(int userId, int friendId) {
+        int[] list = friends.get(userId);
+        if (list == null) {
+            list = NO_FRIENDS;
+        }
+        for (int id : list) {
+            if (id == friendId) {
+                return;
+            }
+        }
+        int[] grown = Arrays.copyOf(list, list.length + 1);
+        grown[list.length] = friendId;
+        friends.put(userId, grown);
+    }
+
+    // prefix00000, prefix00001, ... each befriended with the next friendsPerUser users
+    // around the ring, the naming the benchmarks log in with.
+    void seed(String prefix, int count, int friendsPerUser) {
+        int[] seeded = new int[count];
+        for (int i = 0; i < count; i++) {
+            seeded[i] = addUser(String.format("%s%05d", prefix, i));
+        }
+        for (int i = 0; i < count; i++) {
+            for (int k = 1; k <= Math.min(friendsPerUser, count - 1); k++) {
+                addFriendship(seeded[i], seeded[(i + k) % count]);
+            }
+        }
+        if (count > 0) {
+            System.out.println("Seeded " + count + " in-memory users with " + friendsPerUser + " friends each.");
+        }
+    }
+
+    @Override
+    public String username(int userId) {
+        usersLock.readLock().lock();
+        try {
+            return names.get(userId);
+        } finally {
+            usersLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int userId(String username) {
+        usersLock.readLock().lock();
+        try {
+            int id = ids.get(username, MISSING);
+            if (id != MISSING || !ServerConfig.MEMORY_AUTO_REGISTER) {
+                return id;
+            }
+        } finally {
+            usersLock.readLock().unlock();
+        }
+        return addUser(username);
+    }
+
+    @Override
+    public Friends friends(int userId) {
+        usersLock.readLock().lock();
+        try {
+            int[] list = friends.get(userId);
+            if (list == null) {
+                list = NO_FRIENDS;
+            }
+            String[] friendNames = new String[list.length];
+            for (int i = 0; i < list.length; i++) {
+                friendNames[i] = names.get(list[i]);
+            }
+            return new Friends(list.clone(), friendNames);
+        } finally {
+            usersLock.readLock().unlock();
+        }
+    }
+
+    // Rejected as a whole if any receiver is unknown, like the foreign key would.
+    @Override
+    public long[] append(List<Line> lines) throws SQLException {
+        usersLock.readLock().lock();
+        try {
+            for (Line line : lines) {
+                if (names.get(line.receiverId()) == null) {
+                    throw new BatchUpdateException("Unknown receiver " + line.receiverId(), new int[0]);
+                }
+            }
+        } finally {
+            usersLock.readLock().unlock();
+        }
+        long[] msgIds = new long[lines.size()];
+        for (int i = 0; i < msgIds.length; i++) {
+            msgIds[i] = store(lines.get(i));
+        }
+        return msgIds;
+    }
+
+    @Override
+    public long append(Line line) throws SQLException {
+        if (username(line.receiverId()) == null) {
+            throw new SQLException("Unknown receiver " + line.receiverId());
+        }
+        return store(line);
+    }
+
+    private long store(Line line) {
+        Conversation conversation = conversation(line.senderId(), line.receiverId(), true);
+        conversation.lock.lock();
+        try {
+            // Taken under the conversation lock so every log stays in msg_id order.
+            long msgId = nextMsgId.incrementAndGet();
+            conversation.add(msgId, line.senderId() == conversation.low, System.currentTimeMillis(), line.text());
+            return msgId;
+        } finally {
+            conversation.lock.unlock();
+        }
+    }
+
+    private Conversation conversation(int a, int b, boolean create) {
+        int low = Math.min(a, b);
+        int high = Math.max(a, b);
+        conversationsLock.readLock().lock();
+        try {
+            IntObjectMap<Conversation> peers = byUser.get(low);
+            Conversation conversation = peers != null ? peers.get(high) : null;
+            if (conversation != null || !create) {
+                return conversation;
+            }
+        } finally {
+            conversationsLock.readLock().unlock();
+        }
+        conversationsLock.writeLock().lock();
+        try {
+            IntObjectMap<Conversation> peers = peers(low);
+            Conversation conversation = peers.get(high);
+            if (conversation == null) {
+                conversation = new Conversation(low, high);
+                peers.put(high, conversation);
+                peers(high).put(low, conversation);
+            }
+            return conversation;
+        } finally {
+            conversationsLock.writeLock().unlock();
+        }
+    }
+
+    private IntObjectMap<Conversation> peers(int userId) {
+        IntObjectMap<Conversation> peers = byUser.get(userId);
+        if (peers == null) {
+            peers = new IntObjectMap<>(8);
+            byUser.put(userId, peers);
+        }
+        return peers;
+    }
+
+    // Copied out under the lock, then handed over without it: the visitor may block on a slow client.
+    @Override
+    public void conversation(int userId, int peerId, RowVisitor visitor) {
+        Conversation conversation = conversation(userId, peerId, false);
+        if (conversation == null) {
+            return;
+        }
+        List<StoredMessage> rows;
+        conversation.lock.lock();
+        try {
+            rows = conversation.rows(0, conversation.size);
+        } finally {
+            conversation.lock.unlock();
+        }
+        String[] names = names(conversation);
+        for (StoredMessage row : rows) {
+            visitor.row(withName(row, names));
+        }
+    }
+
+    @Override
+    public List<StoredMessage> page(int userId, int peerId, long before, int limit) {
+        Conversation conversation = conversation(userId, peerId, false);
+        if (conversation == null) {
+            return List.of();
+        }
+        List<StoredMessage> rows;
+        conversation.lock.lock();
+        try {
+            int end = conversation.indexBefore(before);
+            rows = conversation.rows(Math.max(0, end - limit), end);
+        } finally {
+            conversation.lock.unlock();
+        }
+        String[] names = names(conversation);
+        List<StoredMessage> page = new ArrayList<>(rows.size());
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            page.add(withName(rows.get(i), names));
+        }
+        return page;
+    }
+
+    @Override
+    public List<StoredMessage> unacked(int userId, int limit) {
+        List<Conversation> mine = new ArrayList<>();
+        conversationsLock.readLock().lock();
+        try {
+            IntObjectMap<Conversation> peers = byUser.get(userId);
+            if (peers != null) {
+                peers.forEach((peerId, conversation) -> mine.add(conversation));
+            }
+        } finally {
+            conversationsLock.readLock().unlock();
+        }
+        List<StoredMessage> missed = new ArrayList<>();
+        for (Conversation conversation : mine) {
+            boolean userIsLow = userId == conversation.low;
+            List<StoredMessage> rows = new ArrayList<>();
+            conversation.lock.lock();
+            try {
+                long acked = userIsLow ? conversation.lowAck : conversation.highAck;
+                for (int i = conversation.size - 1; i >= 0 && conversation.msgIds[i] > acked && rows.size() < limit; i--) {
+                    // Only the peer's lines; the user's own need no delivery.
+                    if (conversation.fromLow[i] != userIsLow) {
+                        rows.add(conversation.row(i));
+                    }
+                }
+            } finally {
+                conversation.lock.unlock();
+            }
+            String[] names = names(conversation);
+            for (StoredMessage row : rows) {
+                missed.add(withName(row, names));
+            }
+        }
+        missed.sort(Comparator.comparingLong(StoredMessage::msgId).reversed());
+        return missed.size() > limit ? new ArrayList<>(missed.subList(0, limit)) : missed;
+    }
+
+    // Nothing outlives the process, so there is never anything to catch up on.
+    @Override
+    public void since(long afterMsgId, RowVisitor visitor) {
+    }
+
+    @Override
+    public void saveAcks(Map<Long, Long> acks) {
+        for (Map.Entry<Long, Long> entry : acks.entrySet()) {
+            long key = entry.getKey();
+            int userId = (int) (key >>> 32);
+            Conversation conversation = conversation(userId, (int) key, false);
+            if (conversation == null) {
+                continue;
+            }
+            conversation.lock.lock();
+            try {
+                if (userId == conversation.low) {
+                    conversation.lowAck = Math.max(conversation.lowAck, entry.getValue());
+                } else {
+                    conversation.highAck = Math.max(conversation.highAck, entry.getValue());
+                }
+            } finally {
+                conversation.lock.unlock();
+            }
+        }
+    }
+
+    private String[] names(Conversation conversation) {
+        usersLock.readLock().lock();
+        try {
+            return new String[]{names.get(conversation.low), names.get(conversation.high)};
+        } finally {
+            usersLock.readLock().unlock();
+        }
+    }
+
+    // Rows come out of the log without names; index 0 is the low user's.
+    private static StoredMessage withName(StoredMessage row, String[] names) {
+        String name = row.senderId() == Math.min(row.senderId(), row.receiverId()) ? names[0] : names[1];
+        return new StoredMessage(row.msgId(), row.senderId(), row.receiverId(), name, row.text(), row.timestampMillis());
+    }
+
+    String snapshot() {
+        int users;
+        usersLock.readLock().lock();
+        try {
+            users = ids.size();
+        } finally {
+            usersLock.readLock().unlock();
+        }
+        return "memoryUsers=" + users + " memoryMessages=" + nextMsgId.get();
+    }
+
+    private static final class Conversation {
+        final ReentrantLock lock = new ReentrantLock();
+        final int low;
+        final int high;
+        long[] msgIds = new long[8];
+        boolean[] fromLow = new boolean[8];
+        long[] timestamps = new long[8];
+        String[] texts = new String[8];
+        int size;
+        // Highest msg_id each side has acknowledged.
+        long lowAck;
+        long highAck;
+
+        Conversation(int low, int high) {
+            this.low = low;
+            this.high = high;
+        }
+
+        void add(long msgId, boolean lowSent, long timestamp, String text) {
+            if (size == msgIds.length) {
+                int capacity = size * 2;
+                msgIds = Arrays.copyOf(msgIds, capacity);
+                fromLow = Arrays.copyOf(fromLow, capacity);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                texts = Arrays.copyOf(texts, capacity);
+            }
+            msgIds[size] = msgId;
+            fromLow[size] = lowSent;
+            timestamps[size] = timestamp;
+            texts[size] = text;
+            size++;
+        }
+
+        // Index of the first message at or past before, by binary search over the ordered ids.
+        int indexBefore(long before) {
+            int found = Arrays.binarySearch(msgIds, 0, size, before);
+            return found >= 0 ? found : -found - 1;
+        }
+
+        StoredMessage row(int i) {
+            boolean lowSent = fromLow[i];
+            return new StoredMessage(msgIds[i], lowSent ? low : high, lowSent ? high : low, null, texts[i], timestamps[i]);
+        }
+
+        // Oldest first.
+        List<StoredMessage> rows(int from, int to) {
+            List<StoredMessage> rows = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                rows.add(row(i));
+            }
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Cold messages moved out of the messages table by Archiver. Every conversation has a
+// directory of immutable segment files, <firstMsgId>-<lastMsgId>.seg, each holding a
+// run of its lines in msg_id order:
+//
+//   block* | index | long indexOffset
+//   block  = GZIP of BLOCK_ROWS rows of long msgId | int senderId | int receiverId |
+//            long timestampMillis | int textLength | UTF-8 text
+//   index  = int blocks, then per block long firstMsgId | long offset | int length
+//
+// The index is sparse, one entry per block, so a page seeks to the block holding its
+// cursor and inflates only the blocks it returns. Rows come back without sender names.
+final class MessageArchive {
+    private static final String SUFFIX = ".seg";
+    private static final Path DIR = Paths.get(ServerConfig.ARCHIVE_DIR);
+
+    // Conversation id -> its segments, oldest first, and the directory's modification time
+    // (null: no directory) when they were listed. Another server sharing the directory may
+    // add segments, so every lookup compares the time and lists again if it moved. A
+    // directory changed within the last SETTLE_MILLIS isn't cached at all, since a second
+    // segment written in the same clock tick would leave the time as it was.
+    private record Listing(FileTime modified, Segment[] segments) {
+    }
+
+    private static final ConcurrentHashMap<Long, Listing> segments = new ConcurrentHashMap<>();
+    private static final Segment[] NONE = new Segment[0];
+    private static final long SETTLE_MILLIS = 2000;
+
+    private MessageArchive() {
+    }
+
+    private static Path directory(long conversationId) {
+        return DIR.resolve(String.format("%02x", conversationId & 0xFF)).resolve(Long.toString(conversationId));
+    }
+
+    // Writes one segment for rows (one conversation, oldest first). Rewriting the same
+    // rows gives the same file name, so a chunk retried after a crash replaces its own output.
+    static void write(long conversationId, List<StoredMessage> rows) throws IOException {
+        Path dir = directory(conversationId);
+        Files.createDirectories(dir);
+        long first = rows.get(0).msgId();
+        long last = rows.get(rows.size() - 1).msgId();
+        Path file = dir.resolve(first + "-" + last + SUFFIX);
+        Path temp = dir.resolve(first + "-" + last + ".tmp");
+
+        int blocks = (rows.size() + ServerConfig.ARCHIVE_BLOCK_ROWS - 1) / ServerConfig.ARCHIVE_BLOCK_ROWS;
+        ByteBuffer index = ByteBuffer.allocate(4 + blocks * 20).putInt(blocks);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long offset = 0;
+            for (int from = 0; from < rows.size(); from += ServerConfig.ARCHIVE_BLOCK_ROWS) {
+                List<StoredMessage> block = rows.subList(from, Math.min(rows.size(), from + ServerConfig.ARCHIVE_BLOCK_ROWS));
+                ByteBuffer compressed = ByteBuffer.wrap(compress(block));
+                index.putLong(block.get(0).msgId()).putLong(offset).putInt(compressed.remaining());
+                offset += writeFully(channel, compressed, offset);
+            }
+            index.flip();
+            offset += writeFully(channel, index, offset);
+            writeFully(channel, ByteBuffer.allocate(8).putLong(0, offset - index.capacity()), offset);
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        segments.remove(conversationId);
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, offset + written);
+        }
+        return written;
+    }
+
+    private static byte[] compress(List<StoredMessage> rows) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            for (StoredMessage row : rows) {
+                byte[] text = row.text().getBytes(StandardCharsets.UTF_8);
+                out.writeLong(row.msgId());
+                out.writeInt(row.senderId());
+                out.writeInt(row.receiverId());
+                out.writeLong(row.timestampMillis());
+                out.writeInt(text.length);
+                out.write(text);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    // Up to limit archived messages older than before, newest first.
+    static List<StoredMessage> page(long conversationId, long before, int limit) throws IOException {
+        List<StoredMessage> page = new ArrayList<>(limit);
+        Segment[] all = segments(conversationId);
+        for (int s = all.length - 1; s >= 0 && page.size() < limit; s--) {
+            Segment segment = all[s];
+            if (segment.first >= before) {
+                continue;
+            }
+            long[] index = segment.index();
+            // The newest block that starts below the cursor.
+            int block = Arrays.binarySearch(index, 0, index.length / 3, before);
+            block = (block >= 0 ? block : -block - 1) - 1;
+            for (; block >= 0 && page.size() < limit; block--) {
+                List<StoredMessage> rows = segment.block(block);
+                for (int i = rows.size() - 1; i >= 0 && page.size() < limit; i--) {
+                    if (rows.get(i).msgId() < before) {
+                        page.add(rows.get(i));
+                    }
+                }
+            }
+        }
+        ChatStats.archiveReads.increment();
+        return page;
+    }
+
+    // Every archived message of the conversation, oldest first.
+    static void forEach(long conversationId, MessageStore.RowVisitor visitor) throws IOException {
+        for (Segment segment : segments(conversationId)) {
+            long[] index = segment.index();
+            for (int block = 0; block < index.length / 3; block++) {
+                for (StoredMessage row : segment.block(block)) {
+                    visitor.row(row);
+                }
+            }
+        }
+    }
+
+    // Every archived message above afterMsgId, in msg_id order across all conversations.
+    // Only the segments are listed up front; rows are read a block at a time as the sweep
+    // reaches them.
+    static Sweep since(long afterMsgId) throws IOException {
+        List<Segment> found = new ArrayList<>();
+        if (Files.isDirectory(DIR)) {
+            try (Stream<Path> buckets = Files.list(DIR)) {
+                for (Path bucket : (Iterable<Path>) buckets::iterator) {
+                    if (!Files.isDirectory(bucket)) {
+                        continue;
+                    }
+                    try (Stream<Path> conversations = Files.list(bucket)) {
+                        for (Path dir : (Iterable<Path>) conversations::iterator) {
+                            if (!Files.isDirectory(dir)) {
+                                continue;
+                            }
+                            for (Segment segment : list(dir)) {
+                                if (segment.last > afterMsgId) {
+                                    found.add(segment);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        found.sort((a, b) -> Long.compare(a.first, b.first));
+        return new Sweep(found.toArray(NONE), afterMsgId);
+    }
+
+    // A merge of every segment by msg_id. A segment is opened once the sweep reaches its
+    // first msg_id, so only those overlapping the current position are open, one block each;
+    // that is about one Archiver chunk.
+    static final class Sweep {
+        private final Segment[] waiting;
+        private final long after;
+        private int opened;
+        private final PriorityQueue<Reader> open = new PriorityQueue<>((a, b) -> Long.compare(a.msgId(), b.msgId()));
+
+        private Sweep(Segment[] waiting, long after) {
+            this.waiting = waiting;
+            this.after = after;
+        }
+
+        // The next message, or null once every segment is done.
+        StoredMessage next() throws IOException {
+            // Nothing still waiting starts at or below the smallest open row.
+            while (opened < waiting.length && (open.isEmpty() || waiting[opened].first <= open.peek().msgId())) {
+                Reader reader = new Reader(waiting[opened]);
+                // Dropped here, so a finished segment and its index can be collected.
+                waiting[opened++] = null;
+                if (reader.advance(after)) {
+                    open.add(reader);
+                }
+            }
+            Reader reader = open.poll();
+            if (reader == null) {
+                return null;
+            }
+            StoredMessage row = reader.rows.get(reader.row);
+            if (reader.advance(after)) {
+                open.add(reader);
+            }
+            return row;
+        }
+    }
+
+    private static final class Reader {
+        private final Segment segment;
+        private int block = -1;
+        private List<StoredMessage> rows = List.of();
+        private int row = -1;
+
+        Reader(Segment segment) {
+            this.segment = segment;
+        }
+
+        long msgId() {
+            return rows.get(row).msgId();
+        }
+
+        // Moves to the next row above after; false at the end of the segment.
+        boolean advance(long after) throws IOException {
+            long[] index = segment.index();
+            int blocks = index.length / 3;
+            if (block < 0) {
+                // Start at the block holding the first row above after.
+                int found = Arrays.binarySearch(index, 0, blocks, after + 1);
+                block = Math.max((found >= 0 ? found : -found - 1) - 1, 0) - 1;
+            }
+            while (true) {
+                row++;
+                while (row >= rows.size()) {
+                    if (++block >= blocks) {
+                        return false;
+                    }
+                    rows = segment.block(block);
+                    row = 0;
+                }
+                if (rows.get(row).msgId() > after) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static Segment[] segments(long conversationId) throws IOException {
+        Path dir = directory(conversationId);
+        // Read before listing, so a segment added meanwhile shows up as a change next time.
+        FileTime modified = modified(dir);
+        Listing cached = segments.get(conversationId);
+        if (cached != null && Objects.equals(cached.modified(), modified)) {
+            return cached.segments();
+        }
+        Segment[] found = modified != null ? list(dir) : NONE;
+        if (modified == null || System.currentTimeMillis() - modified.toMillis() > SETTLE_MILLIS) {
+            segments.put(conversationId, new Listing(modified, found));
+        } else {
+            segments.remove(conversationId);
+        }
+        return found;
+    }
+
+    private static Segment[] list(Path dir) throws IOException {
+        List<Segment> list = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SUFFIX)) {
+                    int dash = name.indexOf('-');
+                    list.add(new Segment(file, Long.parseLong(name.substring(0, dash)),
+                            Long.parseLong(name.substring(dash + 1, name.length() - SUFFIX.length()))));
+                }
+            }
+        }
+        list.sort((a, b) -> Long.compare(a.first, b.first));
+        return list.toArray(NONE);
+    }
+
+    private static FileTime modified(Path dir) throws IOException {
+        try {
+            return Files.getLastModifiedTime(dir);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static final class Segment {
+        final Path file;
+        final long first;
+        final long last;
+        // firstMsgId of every block, then offset and length of every block, read on first use.
+        private volatile long[] index;
+
+        Segment(Path file, long first, long last) {
+            this.file = file;
+            this.first = first;
+            this.last = last;
+        }
+
+        long[] index() throws IOException {
+            long[] loaded = index;
+            if (loaded != null) {
+                return loaded;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                ByteBuffer tail = read(channel, size - 8, 8);
+                long indexOffset = tail.getLong();
+                ByteBuffer raw = read(channel, indexOffset, (int) (size - 8 - indexOffset));
+                int blocks = raw.getInt();
+                loaded = new long[blocks * 3];
+                for (int i = 0; i < blocks; i++) {
+                    loaded[i] = raw.getLong();
+                    loaded[blocks + i] = raw.getLong();
+                    loaded[2 * blocks + i] = raw.getInt();
+                }
+            }
+            index = loaded;
+            return loaded;
+        }
+
+        List<StoredMessage> block(int block) throws IOException {
+            long[] index = index();
+            int blocks = index.length / 3;
+            byte[] compressed;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                compressed = read(channel, index[blocks + block], (int) index[2 * blocks + block]).array();
+            }
+            List<StoredMessage> rows = new ArrayList<>(ServerConfig.ARCHIVE_BLOCK_ROWS);
+            try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(compressed)))) {
+                while (true) {
+                    long msgId;
+                    try {
+                        msgId = in.readLong();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    int senderId = in.readInt();
+                    int receiverId = in.readInt();
+                    long timestamp = in.readLong();
+                    byte[] text = new byte[in.readInt()];
+                    in.readFully(text);
+                    rows.add(new StoredMessage(msgId, senderId, receiverId, null, new String(text, StandardCharsets.UTF_8), timestamp));
+                }
+            }
+            return rows;
+        }
+
+        private static ByteBuffer read(FileChannel channel, long offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("Truncated archive segment");
+                }
+            }
+            return buffer.flip();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+// Segmented append-only file of chat lines. Positions are global byte offsets: a
+// segment file is named after the position of its first record, and the next segment
+// starts where the previous one ended, so the positions of the whole log are contiguous.
+//
+// Record: int bodyLength | int crc32c(body) | body, where body is
+//         long msgId | int senderId | int receiverId | long timestampMillis | UTF-8 text.
+//
+// One thread appends; any thread may read records below end() with positional reads.
+final class MessageLog {
+    record Entry(long position, long msgId, int senderId, int receiverId, long timestampMillis, String text) {
+    }
+
+    interface EntryVisitor {
+        void entry(Entry entry);
+    }
+
+    private static final int HEADER_BYTES = 8;
+    private static final int FIXED_BODY_BYTES = 24;
+    private static final String SUFFIX = ".log";
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final boolean fsync;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    // Everything below it is written (and forced, with fsync on) and may be read.
+    private volatile long end;
+
+    MessageLog(Path dir, long segmentBytes, boolean fsync) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+    }
+
+    // Opens every segment and visits every intact record in order. A torn record at the
+    // tail, from a crash in the middle of a write, is cut off along with anything after it.
+    void recover(EntryVisitor visitor) throws IOException {
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SUFFIX)) {
+                    long base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    segments.put(base, new Segment(base, channel, channel.size()));
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            Segment first = createSegment(0);
+            end = first.base;
+            return;
+        }
+        end = segments.lastEntry().getValue().end();
+        long intact = scan(segments.firstKey(), Integer.MAX_VALUE, visitor);
+        if (intact < end) {
+            Segment torn = segment(intact);
+            System.out.println("Message log: cutting off " + (end - intact) + " bytes of torn tail at position " + intact + ".");
+            torn.channel.truncate(intact - torn.base);
+            torn.size = intact - torn.base;
+            // Segments after a torn record can't be trusted either.
+            for (Segment later : segments.tailMap(torn.base, false).values()) {
+                later.channel.close();
+                Files.delete(file(later.base));
+                segments.remove(later.base);
+            }
+            end = intact;
+        }
+    }
+
+    // Writes the lines as one buffer and forces them once, so a batch costs one fsync.
+    // Returns the position of each record.
+    long[] append(List<Entry> entries) throws IOException {
+        byte[][] texts = new byte[entries.size()][];
+        int bytes = 0;
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = entries.get(i).text().getBytes(StandardCharsets.UTF_8);
+            bytes += HEADER_BYTES + FIXED_BODY_BYTES + texts[i].length;
+        }
+        Segment segment = segments.lastEntry().getValue();
+        if (segment.size > 0 && segment.size + bytes > segmentBytes) {
+            if (fsync) {
+                segment.channel.force(false);
+            }
+            segment = createSegment(segment.end());
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        long[] positions = new long[texts.length];
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < texts.length; i++) {
+            Entry entry = entries.get(i);
+            positions[i] = segment.end() + buffer.position();
+            int bodyLength = FIXED_BODY_BYTES + texts[i].length;
+            buffer.putInt(bodyLength).putInt(0);
+            int bodyStart = buffer.position();
+            buffer.putLong(entry.msgId()).putInt(entry.senderId()).putInt(entry.receiverId())
+                    .putLong(entry.timestampMillis()).put(texts[i]);
+            crc.reset();
+            crc.update(buffer.array(), bodyStart, bodyLength);
+            buffer.putInt(bodyStart - 4, (int) crc.getValue());
+        }
+        buffer.flip();
+        long offset = segment.size;
+        while (buffer.hasRemaining()) {
+            offset += segment.channel.write(buffer, offset);
+        }
+        if (fsync) {
+            segment.channel.force(false);
+        }
+        segment.size = offset;
+        end = segment.end();
+        return positions;
+    }
+
+    // The record at position, or null if its segment has been deleted.
+    Entry read(long position) throws IOException {
+        Segment segment = segment(position);
+        if (segment == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        try {
+            readFully(segment, buffer, position - segment.base, HEADER_BYTES + FIXED_BODY_BYTES);
+            int bodyLength = buffer.getInt(0);
+            if (HEADER_BYTES + bodyLength > buffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(HEADER_BYTES + bodyLength);
+                larger.put(buffer.flip());
+                buffer = larger;
+            }
+            readFully(segment, buffer, position - segment.base, HEADER_BYTES + bodyLength);
+        } catch (ClosedChannelException e) {
+            // Deleted while we were reading.
+            return null;
+        }
+        buffer.flip();
+        return decode(buffer, position);
+    }
+
+    private static void readFully(Segment segment, ByteBuffer buffer, long offset, int upTo) throws IOException {
+        while (buffer.position() < upTo) {
+            int n = segment.channel.read(buffer, offset + buffer.position());
+            if (n < 0) {
+                throw new IOException("Short read in message log segment " + segment.base);
+            }
+        }
+    }
+
+    // Visits up to maxEntries intact records from position from, across segment
+    // boundaries, and returns the position after the last one visited. Stops early at a
+    // record that fails its checksum or runs past the end of its segment.
+    long scan(long from, int maxEntries, EntryVisitor visitor) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = from;
+        int visited = 0;
+        while (visited < maxEntries && position < end) {
+            Segment segment = segment(position);
+            if (segment == null) {
+                break;
+            }
+            long left = segment.end() - position;
+            if (left == 0) {
+                Map.Entry<Long, Segment> next = segments.higherEntry(segment.base);
+                if (next == null) {
+                    break;
+                }
+                position = next.getKey();
+                continue;
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), left));
+            readFully(segment, buffer, position - segment.base, buffer.limit());
+            buffer.flip();
+            int consumed = 0;
+            while (visited < maxEntries) {
+                if (consumed == left) {
+                    break;
+                }
+                if (left - consumed < HEADER_BYTES) {
+                    return position + consumed;
+                }
+                if (buffer.remaining() < HEADER_BYTES) {
+                    break;
+                }
+                int bodyLength = buffer.getInt(buffer.position());
+                if (bodyLength < FIXED_BODY_BYTES || bodyLength > left - consumed - HEADER_BYTES) {
+                    return position + consumed;
+                }
+                int recordLength = HEADER_BYTES + bodyLength;
+                if (buffer.remaining() < recordLength) {
+                    if (consumed == 0) {
+                        // A record larger than the scan buffer.
+                        buffer = ByteBuffer.allocate(recordLength);
+                    }
+                    break;
+                }
+                Entry entry = decode(buffer.slice(buffer.position(), recordLength), position + consumed);
+                if (entry == null) {
+                    return position + consumed;
+                }
+                buffer.position(buffer.position() + recordLength);
+                consumed += recordLength;
+                visitor.entry(entry);
+                visited++;
+            }
+            position += consumed;
+        }
+        return position;
+    }
+
+    // Null when the checksum doesn't match.
+    private static Entry decode(ByteBuffer record, long position) {
+        int bodyLength = record.getInt();
+        int expected = record.getInt();
+        CRC32C crc = new CRC32C();
+        crc.update(record.slice(record.position(), bodyLength));
+        if ((int) crc.getValue() != expected) {
+            return null;
+        }
+        long msgId = record.getLong();
+        int senderId = record.getInt();
+        int receiverId = record.getInt();
+        long timestamp = record.getLong();
+        byte[] text = new byte[bodyLength - FIXED_BODY_BYTES];
+        record.get(text);
+        return new Entry(position, msgId, senderId, receiverId, timestamp, new String(text, StandardCharsets.UTF_8));
+    }
+
+    long start() {
+        return segments.firstKey();
+    }
+
+    long end() {
+        return end;
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    // Deletes the oldest segment if another one follows it and it lies wholly below upTo.
+    // Returns the new start, or -1 if nothing was deleted.
+    long deleteOldest(long upTo) throws IOException {
+        Map.Entry<Long, Segment> oldest = segments.firstEntry();
+        if (segments.size() < 2 || oldest.getValue().end() > upTo) {
+            return -1;
+        }
+        segments.remove(oldest.getKey());
+        oldest.getValue().channel.close();
+        Files.delete(file(oldest.getKey()));
+        return segments.firstKey();
+    }
+
+    private Segment segment(long position) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(position);
+        return entry != null ? entry.getValue() : null;
+    }
+
+    private Segment createSegment(long base) throws IOException {
+        FileChannel channel = FileChannel.open(file(base), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(base, channel, 0);
+        segments.put(base, segment);
+        return segment;
+    }
+
+    private Path file(long base) {
+        return dir.resolve(String.format("%020d%s", base, SUFFIX));
+    }
+
+    private static final class Segment {
+        final long base;
+        final FileChannel channel;
+        volatile long size;
+
+        Segment(long base, FileChannel channel, long size) {
+            this.base = base;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        long end() {
+            return base + size;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Write-behind pipeline for chat lines. Handlers of every connection submit into
+// one queue; a single writer hands whatever has gathered to the store as one batch
+// (one multi-row INSERT and one commit with MySQL), then tells each sender how it went.
+final class MessagePersister {
+    interface Callback {
+        void persisted(long msgId);
+
+        void failed(SQLException e);
+    }
+
+    private record Pending(MessageStore.Line line, Callback callback) {
+    }
+
+    private static final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(ServerConfig.PERSIST_QUEUE_CAPACITY);
+    private static final Thread writer = new Thread(MessagePersister::run, "message-persister");
+    // Wakes a writer waiting on an empty queue once stopping is set.
+    private static final Pending STOP = new Pending(null, null);
+    private static volatile boolean stopping;
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(MessagePersister::stop, "message-persister-drain"));
+    }
+
+    private MessagePersister() {
+    }
+
+    static int depth() {
+        return queue.size();
+    }
+
+    // Blocks only when the database has fallen PERSIST_QUEUE_CAPACITY lines behind.
+    static void submit(int senderId, int receiverId, String message, Callback callback) {
+        try {
+            queue.put(new Pending(new MessageStore.Line(senderId, receiverId, message), callback));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            callback.failed(new SQLException("Interrupted while queueing message", e));
+        }
+    }
+
+    // Lines accepted before shutdown still reach the store: the writer finishes the batch
+    // it is on, writes whatever is still queued without lingering, and the hook waits for it.
+    private static void stop() {
+        stopping = true;
+        queue.offer(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void run() {
+        List<Pending> batch = new ArrayList<>(ServerConfig.PERSIST_BATCH_SIZE);
+        while (!stopping || !queue.isEmpty()) {
+            try {
+                batch.add(queue.take());
+                // Linger briefly so a burst from many handlers shares one round trip and one commit.
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ServerConfig.PERSIST_LINGER_MILLIS);
+                while (batch.size() < ServerConfig.PERSIST_BATCH_SIZE && !stopping) {
+                    if (queue.drainTo(batch, ServerConfig.PERSIST_BATCH_SIZE - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    Pending next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                batch.removeIf(p -> p == STOP);
+                if (!batch.isEmpty()) {
+                    write(batch);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private static void write(List<Pending> batch) {
+        List<MessageStore.Line> lines = new ArrayList<>(batch.size());
+        for (Pending p : batch) {
+            lines.add(p.line());
+        }
+        ChatEvents.MessagesPersisted event = new ChatEvents.MessagesPersisted();
+        event.begin();
+        long[] ids;
+        try {
+            ids = Storage.messages.append(lines);
+        } catch (BatchUpdateException e) {
+            commit(event, lines, 0, true);
+            // One bad row (e.g. an unknown receiver) must not fail its neighbours.
+            writeOneByOne(batch);
+            return;
+        } catch (SQLException e) {
+            commit(event, lines, 0, true);
+            e.printStackTrace();
+            ChatStats.persistFailures.add(batch.size());
+            for (Pending p : batch) {
+                failed(p, e);
+            }
+            return;
+        }
+        commit(event, lines, ids.length > 0 ? ids[0] : 0, false);
+        ChatStats.persistBatches.increment();
+        ChatStats.persistedMessages.add(batch.size());
+        for (int i = 0; i < ids.length; i++) {
+            persisted(batch.get(i), ids[i]);
+        }
+    }
+
+    // Callbacks run cache, index, ack and routing code; one that throws must not keep
+    // the rest of the batch from hearing about lines that are already committed.
+    private static void persisted(Pending p, long msgId) {
+        try {
+            p.callback().persisted(msgId);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void failed(Pending p, SQLException cause) {
+        try {
+            p.callback().failed(cause);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void commit(ChatEvents.MessagesPersisted event, List<MessageStore.Line> lines, long firstMsgId, boolean failed) {
+        if (!event.shouldCommit()) {
+            return;
+        }
+        long length = 0;
+        for (MessageStore.Line line : lines) {
+            length += line.text().length();
+        }
+        event.lines = lines.size();
+        event.length = length;
+        event.firstMsgId = firstMsgId;
+        event.failed = failed;
+        event.commit();
+    }
+
+    private static void writeOneByOne(List<Pending> batch) {
+        for (Pending p : batch) {
+            long msgId;
+            try {
+                msgId = Storage.messages.append(p.line());
+            } catch (SQLException e) {
+                e.printStackTrace();
+                ChatStats.persistFailures.increment();
+                failed(p, e);
+                continue;
+            }
+            ChatStats.persistedMessages.increment();
+            persisted(p, msgId);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+// Where chat lines and acks are kept; Storage picks the engine.
+interface MessageStore {
+    record Line(int senderId, int receiverId, String text) {
+    }
+
+    interface RowVisitor {
+        void row(StoredMessage row);
+    }
+
+    // Stores all lines or none and returns their msg_ids in order. A BatchUpdateException
+    // means one of them was rejected; the others can be retried one at a time.
+    long[] append(List<Line> lines) throws SQLException;
+
+    long append(Line line) throws SQLException;
+
+    // The whole conversation, oldest first, handed over row by row as it is read.
+    void conversation(int userId, int peerId, RowVisitor visitor) throws SQLException;
+
+    // Up to limit messages older than before, newest first.
+    List<StoredMessage> page(int userId, int peerId, long before, int limit) throws SQLException;
+
+    // Every line after afterMsgId, in msg_id order, without sender names. Used to catch
+    // up derived state such as the search index after a restart.
+    void since(long afterMsgId, RowVisitor visitor) throws SQLException;
+
+    // Lines the user received past their acks, newest first, at most limit of them.
+    List<StoredMessage> unacked(int userId, int limit) throws SQLException;
+
+    // (user_id << 32 | peer_id) -> msg_id. An ack only ever moves forward.
+    void saveAcks(Map<Long, Long> acks) throws SQLException;
+}
@@ -0,0 +1,185 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+// Latency histograms for the hot paths, gauges for what is queued where and counts of
+// rate-limited commands, exposed as one JMX bean (chat:type=Metrics) and as plain text
+// on http://<host>:METRICS_PORT/metrics in the Prometheus exposition format. Reading
+// either walks the histograms; recording into them never allocates.
+final class Metrics {
+    static final LatencyHistogram login = new LatencyHistogram("login");
+    static final LatencyHistogram friends = new LatencyHistogram("friends");
+    static final LatencyHistogram history = new LatencyHistogram("history");
+    static final LatencyHistogram search = new LatencyHistogram("search");
+    // From handing a line to the persister until its batch is committed.
+    static final LatencyHistogram save = new LatencyHistogram("save");
+    // From reading a line off the sender's connection until the write that carries it to
+    // the recipient is flushed. Sampled: one recording per recipient flush, for the
+    // oldest line in it.
+    static final LatencyHistogram delivery = new LatencyHistogram("delivery");
+
+    private static final LatencyHistogram[] histograms = {login, friends, history, search, save, delivery};
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    static {
+        gauges.put("online_users", () -> ChatServer.onlineUsers.onlineUsers());
+        gauges.put("threads", threads::getThreadCount);
+        gauges.put("outbound_queued", ChatStats.outboundQueued::sum);
+        gauges.put("outbound_parked", ChatStats.outboundParked::sum);
+        gauges.put("persist_queue_depth", MessagePersister::depth);
+        gauges.put("acks_pending", AckTracker::pending);
+        gauges.put("timers_pending", ChatServer.timers::pending);
+    }
+
+    private Metrics() {
+    }
+
+    static void start() {
+        if (ServerConfig.METRICS_JMX) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("chat:type=Metrics"));
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+        if (ServerConfig.METRICS_PORT > 0) {
+            try {
+                HttpServer server = HttpServer.create(new InetSocketAddress(ServerConfig.METRICS_PORT), 0);
+                server.createContext("/metrics", exchange -> {
+                    byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "metrics-http");
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+                server.start();
+                System.out.println("Metrics on http://localhost:" + ServerConfig.METRICS_PORT + "/metrics");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Latencies as summaries in seconds, gauges as they are.
+    static String scrape() {
+        StringBuilder text = new StringBuilder();
+        for (LatencyHistogram histogram : histograms) {
+            String name = "chat_" + histogram.name() + "_latency_seconds";
+            text.append("# TYPE ").append(name).append(" summary\n");
+            for (double quantile : QUANTILES) {
+                text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.percentileNanos(quantile))).append('\n');
+            }
+            text.append(name).append("_sum ").append(seconds(histogram.sumNanos())).append('\n');
+            text.append(name).append("_count ").append(histogram.count()).append('\n');
+            text.append("chat_").append(histogram.name()).append("_latency_max_seconds ")
+                    .append(seconds(histogram.maxNanos())).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            String name = "chat_" + gauge.getKey();
+            text.append("# TYPE ").append(name).append(" gauge\n");
+            text.append(name).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+        }
+        text.append("# TYPE chat_rate_limited_total counter\n");
+        for (RateLimiter.Command command : RateLimiter.Command.values()) {
+            text.append("chat_rate_limited_total{command=\"").append(command.label).append("\"} ")
+                    .append(command.refused()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    // Read-only attributes: <histogram>P50Micros ... <histogram>MaxMicros, <histogram>Count,
+    // one per gauge, and rateLimited_<command>. A dynamic bean, so the attribute list follows the tables above.
+    private static final class Bean implements DynamicMBean {
+        private final Map<String, LongSupplier> attributes = new LinkedHashMap<>();
+
+        Bean() {
+            for (LatencyHistogram histogram : histograms) {
+                String prefix = histogram.name();
+                attributes.put(prefix + "Count", histogram::count);
+                attributes.put(prefix + "P50Micros", () -> histogram.percentileNanos(0.5) / 1000);
+                attributes.put(prefix + "P90Micros", () -> histogram.percentileNanos(0.9) / 1000);
+                attributes.put(prefix + "P99Micros", () -> histogram.percentileNanos(0.99) / 1000);
+                attributes.put(prefix + "P999Micros", () -> histogram.percentileNanos(0.999) / 1000);
+                attributes.put(prefix + "MaxMicros", () -> histogram.maxNanos() / 1000);
+            }
+            for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+                attributes.put(gauge.getKey(), gauge.getValue());
+            }
+            for (RateLimiter.Command command : RateLimiter.Command.values()) {
+                attributes.put("rateLimited_" + command.label, command::refused);
+            }
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            LongSupplier value = attributes.get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value.getAsLong();
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                LongSupplier value = attributes.get(name);
+                if (value != null) {
+                    list.add(new Attribute(name, value.getAsLong()));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> info = new ArrayList<>();
+            for (String name : attributes.keySet()) {
+                info.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Chat server latencies and queue depths",
+                    info.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,387 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking ChatServer: a handful of selector loops own every socket, so the
+// number of connections is bounded by file descriptors instead of threads.
+// Commands still end in blocking JDBC calls, so they run on a worker pool,
+// one command at a time per session.
+class NioChatServer {
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private int nextLoop;
+
+    // Slabs for inbound lines and frames, shared by all loops and workers.
+    private static final int INPUT_SLAB_BYTES = 512;
+    private static final int INPUT_SLABS_KEPT = 4096;
+    private final Queue<byte[]> inputSlabs = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inputSlabsFree = new AtomicInteger();
+
+    NioChatServer(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), ServerConfig.ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+
+        loops = new EventLoop[Math.max(1, ServerConfig.EVENT_LOOPS)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+        workers = Executors.newFixedThreadPool(ServerConfig.WORKER_THREADS);
+    }
+
+    void run() throws IOException {
+        // The first loop also accepts; new channels are spread round-robin.
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (int i = 1; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.start();
+        }
+        System.out.println("Server is running and waiting for connections (nio, " + loops.length + " event loops)...");
+        Thread.currentThread().setName("nio-loop-0");
+        loops[0].run();
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                if (ServerConfig.LOG_CONNECTIONS) {
+                    System.out.println("New client connected: " + channel.getRemoteAddress());
+                }
+
+                EventLoop loop = loops[nextLoop++ % loops.length];
+                SocketChannel accepted = channel;
+                loop.execute(() -> loop.register(accepted));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private byte[] takeInputSlab() {
+        byte[] slab = inputSlabs.poll();
+        if (slab == null) {
+            return new byte[INPUT_SLAB_BYTES];
+        }
+        inputSlabsFree.decrementAndGet();
+        return slab;
+    }
+
+    private void releaseInput(ByteBuffer input) {
+        if (input.array().length != INPUT_SLAB_BYTES) {
+            return;
+        }
+        if (inputSlabsFree.incrementAndGet() <= INPUT_SLABS_KEPT) {
+            inputSlabs.add(input.array());
+        } else {
+            inputSlabsFree.decrementAndGet();
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                NioSession session = new NioSession(channel, this);
+                session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                session.watchIdle();
+            } catch (IOException e) {
+                e.printStackTrace();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            handle(key);
+                        } catch (CancelledKeyException ignored) {
+                            // the session was closed from a worker while we were looking at it
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+
+            NioSession session = (NioSession) key.attachment();
+            if (key.isReadable()) {
+                session.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                session.flush();
+            }
+        }
+    }
+
+    private class NioSession extends ChatSession {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private SelectionKey key;
+
+        private ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+        // Lines, or frames once the client negotiated binary; decoded on the worker.
+        private final Queue<ByteBuffer> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean processing = new AtomicBoolean();
+        private boolean negotiated;
+        private boolean binary;
+
+        // Lines taken off the outbound queue but not yet fully written.
+        private final ByteBuffer[] pending = new ByteBuffer[64];
+        private int pendingStart;
+        private int pendingCount;
+
+        NioSession(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        // Event loop thread: pull whatever arrived and cut it into lines or frames.
+        void onReadable() {
+            int read;
+            try {
+                read = channel.read(readBuffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) {
+                // Nothing more will come, but queued output may still be going out;
+                // without this every select would report the EOF again.
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                closeConnection();
+                return;
+            }
+
+            readBuffer.flip();
+            boolean ok = binary ? splitFrames() : splitLines();
+            if (!ok) {
+                abortConnection();
+                return;
+            }
+            readBuffer.compact();
+
+            // A line or frame longer than the buffer: grow it so the rest fits.
+            if (!readBuffer.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+
+            if (!inbox.isEmpty() && processing.compareAndSet(false, true)) {
+                workers.execute(this::drainInbox);
+            }
+        }
+
+        private boolean splitLines() {
+            int start = readBuffer.position();
+            for (int i = start; i < readBuffer.limit(); i++) {
+                if (readBuffer.get(i) == '\n') {
+                    int end = i > start && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+                    // One read can bring several lines, so each is checked, not just the tail.
+                    if (end - start > ServerConfig.MAX_LINE_BYTES) {
+                        return lineTooLong();
+                    }
+                    ByteBuffer line = copy(start, end - start);
+                    start = i + 1;
+                    if (!negotiated) {
+                        negotiated = true;
+                        if (negotiate(line)) {
+                            releaseInput(line);
+                            // Whatever follows the hello is already framed.
+                            binary = true;
+                            readBuffer.position(start);
+                            return splitFrames();
+                        }
+                    }
+                    inbox.add(line);
+                }
+            }
+            readBuffer.position(start);
+            // The unterminated tail may still end in the \r of its \r\n.
+            int tail = readBuffer.remaining();
+            if (tail > ServerConfig.MAX_LINE_BYTES
+                    && (tail > ServerConfig.MAX_LINE_BYTES + 1 || readBuffer.get(readBuffer.limit() - 1) != '\r')) {
+                return lineTooLong();
+            }
+            return true;
+        }
+
+        private boolean lineTooLong() {
+            System.out.println("Line longer than " + ServerConfig.MAX_LINE_BYTES + " bytes; closing connection.");
+            return false;
+        }
+
+        // Frames are cut by their length prefix alone. False on a length out of bounds.
+        private boolean splitFrames() {
+            while (readBuffer.remaining() >= 4) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length < BinaryWireFormat.HEADER_BYTES || length > ServerConfig.MAX_FRAME_BYTES) {
+                    System.out.println("Bad frame length " + length + "; closing connection.");
+                    return false;
+                }
+                if (readBuffer.remaining() < 4 + length) {
+                    break;
+                }
+                inbox.add(copy(readBuffer.position() + 4, length));
+                readBuffer.position(readBuffer.position() + 4 + length);
+            }
+            return true;
+        }
+
+        // The worker reads the copy while this loop reads more into readBuffer. Short
+        // inputs, nearly all of them, go into a pooled slab the worker hands back.
+        private ByteBuffer copy(int from, int length) {
+            if (length > INPUT_SLAB_BYTES) {
+                return ByteBuffer.wrap(Arrays.copyOfRange(readBuffer.array(), from, from + length));
+            }
+            byte[] slab = takeInputSlab();
+            System.arraycopy(readBuffer.array(), from, slab, 0, length);
+            return ByteBuffer.wrap(slab, 0, length);
+        }
+
+        // Worker thread: commands of one session run in order, never concurrently.
+        private void drainInbox() {
+            ByteBuffer input;
+            while ((input = inbox.poll()) != null) {
+                if (closed.get()) {
+                    inbox.clear();
+                    break;
+                }
+                boolean open = receive(input);
+                // Sessions don't keep the input past receive().
+                releaseInput(input);
+                if (!open) {
+                    closeConnection();
+                    break;
+                }
+            }
+            processing.set(false);
+            // A line may have arrived between the last poll and clearing the flag.
+            if (!inbox.isEmpty() && !closed.get() && processing.compareAndSet(false, true)) {
+                workers.execute(this::drainInbox);
+            }
+        }
+
+        @Override
+        void scheduleFlush() {
+            loop.execute(this::flush);
+        }
+
+        // Event loop thread: gather queued lines into one write per batch and fall back
+        // to OP_WRITE when the socket pushes back.
+        void flush() {
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (pendingCount == 0 && !fillPending()) {
+                        break;
+                    }
+                    channel.write(pending, pendingStart, pendingCount);
+                    while (pendingCount > 0 && !pending[pendingStart].hasRemaining()) {
+                        pending[pendingStart++] = null;
+                        pendingCount--;
+                    }
+                    if (pendingCount > 0) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (finishFlush()) {
+                    loop.execute(this::flush);
+                } else if (closed.get()) {
+                    finishClose();
+                }
+            } catch (IOException e) {
+                abortConnection();
+            }
+        }
+
+        private boolean fillPending() {
+            pendingStart = 0;
+            ByteBuffer frame;
+            while (pendingCount < pending.length && (frame = pollOutbound()) != null) {
+                pending[pendingCount++] = frame;
+            }
+            return pendingCount > 0;
+        }
+
+        @Override
+        void closeConnection() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            logout();
+            // Let the loop push out what is already queued (e.g. the login failure) before closing.
+            loop.execute(this::flush);
+        }
+
+        @Override
+        void abortConnection() {
+            if (closed.compareAndSet(false, true)) {
+                logout();
+            }
+            loop.execute(this::finishClose);
+        }
+
+        private void finishClose() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            Arrays.fill(pending, null);
+            pendingCount = 0;
+            discardOutbound();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Per-user token buckets, one per kind of command, checked before the command does any
+// work. A bucket is a single long: the time at which it will be full again (the GCRA
+// form of a token bucket). Taking a token moves that time one refill interval further
+// out, and is refused while it would end up more than burst intervals ahead of now, so
+// a take is one CAS with no lock and no refill bookkeeping. All buckets of a user sit
+// in one AtomicLongArray, created on the user's first command and dropped when they
+// log out with every bucket full again.
+final class RateLimiter {
+    enum Command {
+        MESSAGE("message", ServerConfig.RATE_MESSAGE_PER_SECOND, ServerConfig.RATE_MESSAGE_BURST),
+        HISTORY("history", ServerConfig.RATE_HISTORY_PER_SECOND, ServerConfig.RATE_HISTORY_BURST),
+        SEARCH("search", ServerConfig.RATE_SEARCH_PER_SECOND, ServerConfig.RATE_SEARCH_BURST),
+        ROOM("room", ServerConfig.RATE_ROOM_PER_SECOND, ServerConfig.RATE_ROOM_BURST);
+
+        final String label;
+        // 0: unlimited.
+        private final long intervalNanos;
+        private final long capacityNanos;
+        private final LongAdder refused = new LongAdder();
+
+        Command(String label, int perSecond, int burst) {
+            this.label = label;
+            intervalNanos = perSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / perSecond : 0;
+            capacityNanos = intervalNanos * Math.max(1, burst);
+        }
+
+        long refused() {
+            return refused.sum();
+        }
+    }
+
+    private static final Command[] COMMANDS = Command.values();
+    // Times are taken from here, so a fresh array of zeros is a set of full buckets.
+    private static final long EPOCH = System.nanoTime();
+    private static final ConcurrentMap<Integer, AtomicLongArray> buckets = new ConcurrentHashMap<>(ServerConfig.EXPECTED_USERS);
+
+    private RateLimiter() {
+    }
+
+    static boolean tryAcquire(int userId, Command command) {
+        if (command.intervalNanos == 0) {
+            return true;
+        }
+        AtomicLongArray user = buckets.get(userId);
+        if (user == null) {
+            AtomicLongArray fresh = new AtomicLongArray(COMMANDS.length);
+            user = buckets.putIfAbsent(userId, fresh);
+            if (user == null) {
+                user = fresh;
+            }
+        }
+        int i = command.ordinal();
+        long now = System.nanoTime() - EPOCH;
+        while (true) {
+            long full = user.get(i);
+            long next = Math.max(full, now) + command.intervalNanos;
+            if (next - now > command.capacityNanos) {
+                command.refused.increment();
+                return false;
+            }
+            if (user.compareAndSet(i, full, next)) {
+                return true;
+            }
+        }
+    }
+
+    // On logout once the user has no connection left. A user with a bucket still
+    // draining keeps it, so reconnecting doesn't refill it.
+    static void release(int userId) {
+        AtomicLongArray user = buckets.get(userId);
+        if (user == null) {
+            return;
+        }
+        long now = System.nanoTime() - EPOCH;
+        for (int i = 0; i < user.length(); i++) {
+            if (user.get(i) > now) {
+                return;
+            }
+        }
+        buckets.remove(userId, user);
+    }
+
+    static String snapshot() {
+        StringBuilder text = new StringBuilder("rateBuckets=").append(buckets.size());
+        for (Command command : COMMANDS) {
+            text.append(" rateLimited").append(Character.toUpperCase(command.label.charAt(0)))
+                    .append(command.label, 1, command.label.length()).append('=').append(command.refused());
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,149 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A group room. Members are kept densely packed in fixed-size chunks, and each chunk
+// is copy-on-write. A join or leave copies the small outer array and at most two
+// chunks, whatever the size of the room. A broadcast walks whichever chunk array was
+// published last, without taking the lock.
+//
+// A broadcast is encoded once per wire format into a read-only buffer shared by every
+// recipient. Each member only gets a duplicate(), which holds its own position over
+// the same bytes.
+class Room {
+    private static final int CHUNK = 256;
+    // Large rooms share a direct buffer, so the NIO write needs no temporary copy per member.
+    private static final int DIRECT_FRAME_MEMBERS = 64;
+
+    final String name;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Member -> position, guarded by lock. Sessions compare by identity.
+    private final HashMap<ChatSession, Integer> positions = new HashMap<>();
+    // Only the last chunk may be partly filled, from the front.
+    private volatile ChatSession[][] chunks = new ChatSession[0][];
+    // Written under lock.
+    private volatile int size;
+    // Set under lock once the last member leaves; the registry then makes a new room.
+    private boolean retired;
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    // Room names travel in text commands and uint16-prefixed frame fields.
+    static boolean validName(String name) {
+        if (name.isEmpty() || name.length() > 64) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == ':' || c < ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // False if the room was retired meanwhile (the caller retries on a fresh one)
+    // or the session already is a member.
+    boolean add(ChatSession session) {
+        lock.lock();
+        try {
+            if (retired || positions.containsKey(session)) {
+                return false;
+            }
+            int position = size++;
+            positions.put(session, position);
+            ChatSession[][] next = Arrays.copyOf(chunks, (size + CHUNK - 1) / CHUNK);
+            int c = position / CHUNK;
+            next[c] = c < chunks.length ? chunks[c].clone() : new ChatSession[CHUNK];
+            next[c][position % CHUNK] = session;
+            chunks = next;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns true if this left the room empty; it is retired and must be dropped from the registry.
+    boolean remove(ChatSession session) {
+        lock.lock();
+        try {
+            Integer removed = positions.remove(session);
+            if (removed == null) {
+                return false;
+            }
+            int position = removed;
+            int last = --size;
+            ChatSession[][] next = chunks.clone();
+            int c = position / CHUNK;
+            next[c] = next[c].clone();
+            if (position != last) {
+                // Swap-remove: the last member moves into the hole.
+                ChatSession moved = chunks[last / CHUNK][last % CHUNK];
+                next[c][position % CHUNK] = moved;
+                positions.put(moved, position);
+            }
+            int lastChunk = last / CHUNK;
+            if (last % CHUNK == 0) {
+                next = Arrays.copyOf(next, lastChunk);
+            } else {
+                if (next[lastChunk] == chunks[lastChunk]) {
+                    next[lastChunk] = next[lastChunk].clone();
+                }
+                next[lastChunk][last % CHUNK] = null;
+            }
+            chunks = next;
+            if (size == 0) {
+                retired = true;
+            }
+            return retired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Sender's command thread: hands one shared frame per format to every member
+    // (the sender's own sessions included). Returns the number of deliveries.
+    int broadcast(int senderId, String senderName, String text) {
+        ChatSession[][] members = chunks;
+        boolean direct = size >= DIRECT_FRAME_MEMBERS;
+        ByteBuffer textFrame = null;
+        ByteBuffer binaryFrame = null;
+        int delivered = 0;
+        for (ChatSession[] chunk : members) {
+            for (ChatSession member : chunk) {
+                if (member == null) {
+                    break;
+                }
+                ByteBuffer shared;
+                if (member.wire == WireFormat.BINARY) {
+                    if (binaryFrame == null) {
+                        binaryFrame = share(WireFormat.BINARY.roomMessage(name, senderId, senderName, text), direct);
+                    }
+                    shared = binaryFrame;
+                } else {
+                    if (textFrame == null) {
+                        textFrame = share(WireFormat.TEXT.roomMessage(name, senderId, senderName, text), direct);
+                    }
+                    shared = textFrame;
+                }
+                member.deliver(shared.duplicate());
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    private static ByteBuffer share(ByteBuffer encoded, boolean direct) {
+        if (direct) {
+            encoded = ByteBuffer.allocateDirect(encoded.remaining()).put(encoded).flip();
+        }
+        return encoded.asReadOnlyBuffer();
+    }
+}
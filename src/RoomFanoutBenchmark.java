@@ -0,0 +1,94 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Fan-out throughput of Room.broadcast for rooms of 10, 1k and 50k members.
+//
+//   java -cp out:<connector jar> RoomFanoutBenchmark [seconds per case]
+//
+// Members are in-process sessions whose "transport" drains the outbound queue on the
+// spot and counts the bytes, so the numbers cover encoding, the member walk and the
+// queue hand-off, but not the network. Each size runs twice: with the shared
+// encode-once frames, and with a baseline that encodes a private copy per member
+// (what a per-recipient deliver(String) costs).
+public class RoomFanoutBenchmark {
+    private static final int[] ROOM_SIZES = {10, 1_000, 50_000};
+    private static final String TEXT = "The quick brown fox jumps over the lazy dog, again and again.";
+
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        System.out.printf("%-10s %-10s %14s %16s %12s%n", "members", "mode", "msgs/s", "deliveries/s", "MB/s");
+        for (int members : ROOM_SIZES) {
+            run(members, seconds, true);
+            run(members, seconds, false);
+        }
+    }
+
+    private static void run(int memberCount, int seconds, boolean shared) {
+        Room room = new Room("bench-" + memberCount);
+        List<CountingSession> members = new ArrayList<>(memberCount);
+        for (int i = 0; i < memberCount; i++) {
+            CountingSession member = new CountingSession(i + 1, i % 2 == 0 ? WireFormat.TEXT : WireFormat.BINARY);
+            members.add(member);
+            room.add(member);
+        }
+
+        // Warm up, then measure.
+        fanOut(room, members, shared, TimeUnit.SECONDS.toNanos(1));
+        for (CountingSession member : members) {
+            member.bytes = 0;
+        }
+        long start = System.nanoTime();
+        long messages = fanOut(room, members, shared, TimeUnit.SECONDS.toNanos(seconds));
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long bytes = 0;
+        for (CountingSession member : members) {
+            bytes += member.bytes;
+        }
+        System.out.printf("%-10d %-10s %14.0f %16.0f %12.1f%n", memberCount, shared ? "shared" : "per-member",
+                messages / elapsed, messages * memberCount / elapsed, bytes / elapsed / (1024 * 1024));
+    }
+
+    private static long fanOut(Room room, List<CountingSession> members, boolean shared, long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long messages = 0;
+        while (System.nanoTime() < deadline) {
+            if (shared) {
+                room.broadcast(0, "bench", TEXT);
+            } else {
+                for (CountingSession member : members) {
+                    member.deliver(member.wire.roomMessage(room.name, 0, "bench", TEXT));
+                }
+            }
+            messages++;
+        }
+        return messages;
+    }
+
+    // A session whose writer runs inline on the producing thread and only counts bytes.
+    private static class CountingSession extends ChatSession {
+        long bytes;
+
+        CountingSession(int userId, WireFormat wire) {
+            this.userId = userId;
+            this.wire = wire;
+        }
+
+        @Override
+        void scheduleFlush() {
+            do {
+                ByteBuffer frame;
+                while ((frame = pollOutbound()) != null) {
+                    bytes += frame.remaining();
+                }
+            } while (finishFlush());
+        }
+
+        @Override
+        void closeConnection() {
+            closed.set(true);
+        }
+    }
+}
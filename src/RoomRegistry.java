@@ -0,0 +1,39 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+// Rooms by name. A room exists while it has members: the first join creates it and
+// the last leave retires it.
+final class RoomRegistry {
+    private static final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    private RoomRegistry() {
+    }
+
+    // Returns the room joined, or null if the session already was a member.
+    static Room join(String name, ChatSession session) {
+        while (true) {
+            Room room = rooms.computeIfAbsent(name, Room::new);
+            if (room.add(session)) {
+                return room;
+            }
+            if (room.size() > 0) {
+                return null;
+            }
+            // Retired by a concurrent last leave; drop it if still mapped and try again.
+            rooms.remove(name, room);
+        }
+    }
+
+    static void leave(Room room, ChatSession session) {
+        if (room.remove(session)) {
+            rooms.remove(room.name, room);
+        }
+    }
+
+    static Room get(String name) {
+        return rooms.get(name);
+    }
+
+    static String snapshot() {
+        return "rooms=" + rooms.size();
+    }
+}
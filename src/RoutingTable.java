@@ -0,0 +1,78 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+// Online sessions keyed by userId. A user may be logged in from several clients at
+// once, so each entry is a small copy-on-write array: routing a message is one hash
+// lookup plus a walk over that user's sessions, independent of how many users are online.
+class RoutingTable {
+    private static final ChatSession[] NONE = new ChatSession[0];
+
+    private final ConcurrentHashMap<Integer, ChatSession[]> sessionsByUser;
+
+    RoutingTable(int expectedUsers) {
+        sessionsByUser = new ConcurrentHashMap<>(expectedUsers);
+    }
+
+    // True if this is the user's first session, i.e. the user just came online.
+    boolean register(ChatSession session) {
+        boolean[] first = new boolean[1];
+        sessionsByUser.compute(session.userId, (id, current) -> {
+            if (current == null) {
+                first[0] = true;
+                return new ChatSession[]{session};
+            }
+            ChatSession[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = session;
+            return grown;
+        });
+        return first[0];
+    }
+
+    // True if this was the user's last session, i.e. the user just went offline.
+    boolean unregister(ChatSession session) {
+        boolean[] last = new boolean[1];
+        sessionsByUser.computeIfPresent(session.userId, (id, current) -> {
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == session) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return current;
+            }
+            if (current.length == 1) {
+                last[0] = true;
+                return null;
+            }
+            ChatSession[] shrunk = new ChatSession[current.length - 1];
+            System.arraycopy(current, 0, shrunk, 0, index);
+            System.arraycopy(current, index + 1, shrunk, index, current.length - index - 1);
+            return shrunk;
+        });
+        return last[0];
+    }
+
+    // The returned array is never modified, callers may iterate it without locking.
+    ChatSession[] sessions(int userId) {
+        ChatSession[] sessions = sessionsByUser.get(userId);
+        return sessions != null ? sessions : NONE;
+    }
+
+    boolean isOnline(int userId) {
+        return sessionsByUser.containsKey(userId);
+    }
+
+    int onlineUsers() {
+        return sessionsByUser.size();
+    }
+
+    // Weakly consistent, like any walk over a concurrent map.
+    void forEachUser(IntConsumer action) {
+        for (Integer userId : sessionsByUser.keySet()) {
+            action.accept(userId);
+        }
+    }
+}
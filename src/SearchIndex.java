@@ -0,0 +1,495 @@
+import java.io.*;
+import java.nio.file.*;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Full-text index over 1:1 chat lines, so SEARCH never has to scan messages.message.
+//
+// Every user has their own term -> posting list map, and a line is indexed once for
+// its sender and once for its receiver, so a query only ever reads the caller's lists.
+// A posting is (msg_id, peer id), kept in msg_id order and compressed as varints:
+// msg_id deltas are small because a user's lines are close together. Every BLOCK
+// postings a skip entry records the block's first msg_id and byte offset, so a list
+// can be walked newest first a block at a time and probed without decoding all of it.
+//
+// Lines are added from the persister callback in msg_id order. The index lives in
+// memory and is written to SEARCH_SNAPSHOT now and then. At startup a background thread
+// reads it back and indexes whatever the store and the archive took in after the
+// snapshot; until it is done, searches are refused and new lines wait for it.
+final class SearchIndex {
+    record Hit(long msgId, int peerId) {
+    }
+
+    private static final int BLOCK = 128;
+    private static final int MIN_TERM = 2;
+    private static final int MAX_TERM = 32;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final ConcurrentHashMap<Integer, UserIndex> users = new ConcurrentHashMap<>();
+    // Every line up to here is in the index.
+    private static volatile long indexedThrough;
+    // The scheduled snapshot and the shutdown one write the same temp file.
+    private static final ReentrantLock saveLock = new ReentrantLock();
+    // Set until the startup catch-up is done. A posting list can't take a line older than
+    // its last, so lines committed meanwhile are held in arrivals and indexed after it.
+    private static volatile boolean warming;
+    private static final ReentrantLock warmLock = new ReentrantLock();
+    private static final List<StoredMessage> arrivals = new ArrayList<>();
+
+    private SearchIndex() {
+    }
+
+    static boolean enabled() {
+        return ServerConfig.SEARCH_ENABLED;
+    }
+
+    static boolean ready() {
+        return !warming;
+    }
+
+    // Before accepting, which doesn't wait for the index. The in-memory engine starts
+    // empty and has nothing to reload.
+    static void start() {
+        if (!enabled() || Storage.inMemory()) {
+            return;
+        }
+        warming = true;
+        Thread.ofPlatform().daemon().name("search-warmup").start(SearchIndex::warmUp);
+
+        ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "search-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = ServerConfig.SEARCH_SNAPSHOT_MINUTES;
+        saver.scheduleWithFixedDelay(SearchIndex::save, period, period, TimeUnit.MINUTES);
+        Runtime.getRuntime().addShutdownHook(new Thread(SearchIndex::save, "search-snapshot-drain"));
+    }
+
+    private static void warmUp() {
+        long begin = System.nanoTime();
+        Path file = Paths.get(ServerConfig.SEARCH_SNAPSHOT);
+        if (Files.exists(file)) {
+            try {
+                load(file);
+            } catch (IOException e) {
+                System.out.println("Search index snapshot unreadable, rebuilding: " + e.getMessage());
+                users.clear();
+                indexedThrough = 0;
+            }
+        }
+        long loaded = indexedThrough;
+        try {
+            catchUp(loaded);
+        } catch (IOException | SQLException | RuntimeException e) {
+            // Searches miss the lines that weren't caught up; the next restart tries again.
+            e.printStackTrace();
+        }
+        warmLock.lock();
+        try {
+            for (StoredMessage row : arrivals) {
+                index(row);
+            }
+            arrivals.clear();
+            warming = false;
+        } finally {
+            warmLock.unlock();
+        }
+        System.out.println("Search index: " + users.size() + " users up to msg_id " + indexedThrough
+                + " (" + (indexedThrough - loaded) + " caught up) in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + " ms.");
+    }
+
+    // The table only holds lines Archiver hasn't moved yet, so after a lost snapshot most
+    // of them are in the archive. Posting lists take lines in msg_id order, so the archive's
+    // sweep is merged into the table's stream. A chunk cut short by a crash can leave a
+    // table line below an archived one; the merge keeps those in order too.
+    private static void catchUp(long after) throws IOException, SQLException {
+        MessageArchive.Sweep archived = MessageArchive.since(after);
+        StoredMessage[] next = {archived.next()};
+        try {
+            Storage.messages.since(after, row -> {
+                try {
+                    while (next[0] != null && next[0].msgId() < row.msgId()) {
+                        index(next[0]);
+                        next[0] = archived.next();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                index(row);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        while (next[0] != null) {
+            index(next[0]);
+            next[0] = archived.next();
+        }
+    }
+
+    // Persister callback: the line is committed and has its msg_id.
+    static void add(long msgId, int senderId, int receiverId, String text) {
+        if (!enabled()) {
+            return;
+        }
+        if (warming) {
+            warmLock.lock();
+            try {
+                if (warming) {
+                    arrivals.add(new StoredMessage(msgId, senderId, receiverId, null, text, 0));
+                    return;
+                }
+            } finally {
+                warmLock.unlock();
+            }
+        }
+        index(msgId, senderId, receiverId, text);
+    }
+
+    private static void index(StoredMessage row) {
+        index(row.msgId(), row.senderId(), row.receiverId(), row.text());
+    }
+
+    // Lines must come in msg_id order; one at or below what a list already holds is a
+    // replay from catch-up and is skipped.
+    private static void index(long msgId, int senderId, int receiverId, String text) {
+        String[] terms = terms(text);
+        if (terms.length > 0) {
+            user(senderId).add(msgId, receiverId, terms);
+            if (receiverId != senderId) {
+                user(receiverId).add(msgId, senderId, terms);
+            }
+            ChatStats.searchIndexed.increment();
+        }
+        if (msgId > indexedThrough) {
+            indexedThrough = msgId;
+        }
+    }
+
+    private static UserIndex user(int userId) {
+        return users.computeIfAbsent(userId, id -> new UserIndex());
+    }
+
+    // Lowercased runs of letters and digits, MIN_TERM to MAX_TERM long (longer ones are
+    // cut), each once, in order of appearance.
+    static String[] terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int c = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_TERM) {
+                    term.appendCodePoint(Character.toLowerCase(c));
+                }
+            } else if (term.length() > 0) {
+                if (term.length() >= MIN_TERM) {
+                    terms.add(term.toString());
+                }
+                term.setLength(0);
+            }
+            i += Character.charCount(c);
+        }
+        return terms.toArray(new String[0]);
+    }
+
+    // Up to limit of the user's lines older than before that contain every term of the
+    // query, newest first.
+    static List<Hit> search(int userId, String[] terms, long before, int limit) {
+        ChatStats.searchQueries.increment();
+        UserIndex index = users.get(userId);
+        if (index == null || terms.length == 0) {
+            return List.of();
+        }
+        Cursor[] cursors = new Cursor[terms.length];
+        index.lock.lock();
+        try {
+            for (int i = 0; i < terms.length; i++) {
+                PostingList list = index.terms.get(terms[i]);
+                if (list == null) {
+                    return List.of();
+                }
+                cursors[i] = new Cursor(list);
+            }
+        } finally {
+            index.lock.unlock();
+        }
+        // Walk the rarest term and probe the others.
+        Arrays.sort(cursors, (a, b) -> Integer.compare(a.count, b.count));
+        Cursor driver = cursors[0];
+        List<Hit> hits = new ArrayList<>(limit);
+        for (int block = driver.blockBefore(before); block >= 0 && hits.size() < limit; block--) {
+            driver.decode(block);
+            for (int i = driver.decodedCount - 1; i >= 0 && hits.size() < limit; i--) {
+                long msgId = driver.ids[i];
+                if (msgId >= before) {
+                    continue;
+                }
+                boolean all = true;
+                for (int c = 1; c < cursors.length && all; c++) {
+                    all = cursors[c].contains(msgId);
+                }
+                if (all) {
+                    hits.add(new Hit(msgId, driver.peers[i]));
+                }
+            }
+        }
+        return hits;
+    }
+
+    static String snapshot() {
+        return "searchUsers=" + users.size() + " searchIndexedThrough=" + indexedThrough;
+    }
+
+    // Written to a temp file and moved into place. Taken while lines keep coming: every
+    // line up to the recorded msg_id is in it, some later ones may be too, and catch-up
+    // at the next start skips those.
+    static void save() {
+        saveLock.lock();
+        try {
+            // Half loaded, the index would be written out as if it were whole.
+            if (warming) {
+                return;
+            }
+            write();
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    private static void write() {
+        Path file = Paths.get(ServerConfig.SEARCH_SNAPSHOT);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        long through = indexedThrough;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(through);
+            List<Map.Entry<Integer, UserIndex>> all = new ArrayList<>(users.entrySet());
+            out.writeInt(all.size());
+            for (Map.Entry<Integer, UserIndex> user : all) {
+                out.writeInt(user.getKey());
+                List<Map.Entry<String, Cursor>> terms = new ArrayList<>();
+                UserIndex index = user.getValue();
+                index.lock.lock();
+                try {
+                    for (Map.Entry<String, PostingList> term : index.terms.entrySet()) {
+                        terms.add(Map.entry(term.getKey(), new Cursor(term.getValue())));
+                    }
+                } finally {
+                    index.lock.unlock();
+                }
+                out.writeInt(terms.size());
+                for (Map.Entry<String, Cursor> term : terms) {
+                    out.writeUTF(term.getKey());
+                    term.getValue().write(out);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("unknown version");
+            }
+            long through = in.readLong();
+            int userCount = in.readInt();
+            for (int u = 0; u < userCount; u++) {
+                int userId = in.readInt();
+                UserIndex index = new UserIndex();
+                int termCount = in.readInt();
+                for (int t = 0; t < termCount; t++) {
+                    index.terms.put(in.readUTF(), PostingList.read(in));
+                }
+                users.put(userId, index);
+            }
+            indexedThrough = through;
+        }
+    }
+
+    private static final class UserIndex {
+        final ReentrantLock lock = new ReentrantLock();
+        final HashMap<String, PostingList> terms = new HashMap<>();
+
+        void add(long msgId, int peerId, String[] words) {
+            lock.lock();
+            try {
+                for (String word : words) {
+                    PostingList list = terms.get(word);
+                    if (list == null) {
+                        list = new PostingList();
+                        terms.put(word, list);
+                    }
+                    list.add(msgId, peerId);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Append-only. Arrays are replaced, never shrunk, and bytes below length never
+    // change, so a Cursor taken under the user's lock can be read after it is released.
+    private static final class PostingList {
+        byte[] bytes = new byte[16];
+        int length;
+        int count;
+        long last;
+        long[] blockFirst = new long[1];
+        int[] blockOffset = new int[1];
+        int blocks;
+
+        void add(long msgId, int peerId) {
+            if (msgId <= last) {
+                return;
+            }
+            if (count % BLOCK == 0) {
+                if (blocks == blockFirst.length) {
+                    blockFirst = Arrays.copyOf(blockFirst, blocks * 2);
+                    blockOffset = Arrays.copyOf(blockOffset, blocks * 2);
+                }
+                blockFirst[blocks] = msgId;
+                blockOffset[blocks] = length;
+                blocks++;
+            } else {
+                putVarint(msgId - last);
+            }
+            putVarint(peerId & 0xFFFFFFFFL);
+            last = msgId;
+            count++;
+        }
+
+        private void putVarint(long value) {
+            if (length + 10 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 10));
+            }
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        static PostingList read(DataInputStream in) throws IOException {
+            PostingList list = new PostingList();
+            list.count = in.readInt();
+            list.last = in.readLong();
+            list.length = in.readInt();
+            list.bytes = new byte[Math.max(16, list.length)];
+            in.readFully(list.bytes, 0, list.length);
+            list.blocks = in.readInt();
+            list.blockFirst = new long[Math.max(1, list.blocks)];
+            list.blockOffset = new int[Math.max(1, list.blocks)];
+            for (int i = 0; i < list.blocks; i++) {
+                list.blockFirst[i] = in.readLong();
+                list.blockOffset[i] = in.readInt();
+            }
+            return list;
+        }
+    }
+
+    // A read-only view of a posting list as it was when taken, decoding one block at a time.
+    private static final class Cursor {
+        final byte[] bytes;
+        final int length;
+        final int count;
+        final long last;
+        final long[] blockFirst;
+        final int[] blockOffset;
+        final int blocks;
+
+        final long[] ids = new long[BLOCK];
+        final int[] peers = new int[BLOCK];
+        int decoded = -1;
+        int decodedCount;
+
+        Cursor(PostingList list) {
+            bytes = list.bytes;
+            length = list.length;
+            count = list.count;
+            last = list.last;
+            blockFirst = list.blockFirst;
+            blockOffset = list.blockOffset;
+            blocks = list.blocks;
+        }
+
+        // The newest block that starts below before, or -1.
+        int blockBefore(long before) {
+            int found = Arrays.binarySearch(blockFirst, 0, blocks, before);
+            return (found >= 0 ? found : -found - 1) - 1;
+        }
+
+        boolean contains(long msgId) {
+            if (msgId > last) {
+                return false;
+            }
+            int block = blockBefore(msgId + 1);
+            if (block < 0) {
+                return false;
+            }
+            decode(block);
+            return Arrays.binarySearch(ids, 0, decodedCount, msgId) >= 0;
+        }
+
+        void decode(int block) {
+            if (block == decoded) {
+                return;
+            }
+            int end = block + 1 < blocks ? blockOffset[block + 1] : length;
+            int n = block + 1 < blocks ? BLOCK : count - block * BLOCK;
+            int[] at = {blockOffset[block]};
+            long msgId = blockFirst[block];
+            for (int i = 0; i < n && at[0] < end; i++) {
+                if (i > 0) {
+                    msgId += varint(at);
+                }
+                ids[i] = msgId;
+                peers[i] = (int) varint(at);
+            }
+            decoded = block;
+            decodedCount = n;
+        }
+
+        private long varint(int[] at) {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[at[0]++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(count);
+            out.writeLong(last);
+            out.writeInt(length);
+            out.write(bytes, 0, length);
+            out.writeInt(blocks);
+            for (int i = 0; i < blocks; i++) {
+                out.writeLong(blockFirst[i]);
+                out.writeInt(blockOffset[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+// Startup knobs for ChatServer, read once from -Dchat.* system properties.
+final class ServerConfig {
+    static final int PORT = Integer.getInteger("chat.port", 1234);
+    static final int ACCEPT_BACKLOG = Integer.getInteger("chat.backlog", 1024);
+
+    // "thread" keeps one platform thread per connection, "virtual" one virtual thread per
+    // connection, and "nio" runs the selector event loops.
+    static final String MODE = System.getProperty("chat.mode", "thread");
+
+    // Pre-sizes the routing table so it does not rehash while a reconnect storm is logging everyone in.
+    static final int EXPECTED_USERS = Integer.getInteger("chat.expectedUsers", 1024);
+
+    // Cluster mode (see Cluster): this node's id, 0 for a standalone server, and the
+    // inter-node address of every node as id=host:port,... with this one among them.
+    // Links between nodes are neither authenticated nor encrypted, so these addresses
+    // must be on a private network that clients can't reach.
+    static final int CLUSTER_NODE = Integer.getInteger("chat.cluster.node", 0);
+    static final String CLUSTER_NODES = System.getProperty("chat.cluster.nodes", "");
+    // Lines for one peer node waiting for its link; past that they are dropped.
+    static final int CLUSTER_LINK_QUEUE = Integer.getInteger("chat.cluster.linkQueue", 65_536);
+    // An idle link sends a keepalive every idleMillis; one silent for timeoutMillis is dropped.
+    static final long CLUSTER_LINK_IDLE_MILLIS = Long.getLong("chat.cluster.link.idleMillis", 1000);
+    static final int CLUSTER_LINK_TIMEOUT_MILLIS = Integer.getInteger("chat.cluster.link.timeoutMillis", 5000);
+
+    static final int EVENT_LOOPS = Integer.getInteger("chat.nio.eventLoops", Runtime.getRuntime().availableProcessors());
+    // JDBC is blocking, so NIO sessions hand their commands to this pool instead of stalling a loop.
+    static final int WORKER_THREADS = Integer.getInteger("chat.nio.workers", 32);
+
+    // Largest binary frame a client may send; a longer length prefix closes the connection.
+    static final int MAX_FRAME_BYTES = Integer.getInteger("chat.maxFrameBytes", 64 * 1024);
+    // Longest text line a client may send, newline excluded; a longer one closes the connection.
+    static final int MAX_LINE_BYTES = Integer.getInteger("chat.maxLineBytes", 16 * 1024);
+
+    // Lines waiting for one peer before the slow-consumer policy kicks in.
+    static final int OUTBOUND_LIMIT = Integer.getInteger("chat.outbound.limit", 1024);
+    // What to do with a message for a peer whose queue is full: "drop" it, "disconnect"
+    // the peer, or "spill" it: park it, and every line after it, on the connection until
+    // the writer catches up, up to SPILL_LIMIT lines.
+    static final String SLOW_CONSUMER_POLICY = System.getProperty("chat.outbound.policy", "drop");
+    // A session's own responses (history, friends list) wait this long for room instead of being dropped.
+    static final long OUTBOUND_WAIT_MILLIS = Long.getLong("chat.outbound.waitMillis", 10_000);
+    static final int SPILL_LIMIT = Integer.getInteger("chat.outbound.spillLimit", 1000);
+
+    // A connection silent for HEARTBEAT_IDLE_MILLIS is pinged, and closed if it still says
+    // nothing within HEARTBEAT_TIMEOUT_MILLIS. Only clients that speak heartbeats are
+    // pinged: binary version 2 and up, and text clients once they have sent a PING line
+    // themselves. The others are closed only if they go idle before logging in; TCP
+    // keepalive is what finds their dead peers. An idle time of 0 turns the reaper off.
+    static final long HEARTBEAT_IDLE_MILLIS = Long.getLong("chat.heartbeat.idleMillis", 30_000);
+    static final long HEARTBEAT_TIMEOUT_MILLIS = Long.getLong("chat.heartbeat.timeoutMillis", 15_000);
+    // Resolution of the timing wheel that tracks every connection's deadline.
+    static final long TIMER_TICK_MILLIS = Long.getLong("chat.timer.tickMillis", 100);
+
+    // Per-user token buckets, one per kind of command: up to BURST commands at once,
+    // refilled at PER_SECOND. Past that a command is refused before it touches the store.
+    // A rate of 0 turns that limit off. Messages cover 1:1 and room lines; rooms cover
+    // joining and leaving.
+    static final int RATE_MESSAGE_PER_SECOND = Integer.getInteger("chat.rate.message.perSecond", 20);
+    static final int RATE_MESSAGE_BURST = Integer.getInteger("chat.rate.message.burst", 40);
+    static final int RATE_HISTORY_PER_SECOND = Integer.getInteger("chat.rate.history.perSecond", 5);
+    static final int RATE_HISTORY_BURST = Integer.getInteger("chat.rate.history.burst", 20);
+    static final int RATE_SEARCH_PER_SECOND = Integer.getInteger("chat.rate.search.perSecond", 2);
+    static final int RATE_SEARCH_BURST = Integer.getInteger("chat.rate.search.burst", 10);
+    static final int RATE_ROOM_PER_SECOND = Integer.getInteger("chat.rate.room.perSecond", 5);
+    static final int RATE_ROOM_BURST = Integer.getInteger("chat.rate.room.burst", 20);
+
+    // Group commit for chat lines: a batch is written once it holds BATCH_SIZE lines or its
+    // first line has waited LINGER_MILLIS, whichever comes first.
+    static final int PERSIST_BATCH_SIZE = Integer.getInteger("chat.persist.batchSize", 256);
+    static final long PERSIST_LINGER_MILLIS = Long.getLong("chat.persist.lingerMillis", 5);
+    // Senders block once this many lines are waiting for the database.
+    static final int PERSIST_QUEUE_CAPACITY = Integer.getInteger("chat.persist.queueCapacity", 65_536);
+    // "sync" holds back delivery and the sender's "You: ..." echo until the line is committed;
+    // "async" (default) routes at once and only reports failed writes. Either way a line for
+    // a user on another cluster node goes there once committed, since it carries its msg_id.
+    static final boolean SYNC_DURABILITY = "sync".equals(System.getProperty("chat.durability", "async"));
+
+    // Upper bound on CHAT_HISTORY page sizes, so one request can't ask for the whole table.
+    static final int HISTORY_MAX_PAGE_SIZE = Integer.getInteger("chat.history.maxPageSize", 200);
+
+    // Recent-messages cache: newest lines kept per active conversation, and the heap it may use.
+    // History pages that fall inside a cached window are answered without the database.
+    // Off by default in a cluster, where a node only sees the lines its own users send.
+    static final int CACHE_MESSAGES_PER_CONVERSATION = Integer.getInteger("chat.cache.messagesPerConversation", 64);
+    static final long CACHE_MAX_BYTES = Long.getLong("chat.cache.maxBytes", CLUSTER_NODE > 0 ? 0 : 64L * 1024 * 1024);
+
+    // Offline catch-up: most lines pushed in the login batch, and how often delivery acks are written.
+    static final int SYNC_MAX_MESSAGES = Integer.getInteger("chat.sync.maxMessages", 500);
+    static final long ACK_FLUSH_MILLIS = Long.getLong("chat.ack.flushMillis", 1000);
+
+    // "jdbc" keeps users and messages in MySQL; "memory" keeps them in this JVM only, so
+    // load tests need no database. The memory engine starts with seedUsers users named
+    // <seedPrefix>00000 and up, each befriended with the next seedFriends of them, and with
+    // autoRegister any unknown name that logs in becomes a user.
+    static final String STORE = System.getProperty("chat.store", "jdbc");
+    static final int MEMORY_SEED_USERS = Integer.getInteger("chat.memory.seedUsers", 0);
+    static final String MEMORY_SEED_PREFIX = System.getProperty("chat.memory.seedPrefix", "bench_");
+    static final int MEMORY_SEED_FRIENDS = Integer.getInteger("chat.memory.seedFriends", 0);
+    static final boolean MEMORY_AUTO_REGISTER = Boolean.getBoolean("chat.memory.autoRegister");
+
+    // Message log for chat.store=log. Segments roll at segmentBytes; with fsync each
+    // persister batch is forced to disk before its senders hear back. Segments already
+    // copied into MySQL are deleted beyond retainSegments.
+    static final String LOG_DIR = System.getProperty("chat.log.dir", "chatlog");
+    static final long LOG_SEGMENT_BYTES = Long.getLong("chat.log.segmentBytes", 64L * 1024 * 1024);
+    static final boolean LOG_FSYNC = Boolean.parseBoolean(System.getProperty("chat.log.fsync", "true"));
+    static final int LOG_RETAIN_SEGMENTS = Integer.getInteger("chat.log.retainSegments", 8);
+    static final int LOG_SHIP_BATCH = Integer.getInteger("chat.log.shipBatch", 1000);
+
+    // Messages older than afterDays (0 = never) are moved out of the messages table into
+    // compressed per-conversation segments under dir, chunk msg_ids at a time, every
+    // intervalMinutes. Only one server of a deployment should archive.
+    static final int ARCHIVE_AFTER_DAYS = Integer.getInteger("chat.archive.afterDays", 0);
+    static final String ARCHIVE_DIR = System.getProperty("chat.archive.dir", "archive");
+    static final long ARCHIVE_CHUNK = Long.getLong("chat.archive.chunk", 10_000);
+    static final long ARCHIVE_INTERVAL_MINUTES = Long.getLong("chat.archive.intervalMinutes", 60);
+    static final int ARCHIVE_BLOCK_ROWS = Integer.getInteger("chat.archive.blockRows", 64);
+
+    // Full-text SEARCH over 1:1 lines. The index is kept in memory, written to snapshot
+    // every snapshotMinutes and on shutdown, and caught up from the store in the background
+    // at startup; SEARCH is refused until then. Off by default: the whole index lives on the
+    // heap, a posting per word for both ends of every line, and nothing bounds it, so the
+    // heap has to be sized for the message table first. Not for a cluster either, where a
+    // node only sees the lines its own users send.
+    static final boolean SEARCH_ENABLED = Boolean.getBoolean("chat.search");
+    static final String SEARCH_SNAPSHOT = System.getProperty("chat.search.snapshot", "search.idx");
+    static final long SEARCH_SNAPSHOT_MINUTES = Long.getLong("chat.search.snapshotMinutes", 10);
+    static final int SEARCH_PAGE_SIZE = Integer.getInteger("chat.search.pageSize", 20);
+
+    // In-memory users and friendships, bulk-loaded at startup so logins skip the database.
+    // Both tables are re-read every reloadSeconds, so users and friendships edited in the
+    // database show up that late. 0 never reloads: then the tables must not be edited under
+    // a running server.
+    static final boolean USER_CACHE = Boolean.parseBoolean(System.getProperty("chat.userCache", "true"));
+    static final int USER_CACHE_RELOAD_SECONDS = Integer.getInteger("chat.userCache.reloadSeconds", 300);
+
+    // Latency histograms and gauges: registered with JMX as chat:type=Metrics, and served
+    // as text on http://<host>:port/metrics when port > 0.
+    static final boolean METRICS_JMX = Boolean.parseBoolean(System.getProperty("chat.metrics.jmx", "true"));
+    static final int METRICS_PORT = Integer.getInteger("chat.metrics.port", 0);
+
+    static final int STATS_INTERVAL_SECONDS = Integer.getInteger("chat.statsIntervalSeconds", 0);
+
+    // Per-connection console logging; benchmarks turn it off so 10k connects don't measure System.out.
+    static final boolean LOG_CONNECTIONS = !Boolean.getBoolean("chat.quiet");
+
+    private ServerConfig() {
+    }
+}
@@ -0,0 +1,55 @@
+import java.io.IOException;
+import java.sql.SQLException;
+
+// The storage engine, picked once by chat.store: "jdbc" for MySQL (the default),
+// "log" for MySQL fed from a local message log, or "memory" for a server that needs
+// no database, for load tests and benchmarks.
+final class Storage {
+    private static final MemoryStorage memory = ServerConfig.STORE.equals("memory")
+            ? new MemoryStorage(ServerConfig.EXPECTED_USERS) : null;
+    private static final JdbcStorage jdbc = memory == null ? new JdbcStorage() : null;
+    private static final LogStorage logged = ServerConfig.STORE.equals("log") ? new LogStorage(jdbc, jdbc) : null;
+
+    static final UserDirectory users = memory != null ? memory : jdbc;
+    static final MessageStore messages = memory != null ? memory : logged != null ? logged : jdbc;
+
+    private Storage() {
+    }
+
+    static boolean inMemory() {
+        return memory != null;
+    }
+
+    // Before accepting, so a reconnect storm after a restart finds users in memory.
+    // False if the server can't run: the message log could not be recovered.
+    static boolean start() {
+        if (memory != null) {
+            memory.seed(ServerConfig.MEMORY_SEED_PREFIX, ServerConfig.MEMORY_SEED_USERS, ServerConfig.MEMORY_SEED_FRIENDS);
+            return true;
+        }
+        UserCache.start();
+        Archiver.start();
+        if (logged != null) {
+            try {
+                logged.start();
+            } catch (IOException | SQLException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+        SearchIndex.start();
+        return true;
+    }
+
+    // The in-memory engine, for harnesses that set up their own users; null with MySQL.
+    static MemoryStorage memory() {
+        return memory;
+    }
+
+    static String snapshot() {
+        if (memory != null) {
+            return memory.snapshot();
+        }
+        return (logged != null ? logged.snapshot() + " " : "") + DatabaseConnection.poolStats();
+    }
+}
@@ -0,0 +1,4 @@
+// One chat line as it is kept once persisted. senderName is carried along because
+// every history reply shows it and the sender is already known when the line is saved.
+record StoredMessage(long msgId, int senderId, int receiverId, String senderName, String text, long timestampMillis) {
+}
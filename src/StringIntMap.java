@@ -0,0 +1,102 @@
+import java.util.Arrays;
+
+// Open-addressing hash map from strings to primitive ints, so a lookup never boxes
+// its result. Not thread-safe; owners guard it themselves.
+class StringIntMap {
+    private String[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+
+    StringIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new String[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    // Returns missing when the key is absent.
+    int get(String key, int missing) {
+        for (int i = IntObjectMap.mix(key.hashCode()) & mask; ; i = (i + 1) & mask) {
+            String k = keys[i];
+            if (k == null) {
+                return missing;
+            }
+            if (k.equals(key)) {
+                return values[i];
+            }
+        }
+    }
+
+    void put(String key, int value) {
+        for (int i = IntObjectMap.mix(key.hashCode()) & mask; ; i = (i + 1) & mask) {
+            String k = keys[i];
+            if (k == null) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size * 2 > keys.length) {
+                    rehash(keys.length * 2);
+                }
+                return;
+            }
+            if (k.equals(key)) {
+                values[i] = value;
+                return;
+            }
+        }
+    }
+
+    boolean remove(String key) {
+        for (int i = IntObjectMap.mix(key.hashCode()) & mask; ; i = (i + 1) & mask) {
+            String k = keys[i];
+            if (k == null) {
+                return false;
+            }
+            if (k.equals(key)) {
+                shiftBack(i);
+                size--;
+                return true;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(keys, null);
+        size = 0;
+    }
+
+    private void shiftBack(int hole) {
+        for (int i = (hole + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+            int home = IntObjectMap.mix(keys[i].hashCode()) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        keys[hole] = null;
+    }
+
+    private void rehash(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new String[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            String key = oldKeys[j];
+            if (key != null) {
+                int i = IntObjectMap.mix(key.hashCode()) & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
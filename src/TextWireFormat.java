@@ -0,0 +1,177 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.List;
+
+// The original newline-terminated line protocol, kept byte for byte for old clients.
+class TextWireFormat implements WireFormat {
+    @Override
+    public ByteBuffer loginOk(int requestId, int userId, String username) {
+        return line("Login successful! Welcome " + username);
+    }
+
+    @Override
+    public ByteBuffer friends(int requestId, int[] ids, String[] names) {
+        StringBuilder lines = new StringBuilder("Friends List:\n");
+        for (int i = 0; i < ids.length; i++) {
+            lines.append(ids[i]).append(": ").append(names[i]).append('\n');
+        }
+        return ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public ByteBuffer message(int senderId, String senderName, String text) {
+        return line(senderName + ": " + text);
+    }
+
+    @Override
+    public ByteBuffer sent(int requestId, int recipientId, String text, boolean recipientOffline) {
+        return recipientOffline ? line("You: " + text + "\nMessage sent (recipient offline).") : line("You:" + text);
+    }
+
+    @Override
+    public ByteBuffer historyStart(int requestId, int peerId, boolean firstPage) {
+        // A first page replaces what the client shows, older pages go on top of it.
+        return line(firstPage ? "ChatHistoryStart" : "ChatHistoryMore");
+    }
+
+    @Override
+    public ByteBuffer historyRow(int requestId, StoredMessage row, int viewerId) {
+        return line(historyLine(row, viewerId));
+    }
+
+    private static String historyLine(StoredMessage row, int viewerId) {
+        String sender = row.senderId() == viewerId ? "You" : row.senderName();
+        return sender + ": " + row.text() + " " + new Timestamp(row.timestampMillis()) + "r";
+    }
+
+    @Override
+    public ByteBuffer historyEnd(int requestId, long nextCursor, boolean paged) {
+        return line(paged ? "ChatHistoryEnd:" + nextCursor : "ChatHistoryEnd");
+    }
+
+    // Rows look like history rows, so clients that parse those can show them.
+    @Override
+    public ByteBuffer offlineMessages(int requestId, List<StoredMessage> newestFirst, int viewerId) {
+        StringBuilder lines = new StringBuilder("OfflineMessagesStart\n");
+        for (StoredMessage row : newestFirst) {
+            lines.append(historyLine(row, viewerId)).append('\n');
+        }
+        lines.append("OfflineMessagesEnd\n");
+        return ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Each hit is SearchResult:<peerId>: followed by the history row.
+    @Override
+    public ByteBuffer searchResults(int requestId, List<StoredMessage> newestFirst, int viewerId, long nextCursor) {
+        StringBuilder lines = new StringBuilder("SearchResultsStart\n");
+        for (StoredMessage row : newestFirst) {
+            int peerId = row.senderId() == viewerId ? row.receiverId() : row.senderId();
+            lines.append("SearchResult:").append(peerId).append(':').append(historyLine(row, viewerId)).append('\n');
+        }
+        lines.append("SearchResultsEnd:").append(nextCursor).append('\n');
+        return ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public ByteBuffer roomJoined(int requestId, String room, int members) {
+        return line("Joined room " + room + " (" + members + " members).");
+    }
+
+    @Override
+    public ByteBuffer roomLeft(int requestId, String room) {
+        return line("Left room " + room + ".");
+    }
+
+    @Override
+    public ByteBuffer roomMessage(String room, int senderId, String senderName, String text) {
+        return line("[" + room + "] " + senderName + ": " + text);
+    }
+
+    @Override
+    public ByteBuffer error(int requestId, String text) {
+        return line(text);
+    }
+
+    @Override
+    public ByteBuffer ping() {
+        return line("PING");
+    }
+
+    @Override
+    public ByteBuffer pong(int requestId) {
+        return line("PONG");
+    }
+
+    private static ByteBuffer line(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Inbound lines are read off their bytes at absolute indexes; the buffer's position
+    // and limit bound the line and are never moved. Trimming drops bytes <= ' ' like
+    // String.trim(): in UTF-8 those are always whole characters.
+
+    static String decode(ByteBuffer line) {
+        return decode(line, line.position(), line.limit());
+    }
+
+    static String decode(ByteBuffer line, int from, int to) {
+        return new String(line.array(), line.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+    }
+
+    static String decodeTrimmed(ByteBuffer line, int from) {
+        int to = line.limit();
+        while (from < to && (line.get(from) & 0xff) <= ' ') {
+            from++;
+        }
+        while (to > from && (line.get(to - 1) & 0xff) <= ' ') {
+            to--;
+        }
+        return decode(line, from, to);
+    }
+
+    // Index of the first b at or after from, or -1.
+    static int indexOf(ByteBuffer line, int from, char b) {
+        for (int i = from; i < line.limit(); i++) {
+            if (line.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean startsWith(ByteBuffer line, byte[] prefix) {
+        if (line.remaining() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line.get(line.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The non-negative decimal in [from, to), surrounding blanks allowed, or -1 if the
+    // field is anything else or overflows a long.
+    static long parseNumber(ByteBuffer line, int from, int to) {
+        while (from < to && (line.get(from) & 0xff) <= ' ') {
+            from++;
+        }
+        while (to > from && (line.get(to - 1) & 0xff) <= ' ') {
+            to--;
+        }
+        if (from == to || to - from > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = line.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed timing wheel (Varghese & Lauck): SLOTS buckets of one tick each, and a timeout
+// sits in the bucket of its deadline tick with the number of whole turns it still has
+// to wait. One thread advances the wheel a tick at a time and only looks at the bucket
+// under the hand, so it tracks any number of deadlines at a cost per tick proportional
+// to what is due, instead of a scheduled task or a heap entry per connection.
+//
+// Scheduling and cancelling are O(1) for the caller: both go through queues the wheel
+// thread drains each tick, so the buckets themselves are only touched by that thread.
+// Deadlines are rounded up to the next tick. Tasks run on the wheel thread and must
+// not block; the thread is started by the first schedule().
+final class TimingWheel {
+    private static final int SLOTS = 512;
+
+    private final String name;
+    private final long tickNanos;
+    private final Timeout[] buckets = new Timeout[SLOTS];
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile long startNanos;
+    // Wheel thread only.
+    private long tick;
+
+    TimingWheel(String name, long tickMillis) {
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+    }
+
+    final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelledFlag;
+        // Wheel thread only: the bucket links, and -1 while not in a bucket.
+        private long rounds;
+        private int slot = -1;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            if (!cancelledFlag) {
+                cancelledFlag = true;
+                cancelled.add(this);
+            }
+        }
+    }
+
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (started.compareAndSet(false, true)) {
+            startNanos = System.nanoTime();
+            Thread thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    // Timeouts scheduled and neither run nor cancelled yet.
+    int pending() {
+        return pending.get();
+    }
+
+    private void run() {
+        while (true) {
+            long wake = startNanos + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < wake) {
+                LockSupport.parkNanos(wake - now);
+            }
+            unlinkCancelled();
+            link();
+            expire();
+            tick++;
+        }
+    }
+
+    private void unlinkCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.slot >= 0) {
+                unlink(timeout);
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    // New timeouts into the bucket of their deadline tick, or the current one if that passed.
+    private void link() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelledFlag) {
+                pending.decrementAndGet();
+                continue;
+            }
+            long due = Math.max(tick, (timeout.deadline - startNanos) / tickNanos);
+            timeout.rounds = (due - tick) / SLOTS;
+            timeout.slot = (int) (due % SLOTS);
+            timeout.next = buckets[timeout.slot];
+            if (timeout.next != null) {
+                timeout.next.prev = timeout;
+            }
+            buckets[timeout.slot] = timeout;
+        }
+    }
+
+    // Everything left in the bucket under the hand is due by now.
+    private void expire() {
+        Timeout timeout = buckets[(int) (tick % SLOTS)];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelledFlag) {
+                // Its entry in the cancelled queue finds it unlinked.
+                unlink(timeout);
+                pending.decrementAndGet();
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                unlink(timeout);
+                pending.decrementAndGet();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+    }
+}
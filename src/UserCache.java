@@ -0,0 +1,237 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Users and friendships held in memory, so logins don't touch the database. The
+// whole users and user_friends tables are bulk-loaded at startup into primitive-keyed
+// open-addressing maps; friend lists are plain int[] adjacency arrays.
+//
+// The server never writes either table, so the maps only change by what JdbcStorage
+// reads back (putUser, putFriends) and by the reload every USER_CACHE_RELOAD_SECONDS.
+// A user, rename or friendship added to the database directly shows up within that
+// period; with reloading turned off, only after a restart. A user or friend list that
+// isn't cached is read from the database by the caller and put back here.
+final class UserCache {
+    static final int MISSING = -1;
+    private static final int[] NO_FRIENDS = new int[0];
+
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private static Tables tables = new Tables(ServerConfig.EXPECTED_USERS);
+    // Non-null while a bulk load runs: hook changes made meanwhile, replayed onto the fresh tables.
+    private static List<Change> duringLoad;
+
+    private UserCache() {
+    }
+
+    static boolean enabled() {
+        return ServerConfig.USER_CACHE;
+    }
+
+    static void start() {
+        if (!enabled()) {
+            return;
+        }
+        load();
+        int reload = ServerConfig.USER_CACHE_RELOAD_SECONDS;
+        if (reload > 0) {
+            ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "user-cache-reload");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reloader.scheduleWithFixedDelay(UserCache::load, reload, reload, TimeUnit.SECONDS);
+        }
+    }
+
+    // Reads both tables into fresh maps and swaps them in. On failure the old contents stay.
+    static void load() {
+        lock.writeLock().lock();
+        try {
+            if (duringLoad != null) {
+                return;
+            }
+            duringLoad = new ArrayList<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Tables fresh = null;
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            fresh = read(conn);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            lock.writeLock().lock();
+            try {
+                if (fresh != null) {
+                    for (Change change : duringLoad) {
+                        change.apply(fresh);
+                    }
+                    tables = fresh;
+                }
+                duringLoad = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        if (fresh != null) {
+            System.out.println("Loaded " + fresh.ids.size() + " users and " + fresh.friendLinks
+                    + " friendships in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+        }
+    }
+
+    private static Tables read(Connection conn) throws SQLException {
+        Tables fresh;
+        try (Statement stmt = streaming(conn)) {
+            ResultSet count = stmt.executeQuery("SELECT COUNT(*) FROM users");
+            fresh = new Tables(count.next() ? Math.max(count.getInt(1), ServerConfig.EXPECTED_USERS) : ServerConfig.EXPECTED_USERS);
+        }
+        try (Statement stmt = streaming(conn)) {
+            ResultSet rs = stmt.executeQuery("SELECT id, username FROM users");
+            while (rs.next()) {
+                fresh.putUser(rs.getInt(1), rs.getString(2));
+            }
+        }
+        // Every loaded user has a known (possibly empty) friend list.
+        fresh.names.forEach((id, name) -> fresh.friends.put(id, NO_FRIENDS));
+        try (Statement stmt = streaming(conn)) {
+            ResultSet rs = stmt.executeQuery("SELECT user_id, friend_id FROM user_friends ORDER BY user_id");
+            int current = 0;
+            int[] scratch = new int[16];
+            int count = 0;
+            boolean any = false;
+            while (rs.next()) {
+                int user = rs.getInt(1);
+                if (any && user != current) {
+                    fresh.friends.put(current, Arrays.copyOf(scratch, count));
+                    count = 0;
+                }
+                current = user;
+                any = true;
+                if (count == scratch.length) {
+                    scratch = Arrays.copyOf(scratch, count * 2);
+                }
+                scratch[count++] = rs.getInt(2);
+                fresh.friendLinks++;
+            }
+            if (any) {
+                fresh.friends.put(current, Arrays.copyOf(scratch, count));
+            }
+        }
+        return fresh;
+    }
+
+    private static Statement streaming(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        stmt.setFetchSize(Integer.MIN_VALUE);
+        return stmt;
+    }
+
+    // MISSING if the name isn't cached; the caller asks the database.
+    static int userId(String username) {
+        lock.readLock().lock();
+        try {
+            int id = tables.ids.get(username, MISSING);
+            (id == MISSING ? ChatStats.userCacheMisses : ChatStats.userCacheHits).increment();
+            return id;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static String username(int userId) {
+        lock.readLock().lock();
+        try {
+            return tables.names.get(userId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The user's friend ids, or null if the list isn't cached. Callers must not modify it.
+    static int[] friends(int userId) {
+        lock.readLock().lock();
+        try {
+            int[] friends = tables.friends.get(userId);
+            (friends == null ? ChatStats.userCacheMisses : ChatStats.userCacheHits).increment();
+            return friends;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Lookups that missed, put back after the database read. Each one is applied now and,
+    // if a bulk load is running, again on the freshly loaded tables before they are swapped in.
+
+    static void putUser(int userId, String username) {
+        change(t -> t.putUser(userId, username));
+    }
+
+    // friendNames may be null when the names are already cached.
+    static void putFriends(int userId, int[] friendIds, String[] friendNames) {
+        int[] copy = friendIds.clone();
+        change(t -> {
+            if (friendNames != null) {
+                for (int i = 0; i < copy.length; i++) {
+                    t.putUser(copy[i], friendNames[i]);
+                }
+            }
+            t.friends.put(userId, copy);
+        });
+    }
+
+    private static void change(Change change) {
+        if (!enabled()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            change.apply(tables);
+            if (duringLoad != null) {
+                duringLoad.add(change);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    static String snapshot() {
+        lock.readLock().lock();
+        try {
+            return "cachedUsers=" + tables.ids.size() + " cachedFriendLists=" + tables.friends.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private interface Change {
+        void apply(Tables tables);
+    }
+
+    private static class Tables {
+        final StringIntMap ids;
+        final IntObjectMap<String> names;
+        final IntObjectMap<int[]> friends;
+        long friendLinks;
+
+        Tables(int expectedUsers) {
+            ids = new StringIntMap(expectedUsers);
+            names = new IntObjectMap<>(expectedUsers);
+            friends = new IntObjectMap<>(expectedUsers);
+        }
+
+        void putUser(int userId, String username) {
+            String old = names.put(userId, username);
+            if (old != null && !old.equals(username)) {
+                ids.remove(old);
+            }
+            ids.put(username, userId);
+        }
+    }
+}
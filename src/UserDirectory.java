@@ -0,0 +1,17 @@
+import java.sql.SQLException;
+
+// Where users and friendships are looked up; Storage picks the engine.
+interface UserDirectory {
+    int MISSING = -1;
+
+    record Friends(int[] ids, String[] names) {
+    }
+
+    // The user's id, or MISSING if there is no such user.
+    int userId(String username) throws SQLException;
+
+    // Null if there is no such user.
+    String username(int userId) throws SQLException;
+
+    Friends friends(int userId) throws SQLException;
+}
@@ -0,0 +1,50 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// How a session's replies are put on the wire. Every connection starts out on the
+// line protocol; a client that opens with the binary hello is switched to length-
+// prefixed frames (see BinaryWireFormat). Encoders return a buffer ready to write.
+//
+// requestId is the id of the client request being answered, 0 for lines nobody asked
+// for; the line protocol has no use for it.
+interface WireFormat {
+    WireFormat TEXT = new TextWireFormat();
+    WireFormat BINARY = new BinaryWireFormat();
+
+    ByteBuffer loginOk(int requestId, int userId, String username);
+
+    ByteBuffer friends(int requestId, int[] ids, String[] names);
+
+    // A line someone else sent to this user.
+    ByteBuffer message(int senderId, String senderName, String text);
+
+    // The sender's own copy of a line they sent, on the sending connection or their other ones.
+    ByteBuffer sent(int requestId, int recipientId, String text, boolean recipientOffline);
+
+    ByteBuffer historyStart(int requestId, int peerId, boolean firstPage);
+
+    ByteBuffer historyRow(int requestId, StoredMessage row, int viewerId);
+
+    // nextCursor is 0 once nothing older is left; the legacy whole-conversation reply is not paged.
+    ByteBuffer historyEnd(int requestId, long nextCursor, boolean paged);
+
+    // Lines that arrived while the user was offline, newest first, as one batch.
+    ByteBuffer offlineMessages(int requestId, List<StoredMessage> newestFirst, int viewerId);
+
+    // One page of search hits, newest first; nextCursor is 0 once nothing older matches.
+    ByteBuffer searchResults(int requestId, List<StoredMessage> newestFirst, int viewerId, long nextCursor);
+
+    ByteBuffer roomJoined(int requestId, String room, int members);
+
+    ByteBuffer roomLeft(int requestId, String room);
+
+    // One line said in a room; encoded once and shared by every member.
+    ByteBuffer roomMessage(String room, int senderId, String senderName, String text);
+
+    ByteBuffer error(int requestId, String text);
+
+    // Heartbeat: ping asks a silent client for a pong; pong answers the client's own ping.
+    ByteBuffer ping();
+
+    ByteBuffer pong(int requestId);
+}